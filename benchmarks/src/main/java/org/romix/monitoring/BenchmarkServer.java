@@ -0,0 +1,119 @@
+package org.romix.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/***
+ * The monitored JVM of the benchmarks: synthetic MBeans in the platform
+ * MBeanServer of the benchmark JVM (which also has the GC, runtime and
+ * operating system MXBeans), read either directly ("local") or through a
+ * JMXConnectorServer on the loopback interface ("rmi", with serialization
+ * and RMI like a remote server).
+ * @author romix
+ *
+ */
+class BenchmarkServer {
+	static final String DOMAIN = "benchmark";
+
+	/***
+	 * Synthetic MBean with a counter, a composite attribute and an operation
+	 */
+	public interface SyntheticMXBean {
+		long getCount();
+
+		MemoryUsage getUsage();
+
+		long add(long a, long b);
+	}
+
+	static class Synthetic implements SyntheticMXBean {
+		private final long base;
+		private long count;
+
+		Synthetic(long base) {
+			this.base = base;
+		}
+
+		public synchronized long getCount() {
+			return base + (count += 7);
+		}
+
+		public MemoryUsage getUsage() {
+			return new MemoryUsage(base, base * 2 + count, base * 4, base * 8);
+		}
+
+		public long add(long a, long b) {
+			return a + b + base;
+		}
+	}
+
+	private final MBeanServer mBeanServer = ManagementFactory
+			.getPlatformMBeanServer();
+	private final List<ObjectName> names = new ArrayList<ObjectName>();
+	private JMXConnectorServer connectorServer;
+	private JMXConnector connector;
+	final MBeanServerConnection mBeanServerConn;
+
+	/***
+	 * @param mbeans
+	 *            number of synthetic MBeans ("benchmark:type=Synthetic,name=i")
+	 * @param transport
+	 *            "local" or "rmi"
+	 * @throws Exception
+	 */
+	BenchmarkServer(int mbeans, String transport) throws Exception {
+		for (int i = 0; i < mbeans; i++) {
+			ObjectName name = new ObjectName(DOMAIN + ":type=Synthetic,name="
+					+ i);
+			mBeanServer.registerMBean(new Synthetic(1000L * (i + 1)), name);
+			names.add(name);
+		}
+		if (transport.equals("rmi")) {
+			connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+					new JMXServiceURL("service:jmx:rmi://localhost"), null,
+					mBeanServer);
+			connectorServer.start();
+			connector = JMXConnectorFactory.connect(connectorServer
+					.getAddress());
+			mBeanServerConn = connector.getMBeanServerConnection();
+		} else {
+			mBeanServerConn = mBeanServer;
+		}
+	}
+
+	/***
+	 * Attribute queries in the syntax of the properties file
+	 * ("attr1=abs; title; attribute; objectName[; method; type; value ...]")
+	 * @param attrs
+	 * @return
+	 * @throws Exception
+	 */
+	static AttributePlan[] plans(String... attrs) throws Exception {
+		Properties props = new Properties();
+		for (int i = 0; i < attrs.length; i++)
+			props.setProperty("attr" + (i + 1), attrs[i]);
+		return AttributePlan.compile(JmxServerMonitoring.convertAttrParameter(
+				props, "attr"));
+	}
+
+	void close() throws Exception {
+		if (connector != null)
+			connector.close();
+		if (connectorServer != null)
+			connectorServer.stop();
+		for (ObjectName name : names)
+			mBeanServer.unregisterMBean(name);
+		names.clear();
+	}
+}
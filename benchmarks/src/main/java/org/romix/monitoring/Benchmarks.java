@@ -0,0 +1,24 @@
+package org.romix.monitoring;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/***
+ * Runs the benchmarks with the GC profiler, which reports the allocation
+ * rate per operation (gc.alloc.rate.norm) next to the throughput. All JMH
+ * command line options can be used, e.g. a benchmark name pattern or
+ * "-p mbeans=1000".
+ * @author romix
+ *
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
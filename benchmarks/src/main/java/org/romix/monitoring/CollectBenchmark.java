@@ -0,0 +1,111 @@
+package org.romix.monitoring;
+
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServerConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Reading one server: attribute queries (composite paths, patterns,
+ * operations), the GC statistics and the CPU time, with the connection, the
+ * MXBean proxies and the ObjectName cache kept over the invocations as in
+ * the collection loop.
+ * @author romix
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectBenchmark {
+	/** Number of MBeans matching the patterns */
+	@Param({ "10", "100" })
+	public int mbeans;
+	/** "local": MBeanServer directly, "rmi": through a JMXConnectorServer */
+	@Param({ "local", "rmi" })
+	public String transport;
+
+	private BenchmarkServer server;
+	private MBeanServerConnection conn;
+	private ObjectNameCache nameCache;
+	private RemoteMXBeans mxBeans;
+	private AttributePlan[] compositePlans;
+	private AttributePlan[] patternPlans;
+	private AttributePlan[] invokePlans;
+	private MeasurementState compositeState;
+	private MeasurementState patternState;
+	private MeasurementState invokeState;
+	private MeasurementState gcState;
+	/** Uptime of the monitored JVM as seen by the reads (1 s per read) */
+	private long uptimeMs;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new BenchmarkServer(mbeans, transport);
+		conn = server.mBeanServerConn;
+		nameCache = ObjectNameCache.create(conn, 300000);
+		mxBeans = new RemoteMXBeans(conn);
+		compositePlans = BenchmarkServer.plans(
+				"abs; Used; HeapMemoryUsage.used; java.lang:type=Memory",
+				"abs; Committed; HeapMemoryUsage.committed; java.lang:type=Memory",
+				"abs; Used 0; Usage.used; benchmark:type=Synthetic,name=0",
+				"diff; Count 0; Count; benchmark:type=Synthetic,name=0");
+		patternPlans = BenchmarkServer.plans(
+				"abs; Used; Usage.used; benchmark:type=Synthetic,*",
+				"diff; Count; Count; benchmark:type=Synthetic,*");
+		invokePlans = BenchmarkServer.plans(
+				"abs; Add; invoke; benchmark:type=Synthetic,*; add; long; 1; long; 2");
+		compositeState = AttributePlan.newMeasurementState(compositePlans);
+		patternState = AttributePlan.newMeasurementState(patternPlans);
+		invokeState = AttributePlan.newMeasurementState(invokePlans);
+		gcState = AttributePlan.newMeasurementState(null);
+		uptimeMs = mxBeans.runtime().getUptime();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Benchmark
+	public AttributeValueAndName[] getAttributesComposite() throws Exception {
+		return JmxServerMonitoring.getAttributes(compositePlans, null, null,
+				10, uptimeMs += 1000, compositeState, conn, nameCache, null);
+	}
+
+	@Benchmark
+	public AttributeValueAndName[] getAttributesPattern() throws Exception {
+		return JmxServerMonitoring.getAttributes(patternPlans, null, null, 10,
+				uptimeMs += 1000, patternState, conn, nameCache, null);
+	}
+
+	@Benchmark
+	public AttributeValueAndName[] getAttributesInvoke() throws Exception {
+		return JmxServerMonitoring.getAttributes(invokePlans, null, null, 10,
+				uptimeMs += 1000, invokeState, conn, nameCache, null);
+	}
+
+	@Benchmark
+	public GarbageCollectionGroup getGarbageCollectionGroup() throws Exception {
+		return JmxServerMonitoring.getGarbageCollectionGroup(10,
+				uptimeMs += 1000, gcState, mxBeans, nameCache);
+	}
+
+	@Benchmark
+	public int calculateCpuTimePercent() throws Exception {
+		return JmxServerMonitoring.calculateCpuTimePercent(uptimeMs += 1000,
+				gcState, mxBeans);
+	}
+}
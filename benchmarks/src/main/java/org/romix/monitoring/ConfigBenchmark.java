@@ -0,0 +1,58 @@
+package org.romix.monitoring;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Parsing of the attribute queries of a properties file
+ * @author romix
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+	/** Number of configured attributes */
+	@Param({ "10", "100" })
+	public int attributes;
+
+	private Properties props;
+
+	@Setup
+	public void setup() {
+		props = new Properties();
+		for (int i = 1; i <= attributes; i++) {
+			String attr;
+			if (i % 3 == 0)
+				attr = "diff@60; Count " + i
+						+ "; Count; benchmark:type=Synthetic,name=" + i;
+			else if (i % 3 == 1)
+				attr = "abs; Used " + i
+						+ "; Usage.used; benchmark:type=Synthetic,*";
+			else
+				attr = "abs; Add " + i
+						+ "; invoke; benchmark:type=Synthetic,name=" + i
+						+ "; add; long; 1; long; 2";
+			props.setProperty("attr" + i, attr);
+		}
+	}
+
+	@Benchmark
+	public AttributeValueAndName[] convertAttrParameter() {
+		return JmxServerMonitoring.convertAttrParameter(props, "attr");
+	}
+}
@@ -0,0 +1,352 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+
+/***
+ * Scale test: simulated servers (see SimulatedServer) on loopback ports and
+ * the real collection loop of JmxServerMonitoring in a separate JVM, for a
+ * growing number of servers.
+ *
+ * For each step the collector JVM is started with a properties file listing
+ * all servers. After the warmup cycles (the first one connects to all
+ * servers) its statistics are reset; after the measured cycles the harness
+ * reads the cycle time, overruns, errors and stale servers from the
+ * collector's own MBean (org.romix.monitoring:type=Collector), its CPU
+ * time and its heap after a full GC. Usage:
+ *
+ * java -cp target/benchmarks.jar org.romix.monitoring.FleetSimulator
+ *   servers=100,500,1000,2000 mbeans=10 periodseconds=10 threads=16
+ *   latencyms=1 jitterms=4 failurerate=0.001
+ * @author romix
+ *
+ */
+public class FleetSimulator {
+	static final String HELP_TEXT =
+		"FleetSimulator:\n" +
+		"  Simulated servers and the collection loop of JmxServerMonitoring\n" +
+		"  (in its own JVM) for a growing number of servers.\n" +
+		"  'servers=100,500,1000,2000':\n" +
+		"     Numbers of servers of the steps.\n" +
+		"  'mbeans=10':\n" +
+		"     Synthetic MBeans per server (read via patterns).\n" +
+		"  'latencyms=1' 'jitterms=4' 'failurerate=0.001':\n" +
+		"     Injected latency and share of failing calls per remote call.\n" +
+		"  'periodseconds=10' 'threads=16' 'cycles=5' 'warmupcycles=2':\n" +
+		"     Settings of the collector and number of measured cycles.\n" +
+		"  'baseport=20000':\n" +
+		"     Port of the first server (each server has its own port).\n" +
+		"  'collectorport=19999' 'collectorjvmargs=-Xmx512m':\n" +
+		"     JMX port and JVM arguments of the collector JVM.\n";
+	static final String KEY_SERVERS = "servers";
+	static final String KEY_MBEANS = "mbeans";
+	static final String KEY_LATENCYMS = "latencyms";
+	static final String KEY_JITTERMS = "jitterms";
+	static final String KEY_FAILURERATE = "failurerate";
+	static final String KEY_PERIODSECONDS = "periodseconds";
+	static final String KEY_THREADS = "threads";
+	static final String KEY_CYCLES = "cycles";
+	static final String KEY_WARMUPCYCLES = "warmupcycles";
+	static final String KEY_BASEPORT = "baseport";
+	static final String KEY_COLLECTORPORT = "collectorport";
+	static final String KEY_COLLECTORJVMARGS = "collectorjvmargs";
+	static final ObjectName COLLECTOR_OBJECTNAME = JmxServerMonitoring
+			.newObjectName(CollectorStats.OBJECT_NAME);
+	static final ObjectName MEMORY_OBJECTNAME = JmxServerMonitoring
+			.newObjectName("java.lang:type=Memory");
+
+	/***
+	 * Results of one step
+	 */
+	static class StepResult {
+		int servers;
+		long cycles;
+		CompositeData cycleLatency;
+		long overruns;
+		long errors;
+		long stale;
+		double cpuPercent;
+		long heapUsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties props = JmxServerMonitoring.readProperties(args,
+				"propfile", "FleetSimulator.properties", new String[] {
+						KEY_SERVERS, "100,500,1000", KEY_MBEANS, "10",
+						KEY_LATENCYMS, "1", KEY_JITTERMS, "4",
+						KEY_FAILURERATE, "0", KEY_PERIODSECONDS, "10",
+						KEY_THREADS, "16", KEY_CYCLES, "5",
+						KEY_WARMUPCYCLES, "2", KEY_BASEPORT, "20000",
+						KEY_COLLECTORPORT, "19999", KEY_COLLECTORJVMARGS, "" });
+		System.out.println("FleetSimulator (" + props + ")\n");
+		// Stubs of the simulated servers and the collector use the loopback
+		// interface
+		System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+		SimulatedServer.Faults faults = new SimulatedServer.Faults();
+		int mbeans;
+		int basePort;
+		try {
+			faults.latencyMillis = Long.parseLong(props
+					.getProperty(KEY_LATENCYMS));
+			faults.jitterMillis = Long.parseLong(props
+					.getProperty(KEY_JITTERMS));
+			faults.failureRate = Double.parseDouble(props
+					.getProperty(KEY_FAILURERATE));
+			mbeans = Integer.parseInt(props.getProperty(KEY_MBEANS));
+			basePort = Integer.parseInt(props.getProperty(KEY_BASEPORT));
+		} catch (NumberFormatException ex) {
+			System.out.println("Error: invalid parameter: " + ex + "\n");
+			System.out.println(HELP_TEXT);
+			System.exit(255);
+			return;
+		}
+		List<SimulatedServer> fleet = new ArrayList<SimulatedServer>();
+		List<StepResult> results = new ArrayList<StepResult>();
+		try {
+			for (String s : props.getProperty(KEY_SERVERS).split(",|;|\\s")) {
+				if (s.trim().length() <= 0)
+					continue;
+				int servers = Integer.parseInt(s.trim());
+				// The fleet only grows, servers of earlier steps are reused
+				while (fleet.size() < servers)
+					fleet.add(new SimulatedServer(basePort + fleet.size(),
+							mbeans, faults));
+				System.out.println("Step with " + servers + " servers ...");
+				StepResult result = runStep(fleet.subList(0, servers), props);
+				results.add(result);
+				printResults(results);
+			}
+		} finally {
+			// No injected failures while the connector servers shut down
+			faults.failureRate = 0;
+			faults.latencyMillis = 0;
+			faults.jitterMillis = 0;
+			for (SimulatedServer server : fleet)
+				server.close();
+		}
+		System.exit(0);
+	}
+
+	/***
+	 * Run the collector against the given servers
+	 * @param fleet
+	 * @param props
+	 * @return
+	 * @throws Exception
+	 */
+	static StepResult runStep(List<SimulatedServer> fleet, Properties props)
+			throws Exception {
+		int periodSeconds = Integer.parseInt(props
+				.getProperty(KEY_PERIODSECONDS));
+		int cycles = Integer.parseInt(props.getProperty(KEY_CYCLES));
+		int warmupCycles = Math.max(
+				Integer.parseInt(props.getProperty(KEY_WARMUPCYCLES)), 1);
+		int collectorPort = Integer.parseInt(props
+				.getProperty(KEY_COLLECTORPORT));
+		File propFile = writeCollectorProperties(fleet, props);
+		Process process = startCollector(propFile, collectorPort,
+				props.getProperty(KEY_COLLECTORJVMARGS));
+		JMXConnector connector = null;
+		try {
+			connector = connectToCollector(collectorPort, process);
+			MBeanServerConnection conn = connector.getMBeanServerConnection();
+			// Long enough for cycles with overruns
+			long timeoutMillis = (warmupCycles + cycles) * periodSeconds
+					* 1000L * 10 + 60000;
+			waitForCycles(conn, warmupCycles, timeoutMillis);
+			conn.invoke(COLLECTOR_OBJECTNAME, "resetStatistics", null, null);
+			long cpuStart = cpuTime(conn);
+			long start = System.nanoTime();
+			waitForCycles(conn, cycles, timeoutMillis);
+			StepResult result = new StepResult();
+			result.servers = fleet.size();
+			result.cpuPercent = (cpuTime(conn) - cpuStart) * 100.
+					/ (System.nanoTime() - start);
+			result.cycles = (Long) conn.getAttribute(COLLECTOR_OBJECTNAME,
+					"Cycles");
+			result.cycleLatency = (CompositeData) conn.getAttribute(
+					COLLECTOR_OBJECTNAME, "CycleLatency");
+			result.overruns = (Long) conn.getAttribute(COLLECTOR_OBJECTNAME,
+					"Overruns");
+			result.errors = (Long) conn.getAttribute(COLLECTOR_OBJECTNAME,
+					"ErrorCount");
+			result.stale = (Long) conn.getAttribute(COLLECTOR_OBJECTNAME,
+					"StaleCount");
+			// Live heap of the collector
+			conn.invoke(MEMORY_OBJECTNAME, "gc", null, null);
+			result.heapUsed = (Long) ((CompositeData) conn.getAttribute(
+					MEMORY_OBJECTNAME, "HeapMemoryUsage")).get("used");
+			return result;
+		} finally {
+			if (connector != null)
+				try {
+					connector.close();
+				} catch (Exception ex) {/* ok */
+				}
+			process.destroy();
+			process.waitFor();
+			propFile.delete();
+			logFile(propFile).delete();
+		}
+	}
+
+	/***
+	 * Properties file of the collector: all servers, GC statistics and
+	 * attributes of the JVM and of the synthetic MBeans, no file outputs
+	 * @param fleet
+	 * @param props
+	 * @return
+	 * @throws Exception
+	 */
+	static File writeCollectorProperties(List<SimulatedServer> fleet,
+			Properties props) throws Exception {
+		Properties collector = new Properties();
+		StringBuilder url = new StringBuilder();
+		for (SimulatedServer server : fleet) {
+			if (url.length() > 0)
+				url.append(',');
+			url.append("localhost:").append(server.port);
+		}
+		collector.setProperty("url", url.toString());
+		collector.setProperty("periodseconds",
+				props.getProperty(KEY_PERIODSECONDS));
+		collector.setProperty("threads", props.getProperty(KEY_THREADS));
+		collector.setProperty("console", "false");
+		collector.setProperty("nagiosfile", "off");
+		collector.setProperty("errorfile", "off");
+		collector.setProperty("attr1",
+				"abs; Used JVM Mem; HeapMemoryUsage.used; java.lang:type=Memory");
+		collector.setProperty("attr2",
+				"abs; Committed JVM Mem; HeapMemoryUsage.committed; java.lang:type=Memory");
+		collector.setProperty("attr3",
+				"abs; Used App; Usage.used; app:type=Synthetic,*");
+		collector.setProperty("attr4",
+				"diff; App Count; Count; app:type=Synthetic,*");
+		File file = File.createTempFile("FleetSimulator", ".properties");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			collector.store(out, "FleetSimulator collector");
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static Process startCollector(File propFile, int collectorPort,
+			String jvmArgs) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		for (String arg : jvmArgs.split("\\s+"))
+			if (arg.length() > 0)
+				command.add(arg);
+		command.add("-Djava.rmi.server.hostname=127.0.0.1");
+		command.add("-Dcom.sun.management.jmxremote.port=" + collectorPort);
+		command.add("-Dcom.sun.management.jmxremote.authenticate=false");
+		command.add("-Dcom.sun.management.jmxremote.ssl=false");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(JmxServerMonitoring.class.getName());
+		command.add("propfile=" + propFile.getPath());
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(logFile(propFile));
+		return builder.start();
+	}
+
+	/***
+	 * Console output of the collector JVM
+	 */
+	static File logFile(File propFile) {
+		return new File(propFile.getPath() + ".log");
+	}
+
+	static JMXConnector connectToCollector(int collectorPort, Process process)
+			throws Exception {
+		Exception last = null;
+		for (int i = 0; i < 300; i++) {
+			if (!isAlive(process))
+				throw new Exception("Collector JVM terminated (exit code "
+						+ process.exitValue() + ")");
+			try {
+				return JmxServerMonitoring.getJMXConnector("localhost:"
+						+ collectorPort, null, null);
+			} catch (Exception ex) {
+				last = ex;
+				Thread.sleep(100);
+			}
+		}
+		throw last;
+	}
+
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException ex) {
+			return true;
+		}
+	}
+
+	/***
+	 * Wait until the collector has finished the given number of cycles
+	 * (counted from now)
+	 */
+	static void waitForCycles(MBeanServerConnection conn, int cycles,
+			long timeoutMillis) throws Exception {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		long target = -1;
+		while (System.currentTimeMillis() < end) {
+			Object value = null;
+			try {
+				value = conn.getAttribute(COLLECTOR_OBJECTNAME, "Cycles");
+			} catch (InstanceNotFoundException ex) {
+				// loop not started yet
+			}
+			if (value != null) {
+				if (target < 0)
+					target = (Long) value + cycles;
+				if ((Long) value >= target)
+					return;
+			}
+			Thread.sleep(200);
+		}
+		throw new Exception("Collector did not finish " + cycles
+				+ " cycles within " + timeoutMillis + " ms");
+	}
+
+	static long cpuTime(MBeanServerConnection conn) throws Exception {
+		return (Long) conn.getAttribute(JmxServerMonitoring.CPUTIME_OBJECTNAME,
+				"ProcessCpuTime");
+	}
+
+	static void printResults(List<StepResult> results) {
+		System.out.println();
+		System.out.println("Servers; Cycles; CycleMeanMs; CycleP50Ms; CycleP99Ms; CycleMaxMs; Overruns; Errors; Stale; CollectorCpuPercent; CollectorHeapMB");
+		for (StepResult r : results) {
+			System.out.println(r.servers + "; " + r.cycles + "; "
+					+ format(r.cycleLatency.get("meanMillis")) + "; "
+					+ format(r.cycleLatency.get("p50Millis")) + "; "
+					+ format(r.cycleLatency.get("p99Millis")) + "; "
+					+ format(r.cycleLatency.get("maxMillis")) + "; "
+					+ r.overruns + "; " + r.errors + "; " + r.stale + "; "
+					+ format(r.cpuPercent) + "; "
+					+ format(r.heapUsed / 1024. / 1024.));
+		}
+		System.out.println();
+	}
+
+	private static String format(Object value) {
+		return JmxServerMonitoring.formatDecimal(
+				JmxServerMonitoring.DECIMAL_FORMAT1, value);
+	}
+}
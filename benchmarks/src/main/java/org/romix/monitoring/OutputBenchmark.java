@@ -0,0 +1,155 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Writing one cycle with each output: console (into a discarding stream),
+ * Nagios file, CSV files, time series files and the HTTP rendering. The
+ * files are written into a temporary directory which is renewed per
+ * iteration.
+ * @author romix
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+	@Param({ "1", "10" })
+	public int servers;
+	/** Attribute values per server */
+	@Param({ "10", "100" })
+	public int attributes;
+
+	private ServerData[] serverDataArr;
+	/** Measurement time of all values, advanced per invocation */
+	private final Date time = new Date();
+	private PrintStream systemOut;
+	private File dir;
+	private CsvOutput csvOutput;
+	private TimeSeriesStore tsStore;
+	private String nagiosFile;
+
+	@Setup
+	public void setup() {
+		serverDataArr = new ServerData[servers];
+		for (int s = 0; s < servers; s++) {
+			ServerData serverData = new ServerData();
+			serverData.serverName = "srv" + s;
+			serverData.url = "srv" + s + ":7091";
+			serverData.serverNameUndUrl = serverData.serverName + "-"
+					+ serverData.url;
+			serverData.connection = new ServerConnection(serverData);
+			serverData.gcGroup = new GarbageCollectionGroup();
+			serverData.gcGroup.dateTime = time;
+			serverData.gcGroup.gcTimePercentSum = 1.5 + s;
+			serverData.gcGroup.cpuTimePercent = 12 + s;
+			for (String gcName : new String[] { "Young Generation",
+					"Old Generation" }) {
+				GarbageCollectionSingle gc = new GarbageCollectionSingle();
+				gc.gcName = gcName;
+				gc.gcCountPerPeriod = 3;
+				gc.gcTimePercent = 0.7;
+				serverData.gcGroup.gcSingles.add(gc);
+			}
+			serverData.attributes = new AttributeValueAndName[attributes];
+			for (int a = 0; a < attributes; a++) {
+				AttributeValueAndName attr = new AttributeValueAndName();
+				attr.dateTime = time;
+				attr.title = "Attribute " + a;
+				attr.attributeName = "Usage.used";
+				attr.objectName = "benchmark:type=Synthetic,name=" + a;
+				attr.value = (a % 2 == 0) ? Long.toString(1000000L * a)
+						: Double.toString(a / 3.);
+				serverData.attributes[a] = attr;
+			}
+			serverDataArr[s] = serverData.snapshot();
+		}
+		systemOut = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@Setup(Level.Iteration)
+	public void setupFiles() throws IOException {
+		dir = File.createTempFile("JmxServerMonitoring-benchmark", "");
+		dir.delete();
+		dir.mkdirs();
+		nagiosFile = new File(dir, "nagios.txt").getPath();
+		csvOutput = new CsvOutput(new File(dir, "stats.csv").getPath(), true,
+				1, 0);
+		tsStore = new TimeSeriesStore(new File(dir, "ts").getPath(), null);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDownFiles() {
+		csvOutput.close();
+		tsStore.close();
+		delete(dir);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(systemOut);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	@Benchmark
+	public void console() {
+		JmxServerMonitoring.writeConsole(serverDataArr, true, null, null, null);
+	}
+
+	@Benchmark
+	public void nagios() {
+		JmxServerMonitoring.writeNagiosFile(serverDataArr, nagiosFile, null, null);
+	}
+
+	@Benchmark
+	public void csv() {
+		csvOutput.write(serverDataArr, time.getTime());
+	}
+
+	@Benchmark
+	public void timeSeries() {
+		// Only newer samples are appended
+		time.setTime(time.getTime() + 1000);
+		tsStore.write(serverDataArr, time.getTime());
+	}
+
+	@Benchmark
+	public byte[] http() {
+		return HttpMetricsEndpoint.render(serverDataArr, null);
+	}
+}
@@ -0,0 +1,61 @@
+package org.romix.monitoring;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Reading a local JVM from its hsperfdata file (the benchmark JVM itself):
+ * the GC statistics and counters as attributes, to compare with the JMX
+ * reads of CollectBenchmark.
+ * @author romix
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PerfDataBenchmark {
+	private PerfDataFile perfData;
+	private AttributePlan[] plans;
+	private MeasurementState gcState;
+	private MeasurementState attrState;
+	/** Uptime of the monitored JVM as seen by the reads (1 s per read) */
+	private long uptimeMs;
+
+	@Setup
+	public void setup() throws Exception {
+		perfData = PerfDataFile.open(LocalAttach.ownPid());
+		if (perfData == null)
+			throw new IllegalStateException("No hsperfdata (-XX:-UsePerfData?)");
+		plans = BenchmarkServer.plans(
+				"diff; Safepoints; sun.rt.safepoints; hsperfdata",
+				"abs; Old used; sun.gc.generation.1.space.0.used; hsperfdata",
+				"abs; Classes; java.cls.loadedClasses; hsperfdata");
+		gcState = AttributePlan.newMeasurementState(null);
+		attrState = AttributePlan.newMeasurementState(plans);
+		uptimeMs = perfData.uptimeMillis();
+	}
+
+	@Benchmark
+	public GarbageCollectionGroup getGarbageCollectionGroup() throws Exception {
+		return JmxServerMonitoring.getGarbageCollectionGroup(10,
+				uptimeMs += 1000, gcState, perfData, null);
+	}
+
+	@Benchmark
+	public AttributeValueAndName[] getAttributes() throws Exception {
+		return JmxServerMonitoring.getAttributes(plans, null, null, 10,
+				uptimeMs += 1000, attrState, null, null, perfData);
+	}
+}
@@ -0,0 +1,311 @@
+package org.romix.monitoring;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.RuntimeOperationsException;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.MBeanServerForwarder;
+
+/***
+ * A simulated monitored JVM: its own MBeanServer with runtime, operating
+ * system, memory and two garbage collector MXBeans whose counters grow with
+ * the time, plus synthetic application MBeans, exposed by an RMI connector
+ * server on a loopback port (url "localhost:port" as for a real JVM).
+ *
+ * Every call of a client goes through a forwarder which adds latency
+ * (fixed plus random jitter) and fails a given share of the calls.
+ * @author romix
+ *
+ */
+class SimulatedServer {
+	/***
+	 * Injected latency and failures of the remote calls
+	 */
+	static class Faults {
+		volatile long latencyMillis;
+		volatile long jitterMillis;
+		/** Share of failing calls (0..1) */
+		volatile double failureRate;
+	}
+
+	public interface SimOperatingSystemMXBean extends OperatingSystemMXBean {
+		long getProcessCpuTime();
+	}
+
+	public interface SimMemoryMXBean {
+		MemoryUsage getHeapMemoryUsage();
+
+		MemoryUsage getNonHeapMemoryUsage();
+	}
+
+	final int port;
+	final long startMillis = System.currentTimeMillis();
+	private final Random random;
+	private final Registry registry;
+	private final JMXConnectorServer connectorServer;
+
+	/***
+	 * @param port
+	 *            port of the RMI registry
+	 * @param mbeans
+	 *            number of synthetic MBeans ("app:type=Synthetic,name=i")
+	 * @param faults
+	 * @throws Exception
+	 */
+	SimulatedServer(int port, int mbeans, final Faults faults) throws Exception {
+		this.port = port;
+		this.random = new Random(port);
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		mBeanServer.registerMBean(new SimRuntime(), new ObjectName(
+				ManagementFactory.RUNTIME_MXBEAN_NAME));
+		mBeanServer.registerMBean(new SimOperatingSystem(), new ObjectName(
+				ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME));
+		mBeanServer.registerMBean(new SimMemory(), new ObjectName(
+				ManagementFactory.MEMORY_MXBEAN_NAME));
+		mBeanServer.registerMBean(new SimGarbageCollector("G1 Young Generation",
+				2000, 8), new ObjectName(
+				ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE
+						+ ",name=G1 Young Generation"));
+		mBeanServer.registerMBean(new SimGarbageCollector("G1 Old Generation",
+				60000, 150), new ObjectName(
+				ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE
+						+ ",name=G1 Old Generation"));
+		for (int i = 0; i < mbeans; i++)
+			mBeanServer.registerMBean(new BenchmarkServer.Synthetic(
+					1000L * (i + 1)), new ObjectName(
+					"app:type=Synthetic,name=" + i));
+		registry = LocateRegistry.createRegistry(port);
+		connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+				new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"
+						+ port + "/jmxrmi"), null, mBeanServer);
+		connectorServer.setMBeanServerForwarder(newForwarder(faults));
+		connectorServer.start();
+	}
+
+	private MBeanServerForwarder newForwarder(final Faults faults) {
+		InvocationHandler handler = new InvocationHandler() {
+			MBeanServer mbs;
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable {
+				String name = method.getName();
+				if (name.equals("getMBeanServer"))
+					return mbs;
+				if (name.equals("setMBeanServer")) {
+					mbs = (MBeanServer) args[0];
+					return null;
+				}
+				long sleep = faults.latencyMillis;
+				double failure;
+				synchronized (random) {
+					if (faults.jitterMillis > 0)
+						sleep += (long) (random.nextDouble() * faults.jitterMillis);
+					failure = random.nextDouble();
+				}
+				if (sleep > 0)
+					Thread.sleep(sleep);
+				if (failure < faults.failureRate)
+					throw new RuntimeOperationsException(new RuntimeException(
+							"Injected failure"), "Injected failure in " + name);
+				try {
+					return method.invoke(mbs, args);
+				} catch (InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+			}
+		};
+		return (MBeanServerForwarder) Proxy.newProxyInstance(
+				MBeanServerForwarder.class.getClassLoader(),
+				new Class<?>[] { MBeanServerForwarder.class }, handler);
+	}
+
+	long uptime() {
+		return System.currentTimeMillis() - startMillis;
+	}
+
+	void close() {
+		try {
+			connectorServer.stop();
+		} catch (Exception ex) {/* ok */
+		}
+		try {
+			UnicastRemoteObject.unexportObject(registry, true);
+		} catch (Exception ex) {/* ok */
+		}
+	}
+
+	class SimRuntime implements RuntimeMXBean {
+		public String getName() {
+			return port + "@localhost";
+		}
+
+		public String getVmName() {
+			return "Simulated VM";
+		}
+
+		public String getVmVendor() {
+			return "romix";
+		}
+
+		public String getVmVersion() {
+			return "1.0";
+		}
+
+		public String getSpecName() {
+			return "Java Virtual Machine Specification";
+		}
+
+		public String getSpecVendor() {
+			return "romix";
+		}
+
+		public String getSpecVersion() {
+			return "1.8";
+		}
+
+		public String getManagementSpecVersion() {
+			return "1.2";
+		}
+
+		public String getClassPath() {
+			return "";
+		}
+
+		public String getLibraryPath() {
+			return "";
+		}
+
+		public boolean isBootClassPathSupported() {
+			return false;
+		}
+
+		public String getBootClassPath() {
+			throw new UnsupportedOperationException();
+		}
+
+		public List<String> getInputArguments() {
+			return Collections.emptyList();
+		}
+
+		public long getUptime() {
+			return uptime();
+		}
+
+		public long getStartTime() {
+			return startMillis;
+		}
+
+		public Map<String, String> getSystemProperties() {
+			return Collections.emptyMap();
+		}
+
+		public ObjectName getObjectName() {
+			return JmxServerMonitoring
+					.newObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+		}
+	}
+
+	class SimOperatingSystem implements SimOperatingSystemMXBean {
+		public String getName() {
+			return "Linux";
+		}
+
+		public String getArch() {
+			return "amd64";
+		}
+
+		public String getVersion() {
+			return "simulated";
+		}
+
+		public int getAvailableProcessors() {
+			return 4;
+		}
+
+		public double getSystemLoadAverage() {
+			return 1.0;
+		}
+
+		/** 5 % of all processors */
+		public long getProcessCpuTime() {
+			return uptime() * 1000000L * 4 / 20;
+		}
+
+		public ObjectName getObjectName() {
+			return JmxServerMonitoring
+					.newObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+		}
+	}
+
+	class SimMemory implements SimMemoryMXBean {
+		public MemoryUsage getHeapMemoryUsage() {
+			long used = 100000000L + (uptime() * 37 % 400000000L);
+			return new MemoryUsage(256000000L, used, 512000000L, 1024000000L);
+		}
+
+		public MemoryUsage getNonHeapMemoryUsage() {
+			return new MemoryUsage(2000000L, 60000000L, 70000000L, -1);
+		}
+	}
+
+	/***
+	 * Collector with one collection every intervalMillis, each taking
+	 * pauseMillis
+	 */
+	class SimGarbageCollector implements GarbageCollectorMXBean {
+		private final String name;
+		private final long intervalMillis;
+		private final long pauseMillis;
+
+		SimGarbageCollector(String name, long intervalMillis, long pauseMillis) {
+			this.name = name;
+			this.intervalMillis = intervalMillis;
+			this.pauseMillis = pauseMillis;
+		}
+
+		public long getCollectionCount() {
+			return uptime() / intervalMillis;
+		}
+
+		public long getCollectionTime() {
+			return getCollectionCount() * pauseMillis;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isValid() {
+			return true;
+		}
+
+		public String[] getMemoryPoolNames() {
+			return new String[] { "G1 Eden Space", "G1 Old Gen" };
+		}
+
+		public ObjectName getObjectName() {
+			return JmxServerMonitoring
+					.newObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE
+							+ ",name=" + name);
+		}
+	}
+}
@@ -4,6 +4,8 @@
 # Invoke this script with two parameters:
 # jvm_get_stat.sh path_to_csv_file field_number
 # where the CSV-file is produced by JmxServerMonitoring tool
+# (for the time series files written with 'tsdir=...' use jvm_query_stat.sh,
+# which queries values by name and time range)
 
 LOG=$1
 FIELD=$2
@@ -0,0 +1,10 @@
+#!/bin/sh
+# This is a shell script to query recorded JVM stats from the time series
+# files written by JmxServerMonitoring with 'tsdir=...'
+# Examples:
+# jvm_query_stat.sh tsdir=ts series=srv1.GarbageCollectionPercent
+# jvm_query_stat.sh tsdir=ts series=srv1.CpuTimePercent query=avg window=5m
+# jvm_query_stat.sh tsdir=ts            (lists all series)
+
+DIR=`dirname $0`
+java -cp $DIR/JmxServerMonitoring-0.1.jar org.romix.monitoring.TimeSeriesQuery "$@"
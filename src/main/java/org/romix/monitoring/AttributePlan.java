@@ -0,0 +1,196 @@
+package org.romix.monitoring;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/***
+ * Ready-to-run form of an additional attribute query (see
+ * AttributeValueAndName): the ObjectName (or pattern) is parsed, the
+ * hierarchical attribute name is split and the parameters and signature of
+ * an operation to invoke are created once at startup, so that the collection
+ * loop does neither parsing nor reflection.
+ * @author romix
+ *
+ */
+final class AttributePlan {
+	static final Map<String, Class<?>[]> PRIMITIVE_TYPEN = new HashMap<String, Class<?>[]>();
+	static {
+		PRIMITIVE_TYPEN.put("boolean", new Class<?>[] { boolean.class,
+				Boolean.class });
+		PRIMITIVE_TYPEN.put("int", new Class<?>[] { int.class, Integer.class });
+		PRIMITIVE_TYPEN.put("long", new Class<?>[] { long.class, Long.class });
+		PRIMITIVE_TYPEN.put("double", new Class<?>[] { double.class,
+				Double.class });
+	}
+
+	/** ObjectName of the counters of the hsperfdata file */
+	static final String PERFDATA = "hsperfdata";
+	static final ObjectName PERFDATA_OBJECTNAME = JmxServerMonitoring
+			.newObjectName("hsperfdata:type=PerfData");
+	/** Aggregations of the MBeans matching a pattern (see PatternAggregation) */
+	static final int AGGREGATE_NONE = 0;
+	static final int AGGREGATE_SUM = 1;
+	static final int AGGREGATE_AVG = 2;
+	static final int AGGREGATE_MAX = 3;
+	static final int AGGREGATE_TOP = 4;
+
+	/** The configured attribute query */
+	final AttributeValueAndName definition;
+	/** Measurement slot of the MBean (if the ObjectName is no pattern) */
+	final int slot;
+	/** Slot key group of the MBeans matching the pattern */
+	final int keyGroup;
+	/** MBean name or pattern */
+	final ObjectName objectName;
+	/** Counter of the hsperfdata file (the attribute name is its name) */
+	final boolean perfData;
+	/** Invocation of an operation instead of reading an attribute */
+	final boolean invoke;
+	/** First element of a name like x.y.z (the attribute to read) */
+	final String rootAttributeName;
+	/** Further elements of a name like x.y.z (keys of CompositeData) */
+	final String[] path;
+	final String methodName;
+	final Object[] methodParams;
+	final String[] methodSignature;
+	/** One of AGGREGATE_* */
+	final int aggregation;
+	/** Number of values of AGGREGATE_TOP */
+	final int topK;
+
+	private AttributePlan(AttributeValueAndName definition, int index)
+			throws MalformedObjectNameException, Exception {
+		this.definition = definition;
+		this.slot = MeasurementState.FIRST_PLAN_SLOT + index;
+		this.keyGroup = 1 + index;
+		this.perfData = definition.objectName.trim().equals(PERFDATA);
+		this.objectName = perfData ? PERFDATA_OBJECTNAME : new ObjectName(
+				definition.objectName.trim());
+		String attrName = definition.attributeName.trim();
+		this.invoke = attrName.equalsIgnoreCase("invoke");
+		String[] attrNameParts = attrName.split("\\.");
+		this.rootAttributeName = attrNameParts[0];
+		this.path = new String[attrNameParts.length - 1];
+		System.arraycopy(attrNameParts, 1, path, 0, path.length);
+		String agg = (definition.aggregation != null) ? definition.aggregation
+				.trim().toLowerCase() : "";
+		this.topK = agg.startsWith("top") ? Integer.parseInt(agg.substring(3)
+				.trim()) : 0;
+		if (agg.length() == 0)
+			this.aggregation = AGGREGATE_NONE;
+		else if (agg.equals("sum"))
+			this.aggregation = AGGREGATE_SUM;
+		else if (agg.equals("avg"))
+			this.aggregation = AGGREGATE_AVG;
+		else if (agg.equals("max"))
+			this.aggregation = AGGREGATE_MAX;
+		else if (agg.startsWith("top") && topK > 0)
+			this.aggregation = AGGREGATE_TOP;
+		else
+			throw new IllegalArgumentException("unknown aggregation '"
+					+ definition.aggregation + "' (sum, avg, max, top<K>)");
+		this.methodName = definition.methodName;
+		String[] parms = definition.methodParms;
+		if (invoke && parms != null && parms.length >= 2) {
+			methodParams = new Object[parms.length / 2];
+			methodSignature = new String[parms.length / 2];
+			for (int i = 0; i < parms.length - 1; i++) {
+				// Are parameters of primitive types?
+				Class<?>[] classForSigAndObj = PRIMITIVE_TYPEN.get(parms[i]);
+				// Classes as Parameter-Types:
+				if (classForSigAndObj == null) {
+					classForSigAndObj = new Class<?>[2];
+					try {
+						classForSigAndObj[0] = Class.forName("java.lang."
+								+ parms[i]);
+					} catch (ClassNotFoundException ex) {
+						classForSigAndObj[0] = Class.forName(parms[i]);
+					}
+					classForSigAndObj[1] = classForSigAndObj[0];
+				}
+				methodParams[i / 2] = classForSigAndObj[1].getConstructor(
+						String.class).newInstance(parms[++i]);
+				methodSignature[i / 2] = classForSigAndObj[0].getName();
+			}
+		} else {
+			methodParams = null;
+			methodSignature = null;
+		}
+	}
+
+	/***
+	 * Compile all configured attribute queries
+	 * @param attributeNames
+	 * @return
+	 * @throws Exception
+	 *            if an ObjectName or an operation parameter is invalid
+	 */
+	static AttributePlan[] compile(AttributeValueAndName[] attributeNames)
+			throws Exception {
+		if (attributeNames == null)
+			return null;
+		AttributePlan[] plans = new AttributePlan[attributeNames.length];
+		for (int i = 0; i < plans.length; i++) {
+			try {
+				plans[i] = new AttributePlan(attributeNames[i], i);
+			} catch (Exception ex) {
+				throw new Exception("Error: invalid attribute '"
+						+ attributeNames[i].title + "': " + ex, ex);
+			}
+		}
+		return plans;
+	}
+
+	/***
+	 * Empty measurement state with the fixed slots of the plans
+	 * @param plans
+	 * @return
+	 */
+	static MeasurementState newMeasurementState(AttributePlan[] plans) {
+		return new MeasurementState(MeasurementState.FIRST_PLAN_SLOT
+				+ ((plans != null) ? plans.length : 0));
+	}
+
+	/***
+	 * Can all plans be read from the hsperfdata file?
+	 * @param plans
+	 * @return
+	 */
+	static boolean allPerfData(AttributePlan[] plans) {
+		if (plans != null)
+			for (AttributePlan plan : plans)
+				if (!plan.perfData)
+					return false;
+		return true;
+	}
+
+	/***
+	 * The configured queries of compiled plans
+	 * @param plans
+	 * @return
+	 */
+	static AttributeValueAndName[] definitions(AttributePlan[] plans) {
+		if (plans == null)
+			return null;
+		AttributeValueAndName[] attributeNames = new AttributeValueAndName[plans.length];
+		for (int i = 0; i < plans.length; i++)
+			attributeNames[i] = plans[i].definition;
+		return attributeNames;
+	}
+
+	/***
+	 * Navigate from the value of the root attribute along the path x.y.z
+	 * @param rootValue
+	 * @return
+	 */
+	Object resolvePath(Object rootValue) {
+		Object obj = rootValue;
+		for (int i = 0; i < path.length; ++i) {
+			obj = ((CompositeData) obj).get(path[i]);
+		}
+		return obj;
+	}
+}
@@ -12,10 +12,31 @@ public class AttributeValueAndName {
 	static final String ERR_VALUE = "-0,1";
 	Date dateTime = new Date();
 	boolean diff;
+	/** Read interval (0 = interval of the server) */
+	int intervalSeconds;
+	/** Aggregation of the MBeans of a pattern: sum, avg, max, top<K> (null = none) */
+	String aggregation;
 	String value = ERR_VALUE;
 	String title;
 	String attributeName;
 	String objectName;
+	/** Value of a pattern: the MBean, or the aggregate ("sum", "avg", "max",
+	 * "top1", "top2", ...); null for an attribute of a single MBean */
+	String instance;
 	String methodName;
 	String[] methodParms;
+
+	/***
+	 * Numeric value as formatted for the outputs
+	 * @return NaN for error values and non-numeric values
+	 */
+	double numericValue() {
+		if (value == null || value.equals(ERR_VALUE))
+			return Double.NaN;
+		try {
+			return Double.parseDouble(value.trim().replace(',', '.'));
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,210 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Calendar;
+
+/***
+ * Reusable byte buffer for text output. Numbers and timestamps are formatted
+ * directly into the buffer, without intermediate Strings, DecimalFormat or
+ * SimpleDateFormat. Not thread-safe: each output owns its buffers.
+ * @author romix
+ *
+ */
+class ByteOutputBuffer {
+	static final byte[] LINE_SEPARATOR = System.getProperty("line.separator",
+			"\n").getBytes();
+	private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L,
+			100000L, 1000000L };
+	private final byte decimalSeparator = (byte) DecimalFormatSymbols
+			.getInstance().getDecimalSeparator();
+	private final Charset charset = Charset.defaultCharset();
+	private final byte[] digits = new byte[20];
+	private final Calendar calendar = Calendar.getInstance();
+	private final byte[] timestamp = new byte[19];
+	private long timestampSecond = Long.MIN_VALUE;
+	private ByteBuffer buf;
+
+	ByteOutputBuffer(int capacity) {
+		buf = ByteBuffer.allocate(capacity);
+	}
+
+	private void ensure(int n) {
+		if (buf.remaining() >= n)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2,
+				buf.position() + n));
+		buf.flip();
+		bigger.put(buf);
+		buf = bigger;
+	}
+
+	ByteOutputBuffer append(char c) {
+		ensure(1);
+		buf.put((byte) c);
+		return this;
+	}
+
+	ByteOutputBuffer append(byte[] bytes) {
+		ensure(bytes.length);
+		buf.put(bytes);
+		return this;
+	}
+
+	/***
+	 * Append a String (in the platform encoding)
+	 * @param s
+	 * @return
+	 */
+	ByteOutputBuffer append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// Not plain ASCII: let the charset encode it
+				buf.position(buf.position() - i);
+				return append(s.getBytes(charset));
+			}
+			buf.put((byte) c);
+		}
+		return this;
+	}
+
+	/***
+	 * Append a value for a single line: line breaks are replaced by ". "
+	 * @param s
+	 * @return
+	 */
+	ByteOutputBuffer appendValue(String s) {
+		int start = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c != '\r' && c != '\n')
+				continue;
+			append(s.substring(start, i)).append('.').append(' ');
+			if (c == '\r' && i + 1 < n && s.charAt(i + 1) == '\n')
+				i++;
+			start = i + 1;
+		}
+		return (start == 0) ? append(s) : append(s.substring(start));
+	}
+
+	ByteOutputBuffer append(long v) {
+		if (v == Long.MIN_VALUE)
+			return append(Long.toString(v));
+		ensure(20);
+		if (v < 0) {
+			buf.put((byte) '-');
+			v = -v;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v > 0);
+		buf.put(digits, i, digits.length - i);
+		return this;
+	}
+
+	/***
+	 * Append a number with a fixed number of decimals (like DecimalFormat
+	 * "0.0", with the decimal separator of the default locale)
+	 * @param v
+	 * @param decimals
+	 *            0..6
+	 * @return
+	 */
+	ByteOutputBuffer appendDecimal(double v, int decimals) {
+		if (Double.isNaN(v) || Double.isInfinite(v)
+				|| Math.abs(v) >= Long.MAX_VALUE / POW10[decimals])
+			return append(Double.toString(v));
+		if (v < 0)
+			append('-');
+		long scaled = Math.round(Math.abs(v) * POW10[decimals]);
+		append(scaled / POW10[decimals]);
+		if (decimals > 0) {
+			ensure(decimals + 1);
+			buf.put(decimalSeparator);
+			long fraction = scaled % POW10[decimals];
+			for (int d = decimals - 1; d >= 0; d--)
+				buf.put((byte) ('0' + (fraction / POW10[d]) % 10));
+		}
+		return this;
+	}
+
+	/***
+	 * Append a timestamp as "yyyy-MM-dd HH:mm:ss" (default time zone)
+	 * @param millis
+	 * @return
+	 */
+	ByteOutputBuffer appendTimestamp(long millis) {
+		long second = Math.floorDiv(millis, 1000L);
+		if (second != timestampSecond) {
+			timestampSecond = second;
+			calendar.setTimeInMillis(millis);
+			put4(0, calendar.get(Calendar.YEAR));
+			timestamp[4] = '-';
+			put2(5, calendar.get(Calendar.MONTH) + 1);
+			timestamp[7] = '-';
+			put2(8, calendar.get(Calendar.DAY_OF_MONTH));
+			timestamp[10] = ' ';
+			put2(11, calendar.get(Calendar.HOUR_OF_DAY));
+			timestamp[13] = ':';
+			put2(14, calendar.get(Calendar.MINUTE));
+			timestamp[16] = ':';
+			put2(17, calendar.get(Calendar.SECOND));
+		}
+		return append(timestamp);
+	}
+
+	private void put2(int pos, int v) {
+		timestamp[pos] = (byte) ('0' + v / 10);
+		timestamp[pos + 1] = (byte) ('0' + v % 10);
+	}
+
+	private void put4(int pos, int v) {
+		put2(pos, v / 100);
+		put2(pos + 2, v % 100);
+	}
+
+	ByteOutputBuffer newLine() {
+		return append(LINE_SEPARATOR);
+	}
+
+	int size() {
+		return buf.position();
+	}
+
+	void reset() {
+		buf.clear();
+	}
+
+	/***
+	 * Write the whole content to a channel and empty the buffer
+	 * @param channel
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	int writeTo(WritableByteChannel channel) throws IOException {
+		buf.flip();
+		int n = buf.remaining();
+		try {
+			while (buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			buf.clear();
+		}
+		return n;
+	}
+
+	byte[] toByteArray() {
+		byte[] bytes = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,84 @@
+package org.romix.monitoring;
+
+import java.util.Random;
+
+/***
+ * Circuit breaker of the connection to a single server.
+ *
+ * After a connection failure the circuit is open: the server is not polled
+ * any more and costs nothing in the collection loop. When the backoff has
+ * passed, a probe (in its own thread, see JmxServerMonitoring.probeServers)
+ * tries to reconnect; if it succeeds, the circuit is closed and the server
+ * is polled again, otherwise the backoff is doubled up to a maximum. The
+ * backoffs have a random jitter (between half and the full backoff), so that
+ * many servers which failed together are not probed together.
+ * @author romix
+ *
+ */
+class CircuitBreaker {
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int PROBING = 2;
+
+	private final Random random = new Random();
+	/** Backoff after the first failure */
+	long baseBackoffMillis = 10000;
+	long maxBackoffMillis = 300000;
+	private int state = CLOSED;
+	/** Connection failures since the last successful connect */
+	private int failures;
+	private long nextProbeMillis;
+
+	synchronized boolean isClosed() {
+		return state == CLOSED;
+	}
+
+	synchronized int state() {
+		return state;
+	}
+
+	synchronized int failures() {
+		return failures;
+	}
+
+	synchronized long nextProbeMillis() {
+		return nextProbeMillis;
+	}
+
+	/***
+	 * Is a probe due? If so, the circuit changes into PROBING until the
+	 * result of the probe is reported.
+	 * @param now
+	 * @return
+	 */
+	synchronized boolean startProbe(long now) {
+		if (state != OPEN || now < nextProbeMillis)
+			return false;
+		state = PROBING;
+		return true;
+	}
+
+	/***
+	 * The server could be reached: close the circuit
+	 */
+	synchronized void success() {
+		state = CLOSED;
+		failures = 0;
+	}
+
+	/***
+	 * Connection failure: open the circuit with the next backoff
+	 * @param now
+	 * @return backoff in milliseconds
+	 */
+	synchronized long failure(long now) {
+		failures++;
+		long backoff = baseBackoffMillis << Math.min(failures - 1, 20);
+		if (backoff <= 0 || backoff > maxBackoffMillis)
+			backoff = maxBackoffMillis;
+		backoff = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+		state = OPEN;
+		nextProbeMillis = now + backoff;
+		return backoff;
+	}
+}
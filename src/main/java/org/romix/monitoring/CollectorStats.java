@@ -0,0 +1,275 @@
+package org.romix.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/***
+ * The collector's own statistics: latencies of the remote calls per phase
+ * and per server, the duration of the outputs, cycle overruns, errors and
+ * bytes written.
+ *
+ * The hooks take a start time from System.nanoTime() and record the elapsed
+ * time into a LogHistogram; they may be called from the collector and the
+ * output threads at the same time (each histogram is locked only while a
+ * single value is recorded). There is one instance per JVM, registered in
+ * the platform MBeanServer, so the tool can monitor itself.
+ * @author romix
+ *
+ */
+class CollectorStats implements CollectorStatsMXBean {
+	static final String OBJECT_NAME = "org.romix.monitoring:type=Collector";
+	static final CollectorStats STATS = new CollectorStats();
+
+	// Phases
+	static final int CONNECT = 0;
+	static final int QUERY_NAMES = 1;
+	static final int GET_ATTRIBUTES = 2;
+	static final int INVOKE = 3;
+	static final int GC_READ = 4;
+	static final int SERVER = 5;
+	static final int CYCLE = 6;
+
+	private final LogHistogram[] phases = new LogHistogram[CYCLE + 1];
+	private final ConcurrentMap<String, LogHistogram> servers = new ConcurrentHashMap<String, LogHistogram>();
+	private final ConcurrentMap<String, LogHistogram> outputs = new ConcurrentHashMap<String, LogHistogram>();
+	private final ConcurrentMap<String, AtomicLong> outputBytes = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong staleCount = new AtomicLong();
+	private volatile long cycles;
+	private volatile long overruns;
+	private volatile long overrunMillis;
+
+	CollectorStats() {
+		for (int i = 0; i < phases.length; i++)
+			phases[i] = new LogHistogram();
+	}
+
+	/***
+	 * Register in the platform MBeanServer (errors are only reported)
+	 */
+	void register() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+						name);
+		} catch (Exception ex) {
+			System.out.println("Error registering MBean " + OBJECT_NAME + ": "
+					+ ex);
+		}
+	}
+
+	/***
+	 * A phase has finished
+	 * @param phase
+	 * @param startNanos
+	 *            System.nanoTime() at the start of the phase
+	 */
+	void record(int phase, long startNanos) {
+		record(phases[phase], startNanos);
+	}
+
+	/***
+	 * All reads of a server have finished
+	 * @param serverName
+	 * @param startNanos
+	 */
+	void recordServer(String serverName, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		recordNanos(phases[SERVER], nanos);
+		recordNanos(histogram(servers, serverName), nanos);
+	}
+
+	/***
+	 * Drop the latencies of the servers which are gone (discovered JVMs)
+	 * @param serverDataArr the current servers
+	 */
+	void retainServers(ServerData[] serverDataArr) {
+		Set<String> serverNames = new HashSet<String>();
+		for (ServerData serverData : serverDataArr)
+			serverNames.add(serverData.serverName);
+		servers.keySet().retainAll(serverNames);
+	}
+
+	/***
+	 * An output has written a cycle
+	 * @param sinkName
+	 * @param startNanos
+	 */
+	void recordOutput(String sinkName, long startNanos) {
+		record(histogram(outputs, sinkName), startNanos);
+	}
+
+	/***
+	 * The loop has collected and published a cycle
+	 * @param startNanos
+	 * @param periodMillis
+	 */
+	void recordCycle(long startNanos, long periodMillis) {
+		long nanos = System.nanoTime() - startNanos;
+		recordNanos(phases[CYCLE], nanos);
+		cycles++;
+		long overrun = nanos / 1000000 - periodMillis;
+		if (overrun > 0) {
+			overruns++;
+			overrunMillis += overrun;
+		}
+	}
+
+	void addOutputBytes(String sinkName, long bytes) {
+		if (bytes > 0)
+			counter(outputBytes, sinkName).addAndGet(bytes);
+	}
+
+	void error(Throwable ex) {
+		counter(errors, ex.getClass().getName()).incrementAndGet();
+	}
+
+	void stale() {
+		staleCount.incrementAndGet();
+	}
+
+	private static void record(LogHistogram histogram, long startNanos) {
+		recordNanos(histogram, System.nanoTime() - startNanos);
+	}
+
+	private static void recordNanos(LogHistogram histogram, long nanos) {
+		synchronized (histogram) {
+			histogram.record(nanos / 1e6);
+		}
+	}
+
+	private static LogHistogram histogram(
+			ConcurrentMap<String, LogHistogram> map, String key) {
+		LogHistogram histogram = map.get(key);
+		if (histogram == null) {
+			LogHistogram other = map.putIfAbsent(key,
+					histogram = new LogHistogram());
+			if (other != null)
+				histogram = other;
+		}
+		return histogram;
+	}
+
+	private static AtomicLong counter(ConcurrentMap<String, AtomicLong> map,
+			String key) {
+		AtomicLong counter = map.get(key);
+		if (counter == null) {
+			AtomicLong other = map.putIfAbsent(key, counter = new AtomicLong());
+			if (other != null)
+				counter = other;
+		}
+		return counter;
+	}
+
+	private static LatencySummary summary(LogHistogram histogram) {
+		synchronized (histogram) {
+			return new LatencySummary(histogram);
+		}
+	}
+
+	private static Map<String, LatencySummary> summaries(
+			Map<String, LogHistogram> map) {
+		Map<String, LatencySummary> result = new TreeMap<String, LatencySummary>();
+		for (Map.Entry<String, LogHistogram> entry : map.entrySet())
+			result.put(entry.getKey(), summary(entry.getValue()));
+		return result;
+	}
+
+	private static Map<String, Long> values(Map<String, AtomicLong> map) {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : map.entrySet())
+			result.put(entry.getKey(), entry.getValue().get());
+		return result;
+	}
+
+	public LatencySummary getConnectLatency() {
+		return summary(phases[CONNECT]);
+	}
+
+	public LatencySummary getQueryNamesLatency() {
+		return summary(phases[QUERY_NAMES]);
+	}
+
+	public LatencySummary getGetAttributesLatency() {
+		return summary(phases[GET_ATTRIBUTES]);
+	}
+
+	public LatencySummary getInvokeLatency() {
+		return summary(phases[INVOKE]);
+	}
+
+	public LatencySummary getGcReadLatency() {
+		return summary(phases[GC_READ]);
+	}
+
+	public LatencySummary getServerLatency() {
+		return summary(phases[SERVER]);
+	}
+
+	public LatencySummary getCycleLatency() {
+		return summary(phases[CYCLE]);
+	}
+
+	public Map<String, LatencySummary> getServerLatencies() {
+		return summaries(servers);
+	}
+
+	public Map<String, LatencySummary> getOutputLatencies() {
+		return summaries(outputs);
+	}
+
+	public Map<String, Long> getOutputBytes() {
+		return values(outputBytes);
+	}
+
+	public Map<String, Long> getErrors() {
+		return values(errors);
+	}
+
+	public long getErrorCount() {
+		long sum = 0;
+		for (AtomicLong counter : errors.values())
+			sum += counter.get();
+		return sum;
+	}
+
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	public long getCycles() {
+		return cycles;
+	}
+
+	public long getOverruns() {
+		return overruns;
+	}
+
+	public long getOverrunMillis() {
+		return overrunMillis;
+	}
+
+	public void resetStatistics() {
+		for (LogHistogram histogram : phases) {
+			synchronized (histogram) {
+				histogram.reset();
+			}
+		}
+		servers.clear();
+		outputs.clear();
+		outputBytes.clear();
+		errors.clear();
+		staleCount.set(0);
+		cycles = 0;
+		overruns = 0;
+		overrunMillis = 0;
+	}
+}
@@ -0,0 +1,66 @@
+package org.romix.monitoring;
+
+import java.util.Map;
+
+/***
+ * Management interface of the collector's own statistics, registered as
+ * "org.romix.monitoring:type=Collector" in the platform MBeanServer.
+ *
+ * Latencies are in milliseconds and cover the time since the start or the
+ * last resetStatistics(). The single latencies can be read by the tool
+ * itself with compound attribute names, e.g.
+ * "attr1=; Cycle p99; CycleLatency.p99Millis; org.romix.monitoring:type=Collector".
+ * Must be public for the MXBean introspection.
+ * @author romix
+ *
+ */
+public interface CollectorStatsMXBean {
+	/** Opening a JMX connection */
+	LatencySummary getConnectLatency();
+
+	/** Resolving ObjectName patterns (including cache hits) */
+	LatencySummary getQueryNamesLatency();
+
+	/** One getAttributes() call for one MBean */
+	LatencySummary getGetAttributesLatency();
+
+	/** One invocation of an MBean operation */
+	LatencySummary getInvokeLatency();
+
+	/** GC statistics and CPU time of one server */
+	LatencySummary getGcReadLatency();
+
+	/** All reads of one server in one cycle */
+	LatencySummary getServerLatency();
+
+	/** Collection of all servers and hand-over to the outputs */
+	LatencySummary getCycleLatency();
+
+	/** All reads of one server in one cycle, by server name */
+	Map<String, LatencySummary> getServerLatencies();
+
+	/** Writing one cycle, by output name */
+	Map<String, LatencySummary> getOutputLatencies();
+
+	/** Bytes written by the file and HTTP outputs, by output name */
+	Map<String, Long> getOutputBytes();
+
+	/** Number of errors, by exception class */
+	Map<String, Long> getErrors();
+
+	long getErrorCount();
+
+	/** Servers without a result within the cycle deadline */
+	long getStaleCount();
+
+	long getCycles();
+
+	/** Cycles which took longer than periodseconds */
+	long getOverruns();
+
+	/** Sum of the time by which the cycles exceeded periodseconds */
+	long getOverrunMillis();
+
+	/** Start all statistics from scratch */
+	void resetStatistics();
+}
@@ -0,0 +1,79 @@
+package org.romix.monitoring;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/***
+ * A CSV file which stays open over all cycles. Lines are collected in a
+ * reusable buffer and written to the file according to the flush policy:
+ * after every n-th cycle or after a given time.
+ * @author romix
+ *
+ */
+class CsvFileWriter {
+	final String fileName;
+	final ByteOutputBuffer buffer = new ByteOutputBuffer(4096);
+	/** The file was empty when it was opened (header required) */
+	final boolean isNew;
+	private final FileChannel channel;
+	private final int flushCycles;
+	private final long flushMillis;
+	private int pendingCycles;
+	private long lastFlush = System.currentTimeMillis();
+	/** Total number of bytes written into the file */
+	long bytesWritten;
+
+	/***
+	 * @param fileName
+	 * @param flushCycles
+	 *            write after each n-th cycle (if flushMillis is 0)
+	 * @param flushMillis
+	 *            write when the given time has passed since the last write
+	 * @throws IOException
+	 */
+	CsvFileWriter(String fileName, int flushCycles, long flushMillis)
+			throws IOException {
+		this.fileName = fileName;
+		this.flushCycles = Math.max(flushCycles, 1);
+		this.flushMillis = flushMillis;
+		this.channel = new FileOutputStream(fileName, true).getChannel();
+		this.isNew = channel.size() == 0;
+	}
+
+	/***
+	 * The lines of one cycle are complete: write them if required by the
+	 * flush policy
+	 * @throws IOException
+	 */
+	void endCycle() throws IOException {
+		pendingCycles++;
+		if (flushMillis > 0) {
+			if (System.currentTimeMillis() - lastFlush >= flushMillis)
+				flush();
+		} else if (pendingCycles >= flushCycles) {
+			flush();
+		}
+	}
+
+	void flush() throws IOException {
+		pendingCycles = 0;
+		lastFlush = System.currentTimeMillis();
+		if (buffer.size() > 0)
+			bytesWritten += buffer.writeTo(channel);
+	}
+
+	void close() {
+		try {
+			flush();
+		} catch (IOException ex) {
+			System.out.println("Error writing the CSV-file '" + fileName
+					+ "': " + ex);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ex) {/* ok */
+			}
+		}
+	}
+}
@@ -0,0 +1,477 @@
+package org.romix.monitoring;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/***
+ * Output into CSV-files (Comma Separated Values, e.g. for Excel).
+ * The files are opened once and kept open; see CsvFileWriter for the flush
+ * policy.
+ * @author romix
+ *
+ */
+class CsvOutput {
+	private final String csvFile;
+	private final boolean writeAllGcValues;
+	private final int flushCycles;
+	private final long flushMillis;
+	private CsvFileWriter allServersWriter;
+	/** Servers of the last header of the common file */
+	private String allServersHeader;
+	/** Writers of the per-server files by server URL */
+	private final Map<String, CsvFileWriter> perServerWriters = new HashMap<String, CsvFileWriter>();
+	private CsvFileWriter histogramWriter;
+	/** Writers of the per-server GC notification files by server URL */
+	private final Map<String, CsvFileWriter> gcPauseWriters = new HashMap<String, CsvFileWriter>();
+	/** Writers of the per-server hot thread files by server URL */
+	private final Map<String, CsvFileWriter> hotThreadWriters = new HashMap<String, CsvFileWriter>();
+	/** GC values written last per server URL (kept while not read again) */
+	private final Map<String, GarbageCollectionGroup> writtenGcValues = new HashMap<String, GarbageCollectionGroup>();
+	private final Map<String, GarbageCollectionGroup> writtenGcPauses = new HashMap<String, GarbageCollectionGroup>();
+	/** Hot threads written last per server URL (kept while not read again) */
+	private final Map<String, HotThreads> writtenHotThreads = new HashMap<String, HotThreads>();
+
+	CsvOutput(String csvFile, boolean writeAllGcValues, int flushCycles,
+			long flushMillis) {
+		this.csvFile = csvFile;
+		this.writeAllGcValues = writeAllGcValues;
+		this.flushCycles = flushCycles;
+		this.flushMillis = flushMillis;
+	}
+
+	/***
+	 * Write the results of one cycle
+	 * @param serverDataArr
+	 * @param cycleMillis
+	 */
+	synchronized void write(ServerData[] serverDataArr, long cycleMillis) {
+		closeDepartedServers(serverDataArr);
+		writeCsvFileOneForAllServers(serverDataArr, cycleMillis);
+		writeCsvFilePerServerWithDifferentGcValues(serverDataArr);
+		writeCsvFilePerServerWithGcPauses(serverDataArr);
+		writeCsvFilePerServerWithHotThreads(serverDataArr);
+	}
+
+	/***
+	 * Close the files of the servers which are gone (discovered JVMs)
+	 * @param serverDataArr
+	 */
+	private void closeDepartedServers(ServerData[] serverDataArr) {
+		if (serverDataArr == null)
+			return;
+		Set<String> urls = new HashSet<String>();
+		for (ServerData serverData : serverDataArr)
+			if (serverData != null)
+				urls.add(serverData.url);
+		closeWriters(perServerWriters, urls);
+		closeWriters(gcPauseWriters, urls);
+		closeWriters(hotThreadWriters, urls);
+		writtenGcValues.keySet().retainAll(urls);
+		writtenGcPauses.keySet().retainAll(urls);
+		writtenHotThreads.keySet().retainAll(urls);
+	}
+
+	private static void closeWriters(Map<String, CsvFileWriter> writers,
+			Set<String> urls) {
+		for (Iterator<Map.Entry<String, CsvFileWriter>> it = writers
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, CsvFileWriter> writer = it.next();
+			if (!urls.contains(writer.getKey())) {
+				writer.getValue().close();
+				it.remove();
+			}
+		}
+	}
+
+	/***
+	 * Output into a single CSV-file:
+	 * Use a common CSV-file for all Servers (GC: only with summary values)
+	 * @param serverDataArr
+	 * @param cycleMillis
+	 */
+	void writeCsvFileOneForAllServers(ServerData[] serverDataArr,
+			long cycleMillis) {
+		if (serverDataArr == null || serverDataArr.length <= 0
+				|| csvFile == null || csvFile.trim().length() <= 0)
+			return;
+		CsvFileWriter writer = allServersWriter;
+		try {
+			if (writer == null) {
+				writer = new CsvFileWriter(csvFile, flushCycles, flushMillis);
+				allServersWriter = writer;
+				if (writer.isNew)
+					writeHeaderOneForAllServers(serverDataArr, writer.buffer);
+				allServersHeader = serverNames(serverDataArr);
+			}
+			// A changed set of servers (local JVMs) gets a new header line
+			String servers = serverNames(serverDataArr);
+			if (!servers.equals(allServersHeader)) {
+				writeHeaderOneForAllServers(serverDataArr, writer.buffer);
+				allServersHeader = servers;
+			}
+			ByteOutputBuffer out = writer.buffer;
+			out.appendTimestamp(cycleMillis).append(';');
+			for (ServerData serverData : serverDataArr) {
+				double d = (serverData != null && serverData.gcGroup != null) ? serverData.gcGroup.gcTimePercentSum
+						: -0.1;
+				out.append(' ').appendDecimal(d, 1).append(';');
+			}
+			for (ServerData serverData : serverDataArr) {
+				if (serverData != null && serverData.gcGroup != null)
+					out.append(' ').append(serverData.gcGroup.cpuTimePercent);
+				else
+					out.append(" -0.1");
+				out.append(';');
+			}
+			for (ServerData serverData : serverDataArr) {
+				if (serverData != null && serverData.attributes != null) {
+					for (AttributeValueAndName attr : serverData.attributes) {
+						out.append(' ').appendValue(attr.value).append(';');
+					}
+				}
+			}
+			out.newLine();
+			writer.endCycle();
+		} catch (Exception exWrite) {
+			System.out.println("Error writing the CSV-file '" + csvFile + "': "
+					+ exWrite);
+			if (writer != null)
+				writer.close();
+			allServersWriter = null;
+		}
+	}
+
+	private static String serverNames(ServerData[] serverDataArr) {
+		StringBuilder sb = new StringBuilder();
+		for (ServerData serverData : serverDataArr)
+			sb.append((serverData != null) ? serverData.serverName : "?")
+					.append(';');
+		return sb.toString();
+	}
+
+	private static void writeHeaderOneForAllServers(
+			ServerData[] serverDataArr, ByteOutputBuffer out) {
+		out.append("Date/Time;");
+		for (ServerData serverData : serverDataArr) {
+			out.append(' ')
+					.append((serverData != null) ? ("GC-" + serverData.serverName)
+							: "?").append(';');
+		}
+		for (ServerData serverData : serverDataArr) {
+			out.append(' ')
+					.append((serverData != null) ? ("CPU-" + serverData.serverName)
+							: "?").append(';');
+		}
+		for (ServerData serverData : serverDataArr) {
+			if (serverData != null && serverData.attributes != null) {
+				for (AttributeValueAndName attr : serverData.attributes) {
+					out.append(' ').append(attr.title).append('-')
+							.append(serverData.serverName).append(';');
+				}
+			}
+		}
+		out.newLine();
+	}
+
+	/***
+	 * Output into multiple CSV-files:
+	 * Output a separate CSV-file per server with all collected GC-values
+	 * @param serverDataArr
+	 */
+	void writeCsvFilePerServerWithDifferentGcValues(ServerData[] serverDataArr) {
+		if (!writeAllGcValues || serverDataArr == null
+				|| serverDataArr.length <= 0 || csvFile == null
+				|| csvFile.trim().length() <= 0)
+			return;
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.gcSingles == null
+					|| serverData.gcGroup.gcSingles.size() <= 0
+					|| writtenGcValues.get(serverData.url) == serverData.gcGroup)
+				continue;
+			writtenGcValues.put(serverData.url, serverData.gcGroup);
+			CsvFileWriter writer = perServerWriters.get(serverData.url);
+			String csvFileMitUrl = (writer != null) ? writer.fileName
+					: perServerFileName(csvFile, serverData);
+			try {
+				if (writer == null) {
+					writer = new CsvFileWriter(csvFileMitUrl, flushCycles,
+							flushMillis);
+					perServerWriters.put(serverData.url, writer);
+					if (writer.isNew)
+						writeHeaderPerServer(serverData.gcGroup, writer.buffer);
+				}
+				ByteOutputBuffer out = writer.buffer;
+				out.appendTimestamp(serverData.gcGroup.dateTime.getTime())
+						.append("; ");
+				for (GarbageCollectionSingle gcSingle : serverData.gcGroup.gcSingles) {
+					out.append(gcSingle.gcCountPerPeriod).append("; ")
+							.appendDecimal(gcSingle.gcTimePercent, 1)
+							.append("; ");
+				}
+				out.appendDecimal(serverData.gcGroup.gcTimePercentSum, 1)
+						.append("; ");
+				out.newLine();
+				writer.endCycle();
+			} catch (Exception exWrite) {
+				System.out.println("Error writing the CSV-file '"
+						+ csvFileMitUrl + "': " + exWrite);
+				if (writer != null)
+					writer.close();
+				perServerWriters.remove(serverData.url);
+			}
+		}
+	}
+
+	static String perServerFileName(String csvFileOhneUrl,
+			ServerData serverData) {
+		return insertIntoFileName(csvFileOhneUrl,
+				"-" + serverData.url.replace(':', '.'));
+	}
+
+	private static String insertIntoFileName(String fileName, String insert) {
+		int e = fileName.lastIndexOf('.');
+		return (e > 0 && e < fileName.length() - 1) ? fileName.substring(0, e)
+				+ insert + fileName.substring(e) : fileName + insert + ".csv";
+	}
+
+	/***
+	 * Output of the single collections reported by GC notifications:
+	 * a separate CSV-file per server with one line per collection
+	 * @param serverDataArr
+	 */
+	void writeCsvFilePerServerWithGcPauses(ServerData[] serverDataArr) {
+		if (serverDataArr == null || csvFile == null
+				|| csvFile.trim().length() <= 0)
+			return;
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.gcPauses == null
+					|| writtenGcPauses.get(serverData.url) == serverData.gcGroup)
+				continue;
+			writtenGcPauses.put(serverData.url, serverData.gcGroup);
+			CsvFileWriter writer = gcPauseWriters.get(serverData.url);
+			String fileName = (writer != null) ? writer.fileName
+					: perServerFileName(
+							insertIntoFileName(csvFile, "-gcpauses"),
+							serverData);
+			try {
+				if (writer == null) {
+					writer = new CsvFileWriter(fileName, flushCycles,
+							flushMillis);
+					gcPauseWriters.put(serverData.url, writer);
+					if (writer.isNew) {
+						writer.buffer.append("Date/Time; Collector; Action; Cause; "
+								+ "DurationMs; UsedBeforeKB; UsedAfterKB; Pools;");
+						writer.buffer.newLine();
+					}
+				}
+				ByteOutputBuffer out = writer.buffer;
+				for (GcPause pause : serverData.gcGroup.gcPauses) {
+					out.appendTimestamp(pause.startMillis).append("; ")
+							.append(pause.gcName).append("; ")
+							.append(pause.gcAction).append("; ")
+							.append(pause.gcCause).append("; ")
+							.append(pause.durationMillis).append("; ")
+							.append(pause.usedBeforeSum() / 1024).append("; ")
+							.append(pause.usedAfterSum() / 1024).append("; ");
+					String separator = "";
+					for (Map.Entry<String, Long> pool : pause.usedBefore
+							.entrySet()) {
+						Long after = pause.usedAfter.get(pool.getKey());
+						out.append(separator).append(pool.getKey()).append(' ')
+								.append(pool.getValue() / 1024).append("->")
+								.append((after != null) ? after / 1024 : 0)
+								.append(" KB");
+						separator = ", ";
+					}
+					out.append(';').newLine();
+				}
+				writer.endCycle();
+			} catch (Exception exWrite) {
+				System.out.println("Error writing the CSV-file '" + fileName
+						+ "': " + exWrite);
+				if (writer != null)
+					writer.close();
+				gcPauseWriters.remove(serverData.url);
+			}
+		}
+	}
+
+	/***
+	 * Output of the top-N threads: a separate CSV-file per server with one
+	 * line per thread and metric
+	 * @param serverDataArr
+	 */
+	void writeCsvFilePerServerWithHotThreads(ServerData[] serverDataArr) {
+		if (serverDataArr == null || csvFile == null
+				|| csvFile.trim().length() <= 0)
+			return;
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.hotThreads == null
+					|| writtenHotThreads.get(serverData.url) == serverData.gcGroup.hotThreads)
+				continue;
+			HotThreads hotThreads = serverData.gcGroup.hotThreads;
+			writtenHotThreads.put(serverData.url, hotThreads);
+			CsvFileWriter writer = hotThreadWriters.get(serverData.url);
+			String fileName = (writer != null) ? writer.fileName
+					: perServerFileName(
+							insertIntoFileName(csvFile, "-threads"),
+							serverData);
+			try {
+				if (writer == null) {
+					writer = new CsvFileWriter(fileName, flushCycles,
+							flushMillis);
+					hotThreadWriters.put(serverData.url, writer);
+					if (writer.isNew) {
+						writer.buffer.append("Date/Time; Metric; Rank; "
+								+ "ThreadId; Thread; Value;");
+						writer.buffer.newLine();
+					}
+				}
+				ByteOutputBuffer out = writer.buffer;
+				long time = serverData.gcGroup.dateTime.getTime();
+				for (int i = 0; i < hotThreads.byCpu.length; i++) {
+					HotThread hotThread = hotThreads.byCpu[i];
+					out.appendTimestamp(time).append("; CpuPercent; ")
+							.append(i + 1).append("; ")
+							.append(hotThread.threadId).append("; ")
+							.appendValue(hotThread.threadName).append("; ")
+							.appendDecimal(hotThread.cpuPercent, 1).append(';')
+							.newLine();
+				}
+				for (int i = 0; hotThreads.byAllocation != null
+						&& i < hotThreads.byAllocation.length; i++) {
+					HotThread hotThread = hotThreads.byAllocation[i];
+					out.appendTimestamp(time)
+							.append("; AllocatedBytesPerSecond; ")
+							.append(i + 1).append("; ")
+							.append(hotThread.threadId).append("; ")
+							.appendValue(hotThread.threadName).append("; ")
+							.append(hotThread.allocatedBytesPerSecond)
+							.append(';').newLine();
+				}
+				writer.endCycle();
+			} catch (Exception exWrite) {
+				System.out.println("Error writing the CSV-file '" + fileName
+						+ "': " + exWrite);
+				if (writer != null)
+					writer.close();
+				hotThreadWriters.remove(serverData.url);
+			}
+		}
+	}
+
+	private static void writeHeaderPerServer(GarbageCollectionGroup gcGroup,
+			ByteOutputBuffer out) {
+		out.append("Datum/Zeit; ");
+		for (GarbageCollectionSingle gcSingle : gcGroup.gcSingles) {
+			int n;
+			String s = gcSingle.gcName;
+			if (s == null)
+				s = "";
+			if ((n = s.lastIndexOf(" Collector")) > 1)
+				s = s.substring(0, n);
+			s = s.trim();
+			if (s.length() > 0)
+				s = s + "-";
+			out.append(s + "CountPerPeriod; " + s + "TimePercent; ");
+		}
+		out.append("TimePercentSum;");
+		out.newLine();
+	}
+
+	/***
+	 * Output of the value distributions of a window into a separate
+	 * CSV-file, one line per server and metric
+	 * @param window
+	 */
+	synchronized void writeHistograms(HistogramWindow window) {
+		if (csvFile == null || csvFile.trim().length() <= 0)
+			return;
+		CsvFileWriter writer = histogramWriter;
+		String fileName = insertIntoFileName(csvFile, "-histograms");
+		try {
+			if (writer == null) {
+				writer = new CsvFileWriter(fileName, flushCycles, flushMillis);
+				histogramWriter = writer;
+				if (writer.isNew) {
+					writer.buffer.append("WindowStart; WindowEnd; Server; Metric; "
+							+ "Count; Min; P50; P90; P99; P99.9; Max; Mean;");
+					writer.buffer.newLine();
+				}
+			}
+			ByteOutputBuffer out = writer.buffer;
+			for (HistogramWindow.Summary summary : window.summaries) {
+				out.appendTimestamp(window.startMillis).append("; ")
+						.appendTimestamp(window.endMillis).append("; ")
+						.append((summary.serverName != null) ? summary.serverName
+								: "*").append("; ")
+						.appendValue(summary.qualifiedMetric()).append("; ")
+						.append(summary.count).append("; ")
+						.appendDecimal(summary.min, 2).append("; ")
+						.appendDecimal(summary.p50, 2).append("; ")
+						.appendDecimal(summary.p90, 2).append("; ")
+						.appendDecimal(summary.p99, 2).append("; ")
+						.appendDecimal(summary.p999, 2).append("; ")
+						.appendDecimal(summary.max, 2).append("; ")
+						.appendDecimal(summary.mean, 2).append(';').newLine();
+			}
+			writer.endCycle();
+		} catch (Exception exWrite) {
+			System.out.println("Error writing the CSV-file '" + fileName
+					+ "': " + exWrite);
+			if (writer != null)
+				writer.close();
+			histogramWriter = null;
+		}
+	}
+
+	/***
+	 * Bytes written so far into the open files
+	 * @return
+	 */
+	synchronized long bytesWritten() {
+		long bytes = 0;
+		if (allServersWriter != null)
+			bytes += allServersWriter.bytesWritten;
+		for (CsvFileWriter writer : perServerWriters.values())
+			bytes += writer.bytesWritten;
+		if (histogramWriter != null)
+			bytes += histogramWriter.bytesWritten;
+		for (CsvFileWriter writer : gcPauseWriters.values())
+			bytes += writer.bytesWritten;
+		for (CsvFileWriter writer : hotThreadWriters.values())
+			bytes += writer.bytesWritten;
+		return bytes;
+	}
+
+	/***
+	 * Write all pending lines and close the files
+	 */
+	synchronized void close() {
+		if (allServersWriter != null)
+			allServersWriter.close();
+		allServersWriter = null;
+		allServersHeader = null;
+		for (CsvFileWriter writer : perServerWriters.values())
+			writer.close();
+		perServerWriters.clear();
+		if (histogramWriter != null)
+			histogramWriter.close();
+		histogramWriter = null;
+		for (CsvFileWriter writer : gcPauseWriters.values())
+			writer.close();
+		gcPauseWriters.clear();
+		for (CsvFileWriter writer : hotThreadWriters.values())
+			writer.close();
+		hotThreadWriters.clear();
+		writtenGcValues.clear();
+		writtenGcPauses.clear();
+		writtenHotThreads.clear();
+	}
+}
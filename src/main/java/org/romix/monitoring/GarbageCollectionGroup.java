@@ -15,4 +15,13 @@ class GarbageCollectionGroup {
 	List<GarbageCollectionSingle> gcSingles = new ArrayList<GarbageCollectionSingle>();
 	double gcTimePercentSum;
 	long cpuTimePercent;
+	/** Collections within the period (null, if GC notifications are off) */
+	List<GcPause> gcPauses;
+	long maxPauseMillis;
+	/** Collections which were not reported (since the connect) */
+	long lostGcPauses;
+	/** Top-N threads by CPU time and allocation (null, if off) */
+	HotThreads hotThreads;
+	/** Allocation, promotion and live set (null, if off) */
+	MemoryPoolRates memoryRates;
 }
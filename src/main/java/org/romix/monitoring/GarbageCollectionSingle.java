@@ -9,4 +9,8 @@ class GarbageCollectionSingle {
 	String gcName;
 	long gcCountPerPeriod;
 	double gcTimePercent;
+	/** Collections reported by GC notifications within the period */
+	int pauseCount;
+	long pauseMillisSum;
+	long maxPauseMillis;
 }
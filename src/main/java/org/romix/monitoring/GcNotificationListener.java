@@ -0,0 +1,134 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/***
+ * Receives the GC notifications of the GarbageCollectorMXBeans of one
+ * connection and keeps every collection until it is taken over by the next
+ * cycle. So single long pauses are visible, not only the average GC time
+ * per period.
+ * @author romix
+ *
+ */
+class GcNotificationListener implements NotificationListener {
+	static final ObjectName GC_PATTERN = JmxServerMonitoring
+			.newObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE
+					+ ",*");
+	/** Collections kept between two cycles at most */
+	static final int MAX_PENDING = 10000;
+
+	/** Start time of the remote JVM (GC times are relative to it) */
+	private final long jvmStartMillis;
+	private List<GcPause> pending = new ArrayList<GcPause>();
+	/** Collections which could not be kept (overflow or lost notifications) */
+	private long lost;
+
+	private GcNotificationListener(long jvmStartMillis) {
+		this.jvmStartMillis = jvmStartMillis;
+	}
+
+	/***
+	 * Subscribe to the GC notifications of all garbage collectors of a
+	 * connection
+	 * @param mBeanServerConn
+	 * @param jvmStartMillis
+	 * @return the listener or null, if GC notifications are not available
+	 * @throws IOException
+	 */
+	static GcNotificationListener create(
+			MBeanServerConnection mBeanServerConn, long jvmStartMillis)
+			throws IOException {
+		GcNotificationListener listener = new GcNotificationListener(
+				jvmStartMillis);
+		NotificationFilterSupport filter = new NotificationFilterSupport();
+		filter.enableType(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION);
+		try {
+			for (ObjectName gcName : mBeanServerConn.queryNames(GC_PATTERN,
+					null))
+				mBeanServerConn.addNotificationListener(gcName, listener,
+						filter, null);
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			return null;
+		}
+		return listener;
+	}
+
+	public void handleNotification(Notification notification, Object handback) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+				.equals(notification.getType()))
+			return;
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+				.from((CompositeData) notification.getUserData());
+		GcInfo gcInfo = info.getGcInfo();
+		GcPause pause = new GcPause();
+		pause.gcName = JmxServerMonitoring.shortGcName(info.getGcName());
+		pause.gcAction = info.getGcAction();
+		pause.gcCause = info.getGcCause();
+		pause.startMillis = jvmStartMillis + gcInfo.getStartTime();
+		pause.durationMillis = gcInfo.getDuration();
+		for (Map.Entry<String, MemoryUsage> pool : gcInfo
+				.getMemoryUsageBeforeGc().entrySet())
+			pause.usedBefore.put(pool.getKey(), pool.getValue().getUsed());
+		for (Map.Entry<String, MemoryUsage> pool : gcInfo
+				.getMemoryUsageAfterGc().entrySet())
+			pause.usedAfter.put(pool.getKey(), pool.getValue().getUsed());
+		synchronized (this) {
+			if (pending.size() < MAX_PENDING)
+				pending.add(pause);
+			else
+				lost++;
+		}
+	}
+
+	/***
+	 * Notifications were lost by the JMX connector
+	 * @param count
+	 */
+	synchronized void notificationsLost(long count) {
+		lost += count;
+	}
+
+	/***
+	 * Take over the collections since the last cycle into a GC group: the
+	 * pauses are added to the group and summed up per collector
+	 * @param gcGroup
+	 */
+	void drainTo(GarbageCollectionGroup gcGroup) {
+		List<GcPause> pauses;
+		synchronized (this) {
+			pauses = pending;
+			pending = new ArrayList<GcPause>();
+			gcGroup.lostGcPauses = lost;
+		}
+		gcGroup.gcPauses = pauses;
+		for (GcPause pause : pauses) {
+			gcGroup.maxPauseMillis = Math.max(gcGroup.maxPauseMillis,
+					pause.durationMillis);
+			for (GarbageCollectionSingle gcSingle : gcGroup.gcSingles) {
+				if (gcSingle.gcName != null
+						&& gcSingle.gcName.equals(pause.gcName)) {
+					gcSingle.pauseCount++;
+					gcSingle.pauseMillisSum += pause.durationMillis;
+					gcSingle.maxPauseMillis = Math.max(
+							gcSingle.maxPauseMillis, pause.durationMillis);
+				}
+			}
+		}
+	}
+}
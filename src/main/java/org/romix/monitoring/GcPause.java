@@ -0,0 +1,38 @@
+package org.romix.monitoring;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * A single garbage collection as reported by a GC notification
+ * @author romix
+ *
+ */
+class GcPause {
+	/** Name of the collector (as in GarbageCollectionSingle) */
+	String gcName;
+	/** e.g. "end of minor GC" */
+	String gcAction;
+	/** e.g. "Allocation Failure" */
+	String gcCause;
+	/** Start of the collection (ms since 1970) */
+	long startMillis;
+	long durationMillis;
+	/** Used bytes per memory pool before and after the collection */
+	Map<String, Long> usedBefore = new LinkedHashMap<String, Long>();
+	Map<String, Long> usedAfter = new LinkedHashMap<String, Long>();
+
+	long usedBeforeSum() {
+		long sum = 0;
+		for (Long used : usedBefore.values())
+			sum += used;
+		return sum;
+	}
+
+	long usedAfterSum() {
+		long sum = 0;
+		for (Long used : usedAfter.values())
+			sum += used;
+		return sum;
+	}
+}
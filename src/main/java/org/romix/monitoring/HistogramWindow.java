@@ -0,0 +1,66 @@
+package org.romix.monitoring;
+
+import java.util.List;
+
+/***
+ * Distribution of the values of all metrics within one reporting window
+ * (immutable, handed over to the outputs)
+ * @author romix
+ *
+ */
+class HistogramWindow {
+	final long startMillis;
+	final long endMillis;
+	/** Per server, followed by the summaries over all servers */
+	final List<Summary> summaries;
+
+	HistogramWindow(long startMillis, long endMillis, List<Summary> summaries) {
+		this.startMillis = startMillis;
+		this.endMillis = endMillis;
+		this.summaries = summaries;
+	}
+
+	/***
+	 * Summary of the values of one metric
+	 */
+	static final class Summary {
+		/** Server name or null for all servers */
+		final String serverName;
+		final String metric;
+		/** ObjectName of an attribute, null for the GC metrics */
+		final String mbean;
+		final long count;
+		final double min;
+		final double max;
+		final double mean;
+		final double sum;
+		final double p50;
+		final double p90;
+		final double p99;
+		final double p999;
+
+		Summary(String serverName, String metric, String mbean,
+				LogHistogram histogram) {
+			this.serverName = serverName;
+			this.metric = metric;
+			this.mbean = mbean;
+			this.count = histogram.count();
+			this.min = histogram.min();
+			this.max = histogram.max();
+			this.mean = histogram.mean();
+			this.sum = histogram.sum();
+			this.p50 = histogram.percentile(50);
+			this.p90 = histogram.percentile(90);
+			this.p99 = histogram.percentile(99);
+			this.p999 = histogram.percentile(99.9);
+		}
+
+		/***
+		 * Metric and MBean as one name, e.g. "HeapUsed{java.lang:type=Memory}"
+		 * @return
+		 */
+		String qualifiedMetric() {
+			return (mbean != null) ? metric + "{" + mbean + "}" : metric;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package org.romix.monitoring;
+
+/***
+ * A thread of a server with a high CPU time or allocation rate within the
+ * period
+ * @author romix
+ *
+ */
+class HotThread {
+	long threadId;
+	String threadName;
+	/** CPU time in % of one processor */
+	double cpuPercent;
+	long allocatedBytesPerSecond;
+}
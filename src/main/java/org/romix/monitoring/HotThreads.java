@@ -0,0 +1,13 @@
+package org.romix.monitoring;
+
+/***
+ * The top-N threads of a server within the period
+ * @author romix
+ *
+ */
+class HotThreads {
+	/** Largest CPU time first */
+	HotThread[] byCpu;
+	/** Largest allocation rate first (null, if not supported) */
+	HotThread[] byAllocation;
+}
@@ -0,0 +1,409 @@
+package org.romix.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * HTTP endpoint with the results of the last cycle in the Prometheus text
+ * format (http://host:port/metrics).
+ *
+ * Each cycle is rendered once into immutable byte arrays (plain and gzip
+ * compressed) with an ETag; a request only writes one of them, regardless
+ * of the number of clients. Conditional requests (If-None-Match) are
+ * answered with 304, if the content has not changed.
+ *
+ * Metric names are derived from the attribute titles, the server name is a
+ * label, e.g. <code>jmx_used_jvm_mem{server="srv1",mbean="java.lang:type=Memory"} 123456</code>.
+ * @author romix
+ *
+ */
+class HttpMetricsEndpoint implements HttpHandler {
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	static final String METRIC_PREFIX = "jmx_";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/***
+	 * Rendered content of one cycle
+	 */
+	static final class Rendered {
+		final byte[] plain;
+		final byte[] gzip;
+		final String etag;
+
+		Rendered(byte[] plain, byte[] gzip, String etag) {
+			this.plain = plain;
+			this.gzip = gzip;
+			this.etag = etag;
+		}
+	}
+
+	private final HttpServer server;
+	private volatile Rendered current;
+	/** Requests answered (200) and not modified (304) */
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong notModified = new AtomicLong();
+
+	/***
+	 * Start the HTTP server
+	 * @param port
+	 * @throws IOException
+	 */
+	HttpMetricsEndpoint(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this);
+		server.setExecutor(Executors.newFixedThreadPool(2, new ThreadFactory() {
+			int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JmxServerMonitoring-http-"
+						+ (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		server.start();
+	}
+
+	/***
+	 * Render the results of one cycle (called by the output thread)
+	 * @param serverDataArr
+	 * @param window
+	 *            last value distributions or null
+	 */
+	void write(ServerData[] serverDataArr, HistogramWindow window) {
+		byte[] plain = render(serverDataArr, window);
+		CRC32 crc = new CRC32();
+		crc.update(plain);
+		String etag = "\"" + Long.toHexString(crc.getValue()) + "-"
+				+ Integer.toHexString(plain.length) + "\"";
+		Rendered last = current;
+		if (last != null && last.etag.equals(etag))
+			return; // unchanged
+		current = new Rendered(plain, gzip(plain), etag);
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			Headers headers = exchange.getResponseHeaders();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				headers.set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			Rendered rendered = current;
+			if (rendered == null) {
+				// no cycle finished yet
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			headers.set("ETag", rendered.etag);
+			headers.set("Vary", "Accept-Encoding");
+			String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+					"If-None-Match");
+			if (ifNoneMatch != null
+					&& (ifNoneMatch.contains(rendered.etag) || ifNoneMatch
+							.trim().equals("*"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			String acceptEncoding = exchange.getRequestHeaders().getFirst(
+					"Accept-Encoding");
+			byte[] body = rendered.plain;
+			if (acceptsGzip(acceptEncoding)) {
+				headers.set("Content-Encoding", "gzip");
+				body = rendered.gzip;
+			}
+			headers.set("Content-Type", CONTENT_TYPE);
+			requests.incrementAndGet();
+			if (method.equals("HEAD")) {
+				headers.set("Content-Length", Integer.toString(body.length));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+			CollectorStats.STATS.addOutputBytes("http", body.length);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static String threadLabels(HotThread hotThread) {
+		return ",thread=\"" + escape(hotThread.threadName) + "\",thread_id=\""
+				+ hotThread.threadId + "\"";
+	}
+
+	/***
+	 * Prometheus text format of a cycle; samples are grouped by metric name
+	 * @param serverDataArr
+	 * @param window
+	 *            value distributions as summaries (may be null)
+	 * @return
+	 */
+	static byte[] render(ServerData[] serverDataArr, HistogramWindow window) {
+		Map<String, List<String>> metrics = new LinkedHashMap<String, List<String>>();
+		for (ServerData serverData : serverDataArr) {
+			if (serverData == null)
+				continue;
+			String server = "server=\"" + escape(serverData.serverName) + "\"";
+			GarbageCollectionGroup gcGroup = serverData.gcGroup;
+			add(metrics, "jmx_up", server, (gcGroup != null) ? 1 : 0);
+			if (serverData.connection != null) {
+				add(metrics, "jmx_connects_total", server,
+						serverData.connection.connectCount);
+				CircuitBreaker breaker = serverData.connection.breaker;
+				add(metrics, "jmx_circuit_open", server,
+						breaker.isClosed() ? 0 : 1);
+				add(metrics, "jmx_connect_failures", server,
+						breaker.failures());
+			}
+			if (gcGroup == null)
+				continue; // stale or error: only jmx_up
+			add(metrics, "jmx_gc_time_percent", server,
+					gcGroup.gcTimePercentSum);
+			add(metrics, "jmx_cpu_time_percent", server,
+					gcGroup.cpuTimePercent);
+			for (GarbageCollectionSingle gc : gcGroup.gcSingles) {
+				String labels = server + ",collector=\"" + escape(gc.gcName)
+						+ "\"";
+				add(metrics, "jmx_gc_collector_count_per_period", labels,
+						gc.gcCountPerPeriod);
+				add(metrics, "jmx_gc_collector_time_percent", labels,
+						gc.gcTimePercent);
+				if (gcGroup.gcPauses != null) {
+					add(metrics, "jmx_gc_collector_pauses", labels,
+							gc.pauseCount);
+					add(metrics, "jmx_gc_collector_pause_max_millis", labels,
+							gc.maxPauseMillis);
+					add(metrics, "jmx_gc_collector_pause_sum_millis", labels,
+							gc.pauseMillisSum);
+				}
+			}
+			if (gcGroup.gcPauses != null) {
+				add(metrics, "jmx_gc_pause_max_millis", server,
+						gcGroup.maxPauseMillis);
+				add(metrics, "jmx_gc_pauses_lost_total", server,
+						gcGroup.lostGcPauses);
+			}
+			if (gcGroup.hotThreads != null) {
+				for (HotThread hotThread : gcGroup.hotThreads.byCpu)
+					add(metrics, "jmx_thread_cpu_percent", server
+							+ threadLabels(hotThread), hotThread.cpuPercent);
+				if (gcGroup.hotThreads.byAllocation != null)
+					for (HotThread hotThread : gcGroup.hotThreads.byAllocation)
+						add(metrics, "jmx_thread_allocated_bytes_per_second",
+								server + threadLabels(hotThread),
+								hotThread.allocatedBytesPerSecond);
+			}
+			MemoryPoolRates rates = gcGroup.memoryRates;
+			if (rates != null) {
+				add(metrics, "jmx_memory_allocated_bytes_per_second", server,
+						rates.allocatedBytesPerSecond);
+				if (rates.promotedBytesPerSecond >= 0)
+					add(metrics, "jmx_memory_promoted_bytes_per_second",
+							server, rates.promotedBytesPerSecond);
+				if (rates.liveSetBytes >= 0)
+					add(metrics, "jmx_memory_live_set_bytes", server,
+							rates.liveSetBytes);
+				if (!Double.isNaN(rates.liveSetTrendBytesPerHour))
+					add(metrics, "jmx_memory_live_set_trend_bytes_per_hour",
+							server, rates.liveSetTrendBytesPerHour);
+				add(metrics, "jmx_memory_live_set_threshold_exceeded", server,
+						rates.thresholdExceeded);
+			}
+			if (serverData.attributes == null)
+				continue;
+			for (AttributeValueAndName attr : serverData.attributes) {
+				double value = attr.numericValue();
+				if (Double.isNaN(value))
+					continue;
+				// MBean as label: a pattern may match several MBeans
+				add(metrics, metricName(attr.title), server + ",mbean=\""
+						+ escape(attr.objectName) + "\"", value);
+			}
+		}
+		StringBuilder out = new StringBuilder(4096);
+		for (Map.Entry<String, List<String>> metric : metrics.entrySet()) {
+			out.append("# TYPE ").append(metric.getKey()).append(
+					metric.getKey().endsWith("_total") ? " counter\n"
+							: " gauge\n");
+			for (String line : metric.getValue())
+				out.append(line).append('\n');
+		}
+		if (window != null)
+			renderSummaries(out, window);
+		return out.toString().getBytes(UTF8);
+	}
+
+	/***
+	 * Value distributions of the last window as summaries, e.g.
+	 * jmx_used_jvm_mem_window{server="srv1",mbean="java.lang:type=Memory",quantile="0.99"};
+	 * the summaries over all servers have the label server="*"
+	 * @param out
+	 * @param window
+	 */
+	static void renderSummaries(StringBuilder out, HistogramWindow window) {
+		Map<String, List<HistogramWindow.Summary>> byName = new LinkedHashMap<String, List<HistogramWindow.Summary>>();
+		for (HistogramWindow.Summary summary : window.summaries) {
+			String name = metricName(summary.metric) + "_window";
+			List<HistogramWindow.Summary> list = byName.get(name);
+			if (list == null) {
+				list = new ArrayList<HistogramWindow.Summary>();
+				byName.put(name, list);
+			}
+			list.add(summary);
+		}
+		for (Map.Entry<String, List<HistogramWindow.Summary>> metric : byName
+				.entrySet()) {
+			String name = metric.getKey();
+			out.append("# TYPE ").append(name).append(" summary\n");
+			for (HistogramWindow.Summary summary : metric.getValue()) {
+				String labels = "server=\""
+						+ ((summary.serverName != null) ? escape(summary.serverName)
+								: "*") + "\"";
+				if (summary.mbean != null)
+					labels += ",mbean=\"" + escape(summary.mbean) + "\"";
+				appendQuantile(out, name, labels, "0.5", summary.p50);
+				appendQuantile(out, name, labels, "0.9", summary.p90);
+				appendQuantile(out, name, labels, "0.99", summary.p99);
+				appendQuantile(out, name, labels, "0.999", summary.p999);
+				out.append(name).append("_sum{").append(labels).append("} ")
+						.append(formatValue(summary.sum)).append('\n');
+				out.append(name).append("_count{").append(labels).append("} ")
+						.append(summary.count).append('\n');
+			}
+		}
+	}
+
+	private static void appendQuantile(StringBuilder out, String name,
+			String labels, String quantile, double value) {
+		out.append(name).append('{').append(labels).append(",quantile=\"")
+				.append(quantile).append("\"} ").append(formatValue(value))
+				.append('\n');
+	}
+
+	private static void add(Map<String, List<String>> metrics, String name,
+			String labels, double value) {
+		List<String> lines = metrics.get(name);
+		if (lines == null) {
+			lines = new ArrayList<String>();
+			metrics.put(name, lines);
+		}
+		lines.add(name + "{" + labels + "} " + formatValue(value));
+	}
+
+	private static String formatValue(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		if (Double.isInfinite(value))
+			return (value > 0) ? "+Inf" : "-Inf";
+		return Double.toString(value);
+	}
+
+	/***
+	 * Does an Accept-Encoding header allow gzip? Codings with q=0 are not
+	 * acceptable, '*' stands for all codings which are not listed.
+	 * @param acceptEncoding
+	 * @return
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return false;
+		double gzip = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=") || param.startsWith("Q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException ex) {
+						q = 0;
+					}
+				}
+			}
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				gzip = Math.max(gzip, q);
+			else if (name.equals("*"))
+				any = q;
+		}
+		return (gzip >= 0) ? gzip > 0 : any > 0;
+	}
+
+	/***
+	 * Metric name of an attribute title: "jmx_" and the title in lower case,
+	 * characters not allowed in metric names are replaced by '_'
+	 * @param title
+	 * @return
+	 */
+	static String metricName(String title) {
+		StringBuilder sb = new StringBuilder(METRIC_PREFIX);
+		boolean underscore = true;
+		for (int i = 0; i < title.length(); i++) {
+			char c = Character.toLowerCase(title.charAt(i));
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				sb.append(c);
+				underscore = false;
+			} else if (!underscore) {
+				sb.append('_');
+				underscore = true;
+			}
+		}
+		if (underscore && sb.length() > METRIC_PREFIX.length())
+			sb.setLength(sb.length() - 1);
+		return sb.toString();
+	}
+
+	/***
+	 * Escaping of label values
+	 * @param s
+	 * @return
+	 */
+	static String escape(String s) {
+		if (s == null)
+			return "";
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n",
+				"\\n");
+	}
+
+	private static byte[] gzip(byte[] plain) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					plain.length / 4 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(bytes);
+			out.write(plain);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	void close() {
+		server.stop(0);
+	}
+}
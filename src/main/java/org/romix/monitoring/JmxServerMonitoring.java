@@ -5,8 +5,8 @@ import java.lang.management.*;
 import java.net.MalformedURLException;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.management.*;
-import javax.management.openmbean.CompositeData;
 import javax.management.remote.*;
 import javax.naming.Context;
 
@@ -43,13 +43,81 @@ public class JmxServerMonitoring
       "  'console=true':\n" +
       "     Output to console.\n" +
       "  'nagiosfile=JmxServerMonitoring.nagios.txt':\n" +
-      "     Only last results (e.g. for Nagios).\n" +
+      "     Only last results (e.g. for Nagios), 'off' for no file.\n" +
       "  'csvfile=JmxServerMonitoring.csv':\n" +
       "     All results (.csv-Datei, e.g. for Excel).\n" +
+      "  'csvflush=cycle' | 'csvflush=10' | 'csvflush=5000ms':\n" +
+      "     Write CSV lines after each cycle, each n-th cycle or after n ms.\n" +
+      "  'outputqueue=16':\n" +
+      "     Number of cycles queued per output (each output has its own thread).\n" +
+      "  'outputbackpressure=drop' | 'outputbackpressure=console:drop,csv:block':\n" +
+      "     Drop cycles or wait, if an output is too slow (default: block for\n" +
+      "     CSV-/time series files, drop for all others).\n" +
+      "  'tsdir=timeseries':\n" +
+      "     Directory for compact binary time series files (one per value).\n" +
+      "  'httpport=9100':\n" +
+      "     HTTP endpoint with the last results in the Prometheus text format\n" +
+      "     (http://host:9100/metrics).\n" +
       "  'errorfile=JmxServerMonitoring.error.log':\n" +
-      "     File for error messages (e.g. Exceptions).\n" +
+      "     File for error messages (e.g. Exceptions), 'off' for no file.\n" +
       "  'periodseconds=10':\n" +
       "     Mesurements interval in seconds.\n" +
+      "  'threads=16':\n" +
+      "     Number of servers polled in parallel (default 1 = sequential).\n" +
+      "  'cycletimeoutseconds=10':\n" +
+      "     Deadline for all servers of a cycle (default periodseconds);\n" +
+      "     servers without results are marked as stale.\n" +
+      "  'gcnotifications=true':\n" +
+      "     Report every single GC (duration, cause, memory pools) via GC\n" +
+      "     notifications, in addition to the GC values per period.\n" +
+      "  'histogramseconds=300':\n" +
+      "     Distribution (count, min, max, mean, percentiles) of all values\n" +
+      "     per window, per server and over all servers.\n" +
+      "  'intervalseconds=60' | 'intervalseconds=10,60':\n" +
+      "     Read interval of the servers (default periodseconds), one for all\n" +
+      "     or one per server; attributes can have their own interval\n" +
+      "     (e.g. 'attr1=abs@300; ...').\n" +
+      "  'connecttimeoutseconds=10' | 'readtimeoutseconds=30':\n" +
+      "     Timeouts of the connections to the servers (0 = none; default 10\n" +
+      "     for connects, none for reads).\n" +
+      "  'backoffmaxseconds=300':\n" +
+      "     Unreachable servers are not polled; they are probed in the\n" +
+      "     background with a doubling backoff up to this maximum.\n" +
+      "  'perfdata=true':\n" +
+      "     Read local JVMs ('pid:', 'local:') from their hsperfdata file:\n" +
+      "     GC, CPU and counters like\n" +
+      "     'attr1=diff; Safepoints; sun.rt.safepoints; hsperfdata'\n" +
+      "     without calls into the JVM (JMX only for other attributes).\n" +
+      "  'topthreads=5':\n" +
+      "     Report the threads with the most CPU time and the highest\n" +
+      "     allocation rate per period (HotSpot).\n" +
+      "  'memorypools=true':\n" +
+      "     Allocation rate, promotion rate and live set after GC (with its\n" +
+      "     trend) from the heap memory pools; exact with gcnotifications.\n" +
+      "  'livesetthreshold=80':\n" +
+      "     Set the collection usage threshold of the old generation of the\n" +
+      "     servers to this % of its maximum and report its notifications\n" +
+      "     (implies memorypools=true).\n" +
+      "  'profiletrigger=cpu>80,gc>10':\n" +
+      "     Sample the thread stacks of a server whose CPU time, GC time\n" +
+      "     or attribute (by title) crosses a threshold; the samples are\n" +
+      "     written as collapsed stacks for flame graphs.\n" +
+      "  'profilehz=10' | 'profileseconds=30' | 'profiledepth=64':\n" +
+      "     Samples per second, duration and maximum stack depth.\n" +
+      "  'profilethreads=runnable' | 'profilethreads=all':\n" +
+      "     Threads to sample (default: only running threads).\n" +
+      "  'profiledir=profiles' | 'profilecooldownseconds=300':\n" +
+      "     Directory of the profiles and minimum time between two\n" +
+      "     profiles of the same server.\n" +
+      "  'discoveryseconds=60':\n" +
+      "     Interval for looking up the local JVMs of 'url=local:<regex>'.\n" +
+      "  'maxseries=500':\n" +
+      "     Maximum number of attribute values per server: the MBeans of\n" +
+      "     patterns beyond it are not read (first ones by name are kept).\n" +
+      "     Patterns can be aggregated instead, e.g. 'attr1=abs+sum; ...',\n" +
+      "     'diff+avg', 'abs+max' or 'diff+top5@60' (the 5 largest).\n" +
+      "  'resyncseconds=300':\n" +
+      "     Full refresh of the cached ObjectName pattern queries.\n" +
       "You can provide as a URL host address or IP address, followed by a port number. " +
       "You can monitor a single JVM or multiple JVMs at the same time:\n" +
       "  'url=localhost:8686 usr=admin pwd=adminadmin':\n" +
@@ -58,6 +126,12 @@ public class JmxServerMonitoring
       "     Three servers with the same user name and same password.\n" +
       "  'url=srv1:7091,srv2:7092 usr=u1,u2 pwd=p1,p2':\n" +
       "     Two servers with different usernames/passwords.\n" +
+      "  'url=pid:4711':\n" +
+      "     A JVM on this host by process id, via the Attach API (no JMX port\n" +
+      "     required, the JVM must run as the same user).\n" +
+      "  'url=local:MyServer|catalina':\n" +
+      "     All JVMs on this host whose main class (or jar file) and arguments\n" +
+      "     match the regular expression; new JVMs are added automatically.\n" +
       "  'usr=username pwd=password':\n" +
       "     Only required, if authentication is enabled.\n" +
       "Parameters can be passed via command-line or via  a properties file :\n" +
@@ -78,6 +152,33 @@ public class JmxServerMonitoring
    static final String KEY_CSVFILE        = "csvfile";
    static final String KEY_ERRORFILE      = "errorfile";
    static final String KEY_ATTR           = "attr";
+   static final String KEY_THREADS        = "threads";
+   static final String KEY_CYCLETIMEOUT   = "cycletimeoutseconds";
+   static final String KEY_RESYNCSECONDS  = "resyncseconds";
+   static final String KEY_MAXSERIES      = "maxseries";
+   static final String KEY_CSVFLUSH       = "csvflush";
+   static final String KEY_OUTPUTQUEUE    = "outputqueue";
+   static final String KEY_BACKPRESSURE   = "outputbackpressure";
+   static final String KEY_TSDIR          = "tsdir";
+   static final String KEY_HTTPPORT       = "httpport";
+   static final String KEY_GCNOTIFICATIONS = "gcnotifications";
+   static final String KEY_HISTOGRAMSECONDS = "histogramseconds";
+   static final String KEY_INTERVALSECONDS = "intervalseconds";
+   static final String KEY_CONNECTTIMEOUT = "connecttimeoutseconds";
+   static final String KEY_READTIMEOUT    = "readtimeoutseconds";
+   static final String KEY_BACKOFFMAX     = "backoffmaxseconds";
+   static final String KEY_DISCOVERYSECONDS = "discoveryseconds";
+   static final String KEY_PERFDATA       = "perfdata";
+   static final String KEY_TOPTHREADS     = "topthreads";
+   static final String KEY_MEMORYPOOLS    = "memorypools";
+   static final String KEY_LIVESETTHRESHOLD = "livesetthreshold";
+   static final String KEY_PROFILETRIGGER = "profiletrigger";
+   static final String KEY_PROFILEHZ      = "profilehz";
+   static final String KEY_PROFILESECONDS = "profileseconds";
+   static final String KEY_PROFILEDEPTH   = "profiledepth";
+   static final String KEY_PROFILETHREADS = "profilethreads";
+   static final String KEY_PROFILEDIR     = "profiledir";
+   static final String KEY_PROFILECOOLDOWN = "profilecooldownseconds";
    static final String DFLT_PERIODSECONDS = "10";
    static final String DFLT_PROPFILE      = "JmxServerMonitoring.properties";
    static final String DFLT_NAGIOSFILE    = "JmxServerMonitoring.nagios.txt";
@@ -87,6 +188,16 @@ public class JmxServerMonitoring
    static final SimpleDateFormat YYYYMMDD_HHMMSS_NAG = new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss");
    static final DecimalFormat    DECIMAL_FORMAT1     = new DecimalFormat( "0.0" );
    static final DecimalFormat    DECIMAL_FORMAT2     = new DecimalFormat( "0.00" );
+   static final long             WARN_OUTPUT_LAG_MILLIS = 1000;
+   static final ObjectName       CPUTIME_OBJECTNAME  = newObjectName("java.lang:type=OperatingSystem");
+
+   static ObjectName newObjectName(String name) {
+      try {
+         return new ObjectName(name);
+      } catch (MalformedObjectNameException ex) {
+         throw new IllegalArgumentException(ex);
+      }
+   }
 
    /***
     * Main entry point
@@ -99,26 +210,19 @@ public class JmxServerMonitoring
             KEY_PERIODSECONDS, DFLT_PERIODSECONDS, KEY_CONSOLE, DFLT_CONSOLE,
             KEY_NAGIOSFILE, DFLT_NAGIOSFILE, KEY_ERRORFILE, DFLT_ERRORFILE } );
 
-		int periodSeconds = Math.max(
-				Integer.parseInt(props.getProperty(KEY_PERIODSECONDS)), 1);
+		MonitoringOptions options = convertOptions(props);
 		String serverName = props.getProperty(KEY_SERVERNAME);
 		String url = props.getProperty(KEY_URL);
 		String usr = props.getProperty(KEY_USR);
 		String pwd = props.getProperty(KEY_PWD);
-		String nagiosFile = props.getProperty(KEY_NAGIOSFILE);
-		String csvFile = props.getProperty(KEY_CSVFILE);
-		String errorFile = props.getProperty(KEY_ERRORFILE);
-		String s = props.getProperty(KEY_CONSOLE);
-		boolean console = s != null
-				&& (s.equals("1") || s.equalsIgnoreCase("true"));
-		s = props.getProperty(KEY_ALLGCVALUES);
-		boolean allGcValues = s != null
-				&& (s.equals("1") || s.equalsIgnoreCase("true"));
 
 		System.out.println("JmxServerMonitoring (periodseconds="
-				+ periodSeconds + ", servername=" + serverName + ", url=" + url
-				+ ", usr=" + usr + ", nagiosfile=" + nagiosFile + ", csvfile="
-				+ csvFile + ", errorfile=" + errorFile + ")\n");
+				+ options.periodSeconds + ", servername=" + serverName
+				+ ", url=" + url + ", usr=" + usr + ", nagiosfile="
+				+ options.nagiosFile + ", csvfile=" + options.csvFile
+				+ ", errorfile=" + options.errorFile + ", threads="
+				+ options.threads + ", cycletimeoutseconds="
+				+ options.cycleTimeoutSeconds + ")\n");
 
 		if (url == null || url.trim().length() <= 0) {
 			System.out.println("Error: imcomplete parameters.\n");
@@ -128,12 +232,136 @@ public class JmxServerMonitoring
 
 		ServerData[] serverDataArr = convertSrvParameter(serverName, url, usr,
 				pwd);
+		convertIntervalParameter(serverDataArr,
+				props.getProperty(KEY_INTERVALSECONDS));
 		AttributeValueAndName[] attributeNames = convertAttrParameter(props,
 				KEY_ATTR);
-		writeJmxServerMonitoring(periodSeconds, serverDataArr, attributeNames,
-				console, allGcValues, nagiosFile, csvFile, errorFile);
+		AttributePlan[] attributePlans = AttributePlan.compile(attributeNames);
+		writeJmxServerMonitoring(options, serverDataArr, attributePlans);
    }
 
+   /***
+    * Settings of the collection loop and of the outputs
+    * @param props
+    * @return
+    */
+	static MonitoringOptions convertOptions(Properties props) {
+		MonitoringOptions options = new MonitoringOptions();
+		options.periodSeconds = Math.max(
+				Integer.parseInt(props.getProperty(KEY_PERIODSECONDS)), 1);
+		options.nagiosFile = fileOption(props.getProperty(KEY_NAGIOSFILE));
+		options.csvFile = props.getProperty(KEY_CSVFILE);
+		options.tsDir = props.getProperty(KEY_TSDIR);
+		options.errorFile = fileOption(props.getProperty(KEY_ERRORFILE));
+		options.showConsole = isTrue(props.getProperty(KEY_CONSOLE));
+		options.writeAllGcValues = isTrue(props.getProperty(KEY_ALLGCVALUES));
+		options.gcNotifications = isTrue(props.getProperty(KEY_GCNOTIFICATIONS));
+		options.perfData = isTrue(props.getProperty(KEY_PERFDATA));
+		String s = props.getProperty(KEY_THREADS);
+		if (s != null && s.trim().length() > 0)
+			options.threads = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_CYCLETIMEOUT);
+		options.cycleTimeoutSeconds = (s != null && s.trim().length() > 0) ? Math
+				.max(Integer.parseInt(s.trim()), 1) : options.periodSeconds;
+		s = props.getProperty(KEY_CSVFLUSH);
+		if (s != null && s.trim().length() > 0
+				&& !s.trim().equalsIgnoreCase("cycle")) {
+			s = s.trim().toLowerCase();
+			if (s.endsWith("ms"))
+				options.csvFlushMillis = Math.max(Long.parseLong(s.substring(0,
+						s.length() - 2).trim()), 1);
+			else
+				options.csvFlushCycles = Math.max(Integer.parseInt(s), 1);
+		}
+		s = props.getProperty(KEY_OUTPUTQUEUE);
+		if (s != null && s.trim().length() > 0)
+			options.outputQueue = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_BACKPRESSURE);
+		if (s != null && s.trim().length() > 0) {
+			for (String entry : s.split(",|;|\\s")) {
+				int n = entry.indexOf(':');
+				String sinkName = (n > 0) ? entry.substring(0, n).trim()
+						.toLowerCase() : "";
+				String mode = entry.substring(n + 1).trim().toLowerCase();
+				if (mode.equals("block") || mode.equals("drop"))
+					options.backpressure.put(sinkName, mode);
+			}
+		}
+		s = props.getProperty(KEY_RESYNCSECONDS);
+		if (s != null && s.trim().length() > 0)
+			options.resyncSeconds = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_MAXSERIES);
+		if (s != null && s.trim().length() > 0)
+			options.maxSeries = Math.max(Integer.parseInt(s.trim()), 0);
+		s = props.getProperty(KEY_HISTOGRAMSECONDS);
+		if (s != null && s.trim().length() > 0)
+			options.histogramSeconds = Math.max(Integer.parseInt(s.trim()), 0);
+		s = props.getProperty(KEY_HTTPPORT);
+		if (s != null && s.trim().length() > 0)
+			options.httpPort = Integer.parseInt(s.trim());
+		s = props.getProperty(KEY_CONNECTTIMEOUT);
+		if (s != null && s.trim().length() > 0)
+			options.connectTimeoutSeconds = Math.max(
+					Integer.parseInt(s.trim()), 0);
+		s = props.getProperty(KEY_READTIMEOUT);
+		if (s != null && s.trim().length() > 0)
+			options.readTimeoutSeconds = Math.max(Integer.parseInt(s.trim()),
+					0);
+		s = props.getProperty(KEY_BACKOFFMAX);
+		if (s != null && s.trim().length() > 0)
+			options.backoffMaxSeconds = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_TOPTHREADS);
+		if (s != null && s.trim().length() > 0)
+			options.topThreads = Math.max(Integer.parseInt(s.trim()), 0);
+		options.memoryPools = isTrue(props.getProperty(KEY_MEMORYPOOLS));
+		s = props.getProperty(KEY_LIVESETTHRESHOLD);
+		if (s != null && s.trim().length() > 0)
+			options.liveSetThresholdPercent = Math.min(
+					Math.max(Integer.parseInt(s.trim()), 0), 100);
+		if (options.liveSetThresholdPercent > 0)
+			options.memoryPools = true;
+		s = props.getProperty(KEY_PROFILETRIGGER);
+		if (s != null && s.trim().length() > 0)
+			options.profileTrigger = s.trim();
+		s = props.getProperty(KEY_PROFILEHZ);
+		if (s != null && s.trim().length() > 0)
+			options.profileHz = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_PROFILESECONDS);
+		if (s != null && s.trim().length() > 0)
+			options.profileSeconds = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_PROFILEDEPTH);
+		if (s != null && s.trim().length() > 0)
+			options.profileDepth = Math.max(Integer.parseInt(s.trim()), 1);
+		s = props.getProperty(KEY_PROFILETHREADS);
+		options.profileAllThreads = s != null
+				&& s.trim().equalsIgnoreCase("all");
+		s = props.getProperty(KEY_PROFILEDIR);
+		if (s != null && s.trim().length() > 0)
+			options.profileDir = s.trim();
+		s = props.getProperty(KEY_PROFILECOOLDOWN);
+		if (s != null && s.trim().length() > 0)
+			options.profileCooldownSeconds = Math.max(
+					Integer.parseInt(s.trim()), 0);
+		s = props.getProperty(KEY_DISCOVERYSECONDS);
+		if (s != null && s.trim().length() > 0)
+			options.discoverySeconds = Math.max(Integer.parseInt(s.trim()), 1);
+		return options;
+	}
+
+	static boolean isTrue(String s) {
+		return s != null && (s.equals("1") || s.equalsIgnoreCase("true"));
+	}
+
+	/***
+	 * File name of an output, null for 'off' (an empty value is replaced by
+	 * the default file name)
+	 * @param s
+	 * @return
+	 */
+	static String fileOption(String s) {
+		return (s == null || s.trim().equalsIgnoreCase("off")) ? null : s;
+	}
+
    /**
     * Splitting of  server-Parameter into multiple servers
     * @param serverName
@@ -158,6 +386,7 @@ public class JmxServerMonitoring
 		ServerData[] serverDataArr = new ServerData[urlArr.length];
 		for (int i = 0; i < serverDataArr.length; i++) {
 			serverDataArr[i] = new ServerData();
+			serverDataArr[i].connection = new ServerConnection(serverDataArr[i]);
 			serverDataArr[i].url = urlArr[i];
 			serverDataArr[i].usr = (up) ? usrArr[i] : usr;
 			serverDataArr[i].pwd = (up) ? pwdArr[i] : pwd;
@@ -172,11 +401,35 @@ public class JmxServerMonitoring
 		return serverDataArr;
 	}
 
+   /***
+    * Read intervals of the servers: one for all servers or one per server
+    * @param serverDataArr
+    * @param intervalSeconds
+    */
+	static void convertIntervalParameter(ServerData[] serverDataArr,
+			String intervalSeconds) {
+		if (serverDataArr == null || intervalSeconds == null
+				|| intervalSeconds.trim().length() <= 0)
+			return;
+		String[] intervalArr = intervalSeconds.trim().split(",|;|\\s");
+		for (int i = 0; i < serverDataArr.length; i++) {
+			String s = (intervalArr.length == serverDataArr.length) ? intervalArr[i]
+					: intervalArr[0];
+			serverDataArr[i].intervalSeconds = Math.max(Integer.parseInt(s
+					.trim()), 0);
+		}
+	}
+
    /***
     * Splitting of optional additional MBean-attribute queries
     * 
     * Attribute names can have a form:
     * name1.name2.name3.etc
+    * 
+    * The mode can have a read interval in seconds: abs@300 or diff@60
+    * 
+    * The MBeans of a pattern can be aggregated into one value (or the K
+    * largest): abs+sum, diff+avg, abs+max, diff+top5@60
     */
 	static AttributeValueAndName[] convertAttrParameter(Properties props,
 			String key) {
@@ -194,6 +447,14 @@ public class JmxServerMonitoring
 			AttributeValueAndName attributeName = new AttributeValueAndName();
 			attributeName.diff = ss[0] != null
 					&& ss[0].toLowerCase().startsWith("diff");
+			int n = ss[0].indexOf('@');
+			if (n > 0)
+				attributeName.intervalSeconds = Math.max(
+						Integer.parseInt(ss[0].substring(n + 1).trim()), 0);
+			String mode = (n > 0) ? ss[0].substring(0, n) : ss[0];
+			if (mode.indexOf('+') > 0)
+				attributeName.aggregation = mode.substring(
+						mode.indexOf('+') + 1).trim();
 			attributeName.title = ss[1];
 			attributeName.attributeName = ss[2];
 			attributeName.objectName = ss[3];
@@ -213,66 +474,89 @@ public class JmxServerMonitoring
    /***
     * Loop for collecting Garbage-Collection and other JVM statistics and writing output
     * 
-    * @param periodSeconds
+    * @param options
     * @param serverDataArr
-    * @param attributeNames
-    * @param showConsole
-    * @param writeAllGcValues
-    * @param nagiosFile
-    * @param csvFile
-    * @param errorFile
+    * @param attributePlans
     */
-	static void writeJmxServerMonitoring(int periodSeconds,
-			ServerData[] serverDataArr, AttributeValueAndName[] attributeNames,
-			boolean showConsole, boolean writeAllGcValues, String nagiosFile,
-			String csvFile, String errorFile) {
+	static void writeJmxServerMonitoring(MonitoringOptions options,
+			ServerData[] serverDataArr, AttributePlan[] attributePlans) {
 		long periodTime = (new Date()).getTime();
-		JMXConnector jmxConnector = null;
+		CsvOutput csvOutput = new CsvOutput(options.csvFile,
+				options.writeAllGcValues, options.csvFlushCycles,
+				options.csvFlushMillis);
+		TimeSeriesStore tsStore = (options.tsDir != null && options.tsDir
+				.trim().length() > 0) ? new TimeSeriesStore(options.tsDir.trim(),
+				options.errorFile) : null;
+		HttpMetricsEndpoint httpEndpoint = null;
+		if (options.httpPort > 0) {
+			try {
+				httpEndpoint = new HttpMetricsEndpoint(options.httpPort);
+			} catch (IOException ex) {
+				System.out.println("Error: HTTP endpoint on port "
+						+ options.httpPort + ": " + ex);
+				System.exit(255);
+			}
+		}
+		MetricHistograms histograms = (options.histogramSeconds > 0) ? new MetricHistograms(
+				options.histogramSeconds * 1000L) : null;
+		OutputPipeline pipeline = newOutputPipeline(options, csvOutput,
+				tsStore, httpEndpoint, histograms);
+		LocalJvmDiscovery discovery = LocalJvmDiscovery.create(serverDataArr,
+				options.discoverySeconds * 1000L);
+		closeOnShutdown(serverDataArr, pipeline, csvOutput, tsStore,
+				httpEndpoint, discovery);
+		TimeoutSocketFactory.install(options.connectTimeoutSeconds * 1000,
+				options.readTimeoutSeconds * 1000);
+		if (discovery != null)
+			serverDataArr = discovery.servers();
+		for (ServerData serverData : serverDataArr)
+			initServer(serverData, options, attributePlans);
+		ExecutorService executor = (options.threads > 1) ? newCollectorPool(options.threads)
+				: null;
+		ExecutorService probeExecutor = newProbePool(Math.max(options.threads,
+				2));
+		CollectorStats.STATS.register();
+		TimingWheel wheel = newReadSchedule(serverDataArr, attributePlans,
+				options.periodSeconds);
 
 		// Loop with a given time intervals
 		while (true) {
-			// Iterate over all servers
-			for (ServerData serverData : serverDataArr) {
-				try {
-					// JMX- und MBeanServer-Connection:
-					jmxConnector = getJMXConnector(serverData.url,
-							serverData.usr, serverData.pwd);
-					MBeanServerConnection mBeanServerConn = jmxConnector
-							.getMBeanServerConnection();
-					// Read GC statistics
-					serverData.gcGroup = getGarbageCollectionGroup(
-							periodSeconds, serverData.lastMeasurement,
-							mBeanServerConn);
-					// Read additional MBean-Attributes
-					serverData.attributes = getAttributes(attributeNames,
-							periodSeconds, serverData.lastMeasurement,
-							mBeanServerConn);
-				} catch (Exception ex) {
-					serverData.lastMeasurement.clear();
-					serverData.gcGroup = null;
-					serverData.attributes = attributeNames;
-					String s = YYYYMMDD_HHMMSS_STD.format(new Date())
-							+ ", Url=" + serverData.url + ": ";
-					System.out.println(s);
-					System.out.println(ex);
-					writeErrorFile(s, ex, errorFile);
-				} finally {
-					try {
-						if (jmxConnector != null)
-							jmxConnector.close();
-					} catch (Exception ex) {/* ok */
-					}
-					jmxConnector = null;
+			long cycleStartNanos = System.nanoTime();
+			if (discovery != null) {
+				ServerData[] discovered = discovery.discover(System
+						.currentTimeMillis());
+				if (discovered != null) {
+					for (ServerData serverData : discovered)
+						if (serverData.lastMeasurement == null)
+							initServer(serverData, options, attributePlans);
+					serverDataArr = discovered;
+					wheel = newReadSchedule(serverDataArr, attributePlans,
+							options.periodSeconds);
 				}
 			}
-			// Write collected statistics
-			writeConsole(serverDataArr, showConsole);
-			writeNagiosFile(serverDataArr, nagiosFile);
-			writeCsvFileOneForAllServers(serverDataArr, csvFile);
-			writeCsvFilePerServerWithDifferentGcValues(serverDataArr, csvFile,
-					writeAllGcValues);
+			long tick = wheel.tick();
+			markDueReads(serverDataArr, attributePlans, wheel.advance());
+			// Reconnect unreachable servers in the background
+			probeServers(serverDataArr, probeExecutor);
+			// Collect from all servers, at most until the cycle deadline
+			long deadline = System.currentTimeMillis()
+					+ options.cycleTimeoutSeconds * 1000L;
+			collectAllServers(serverDataArr, attributePlans, options,
+					executor, deadline);
+			rescheduleReads(serverDataArr, wheel, tick);
+			if (discovery != null)
+				CollectorStats.STATS.retainServers(serverDataArr);
+			// Hand over collected statistics to the outputs
+			ServerData[] snapshot = new ServerData[serverDataArr.length];
+			for (int i = 0; i < snapshot.length; i++)
+				snapshot[i] = serverDataArr[i].snapshot();
+			if (histograms != null)
+				histograms.record(snapshot, System.currentTimeMillis());
+			pipeline.publish(snapshot);
+			CollectorStats.STATS.recordCycle(cycleStartNanos,
+					options.periodSeconds * 1000L);
 			// Time interval
-			periodTime += periodInSeconds(periodSeconds) * 1000;
+			periodTime += periodInSeconds(options.periodSeconds) * 1000;
 			long waitMilliseconds = periodTime - (new Date()).getTime();
 			if (waitMilliseconds > 0) {
 				try {
@@ -284,62 +568,731 @@ public class JmxServerMonitoring
 		}
 	}
 
+   /***
+    * Settings of the connection and measurement state of a server, before
+    * it is polled the first time
+    * @param serverData
+    * @param options
+    * @param attributePlans
+    */
+	static void initServer(ServerData serverData, MonitoringOptions options,
+			AttributePlan[] attributePlans) {
+		serverData.connection.nameCacheResyncMillis = options.resyncSeconds * 1000L;
+		serverData.connection.gcNotifications = options.gcNotifications;
+		serverData.connection.perfData = options.perfData;
+		serverData.connection.readTimeoutMillis = options.readTimeoutSeconds * 1000L;
+		serverData.connection.breaker.baseBackoffMillis = options.periodSeconds * 1000L;
+		serverData.connection.breaker.maxBackoffMillis = Math.max(
+				options.backoffMaxSeconds, options.periodSeconds) * 1000L;
+		serverData.lastMeasurement = AttributePlan
+				.newMeasurementState(attributePlans);
+		serverData.lastMeasurement.maxSeries = options.maxSeries;
+		serverData.threadActivity = (options.topThreads > 0) ? new ThreadActivity(
+				options.topThreads) : null;
+		serverData.memoryActivity = options.memoryPools ? new MemoryPoolActivity(
+				options.liveSetThresholdPercent) : null;
+	}
+
+   /***
+    * Outputs, each with its own thread
+    * @param options
+    * @param csvOutput
+    * @param tsStore time series output or null
+    * @param httpEndpoint HTTP endpoint or null
+    * @param histograms value distributions or null
+    * @return
+    */
+	static OutputPipeline newOutputPipeline(final MonitoringOptions options,
+			final CsvOutput csvOutput, final TimeSeriesStore tsStore,
+			final HttpMetricsEndpoint httpEndpoint,
+			final MetricHistograms histograms) {
+		final OutputPipeline pipeline = new OutputPipeline(options.outputQueue);
+		if (options.showConsole) {
+			pipeline.addSink("console", new OutputSink() {
+				long lastWindowEnd;
+
+				final Map<String, GarbageCollectionGroup> writtenGcGroups = new HashMap<String, GarbageCollectionGroup>();
+
+				public void write(ServerData[] serverDataArr, long cycleMillis) {
+					HistogramWindow window = newWindow(histograms, lastWindowEnd);
+					if (window != null)
+						lastWindowEnd = window.endMillis;
+					writeConsole(serverDataArr, true, pipeline, window,
+							writtenGcGroups);
+				}
+			}, options.isBlocking("console", false));
+		}
+		if (options.nagiosFile != null
+				&& options.nagiosFile.trim().length() > 0) {
+			pipeline.addSink("nagios", new OutputSink() {
+				final Map<String, GarbageCollectionGroup> writtenGcGroups = new HashMap<String, GarbageCollectionGroup>();
+
+				public void write(ServerData[] serverDataArr, long cycleMillis) {
+					writeNagiosFile(serverDataArr, options.nagiosFile,
+							pipeline, writtenGcGroups);
+					CollectorStats.STATS.addOutputBytes("nagios", new File(
+							options.nagiosFile).length());
+				}
+			}, options.isBlocking("nagios", false));
+		}
+		if (options.csvFile != null && options.csvFile.trim().length() > 0) {
+			pipeline.addSink("csv", new OutputSink() {
+				long lastWindowEnd;
+
+				public void write(ServerData[] serverDataArr, long cycleMillis) {
+					long bytes = csvOutput.bytesWritten();
+					csvOutput.write(serverDataArr, cycleMillis);
+					HistogramWindow window = newWindow(histograms, lastWindowEnd);
+					if (window != null) {
+						lastWindowEnd = window.endMillis;
+						csvOutput.writeHistograms(window);
+					}
+					CollectorStats.STATS.addOutputBytes("csv",
+							csvOutput.bytesWritten() - bytes);
+				}
+			}, options.isBlocking("csv", true));
+		}
+		if (tsStore != null) {
+			pipeline.addSink("ts", new OutputSink() {
+				public void write(ServerData[] serverDataArr, long cycleMillis) {
+					long bytes = tsStore.bytesWritten;
+					tsStore.write(serverDataArr, cycleMillis);
+					CollectorStats.STATS.addOutputBytes("ts",
+							tsStore.bytesWritten - bytes);
+				}
+			}, options.isBlocking("ts", true));
+		}
+		if (httpEndpoint != null) {
+			pipeline.addSink("http", new OutputSink() {
+				public void write(ServerData[] serverDataArr, long cycleMillis) {
+					httpEndpoint.write(serverDataArr,
+							(histograms != null) ? histograms.lastWindow : null);
+				}
+			}, options.isBlocking("http", false));
+		}
+		if (options.profileTrigger != null) {
+			pipeline.addSink("profiler", new StackProfiler(StackProfiler
+					.parseTriggers(options.profileTrigger), options), options
+					.isBlocking("profiler", false));
+		}
+		return pipeline;
+	}
+
+   /***
+    * Schedule of the periodic reads: the GC statistics of each server and
+    * each attribute plan per server. Intervals are rounded up to multiples
+    * of periodseconds (one tick of the wheel); all reads are due in the
+    * first cycle.
+    * @param serverDataArr
+    * @param attributePlans
+    * @param periodSeconds
+    * @return
+    */
+	static TimingWheel newReadSchedule(ServerData[] serverDataArr,
+			AttributePlan[] attributePlans, int periodSeconds) {
+		TimingWheel wheel = new TimingWheel(256);
+		int planCount = (attributePlans != null) ? attributePlans.length : 0;
+		for (int i = 0; i < serverDataArr.length; i++) {
+			ServerData serverData = serverDataArr[i];
+			int serverTicks = intervalTicks(serverData.intervalSeconds,
+					periodSeconds);
+			wheel.schedule(new TimingWheel.Entry(i, TimingWheel.GC_GROUP,
+					serverTicks), 0);
+			for (int a = 0; a < planCount; a++) {
+				int seconds = attributePlans[a].definition.intervalSeconds;
+				wheel.schedule(new TimingWheel.Entry(i, a,
+						(seconds > 0) ? intervalTicks(seconds, periodSeconds)
+								: serverTicks), 0);
+			}
+			serverData.duePlans = new boolean[planCount];
+			serverData.planValues = new AttributeValueAndName[planCount][];
+		}
+		return wheel;
+	}
+
+	private static int intervalTicks(int intervalSeconds, int periodSeconds) {
+		return (intervalSeconds <= 0) ? 1
+				: (intervalSeconds + periodSeconds - 1) / periodSeconds;
+	}
+
+   /***
+    * Mark the reads of the current cycle at the servers
+    * @param serverDataArr
+    * @param attributePlans
+    * @param dueEntries
+    */
+	static void markDueReads(ServerData[] serverDataArr,
+			AttributePlan[] attributePlans, TimingWheel.Entry dueEntries) {
+		for (ServerData serverData : serverDataArr) {
+			serverData.due = false;
+			serverData.gcDue = false;
+			Arrays.fill(serverData.duePlans, false);
+			serverData.dueEntries = null;
+		}
+		TimingWheel.Entry e = dueEntries;
+		while (e != null) {
+			TimingWheel.Entry next = e.next;
+			ServerData serverData = serverDataArr[e.server];
+			serverData.due = true;
+			if (e.plan == TimingWheel.GC_GROUP)
+				serverData.gcDue = true;
+			else
+				serverData.duePlans[e.plan] = true;
+			e.next = serverData.dueEntries;
+			serverData.dueEntries = e;
+			e = next;
+		}
+	}
+
+   /***
+    * Schedule the reads of this cycle again: after their interval or, if
+    * they were not published in this cycle (stale, unreachable, failed or
+    * the last collection of the server still running), in the next cycle
+    * @param serverDataArr
+    * @param wheel
+    * @param tick the tick of this cycle
+    */
+	static void rescheduleReads(ServerData[] serverDataArr, TimingWheel wheel,
+			long tick) {
+		for (ServerData serverData : serverDataArr) {
+			boolean skipped = !serverData.duePublished;
+			TimingWheel.Entry e = serverData.dueEntries;
+			serverData.dueEntries = null;
+			while (e != null) {
+				TimingWheel.Entry next = e.next;
+				wheel.schedule(e, skipped ? tick + 1 : tick + e.intervalTicks);
+				e = next;
+			}
+		}
+	}
+
+   /***
+    * The last histogram window, if it was not output yet
+    * @param histograms
+    * @param lastWindowEnd end of the window output last
+    * @return null, if there is no new window
+    */
+	static HistogramWindow newWindow(MetricHistograms histograms,
+			long lastWindowEnd) {
+		HistogramWindow window = (histograms != null) ? histograms.lastWindow
+				: null;
+		return (window != null && window.endMillis != lastWindowEnd) ? window
+				: null;
+	}
+
+   /***
+    * Thread pool for polling servers in parallel
+    * @param threads
+    * @return
+    */
+	static ExecutorService newCollectorPool(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JmxServerMonitoring-collector-"
+						+ (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+   /***
+    * Thread pool for the reconnect probes of unreachable servers
+    * @param threads
+    * @return
+    */
+	static ExecutorService newProbePool(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JmxServerMonitoring-probe-"
+						+ (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+   /***
+    * Start a reconnect probe for each server with an open circuit whose
+    * backoff has passed. The probes run off the collection path; a server
+    * is polled again in the first cycle after a successful probe.
+    * @param serverDataArr
+    * @param probeExecutor
+    */
+	static void probeServers(ServerData[] serverDataArr,
+			ExecutorService probeExecutor) {
+		long now = System.currentTimeMillis();
+		for (final ServerData serverData : serverDataArr) {
+			if (!serverData.connection.breaker.startProbe(now))
+				continue;
+			probeExecutor.execute(new Runnable() {
+				public void run() {
+					probeServer(serverData);
+				}
+			});
+		}
+	}
+
+   /***
+    * Try to reconnect to a server with an open circuit
+    * @param serverData
+    */
+	static void probeServer(ServerData serverData) {
+		ServerConnection connection = serverData.connection;
+		String s = serverData.url + ": ";
+		try {
+			connection.getMBeanServerConnection();
+			int failures = connection.breaker.failures();
+			connection.breaker.success();
+			System.out.println(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+					+ ", Url=" + s + "reconnected after " + failures
+					+ " connection failure(s)");
+		} catch (Exception ex) {
+			connection.invalidate();
+			long backoff = connection.breaker.failure(System
+					.currentTimeMillis());
+			System.out.println(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+					+ ", Url=" + s + "unreachable (" + ex
+					+ "), next probe in " + (backoff + 500) / 1000 + " s");
+		}
+	}
+
+   /***
+    * Collect the statistics of all servers of one cycle.
+    * 
+    * With an executor all servers are polled in parallel; without one they are
+    * polled sequentially. Servers without a result at the deadline are marked as
+    * stale for this cycle. A server whose collection is still running from an
+    * earlier cycle is not polled again until it has finished.
+    * The results are assigned to the servers only at the end, so that the
+    * outputs always see one consistent snapshot.
+    * 
+    * @param serverDataArr
+    * @param attributePlans
+    * @param options
+    * @param executor
+    * @param deadline
+    */
+	static void collectAllServers(ServerData[] serverDataArr,
+			final AttributePlan[] attributePlans,
+			final MonitoringOptions options, ExecutorService executor,
+			long deadline) {
+		// Servers with an open circuit are not polled (see probeServers)
+		boolean[] unreachable = new boolean[serverDataArr.length];
+		for (int i = 0; i < serverDataArr.length; i++)
+			unreachable[i] = !serverDataArr[i].connection.breaker.isClosed();
+		// Collections of the due reads of this cycle
+		boolean[] started = new boolean[serverDataArr.length];
+		if (executor != null) {
+			for (int i = 0; i < serverDataArr.length; i++) {
+				ServerData serverData = serverDataArr[i];
+				if (!serverData.due
+						|| unreachable[i]
+						|| (serverData.pending != null && !serverData.pending
+								.isDone()))
+					continue;
+				// The task may outlast the cycle: its own copy of the due reads
+				final ServerData reads = serverData.dueReads();
+				serverData.pending = executor
+						.submit(new Callable<ServerMeasurement>() {
+							public ServerMeasurement call() {
+								return collectServer(reads, attributePlans,
+										options.periodSeconds);
+							}
+						});
+				started[i] = true;
+			}
+		}
+		ServerMeasurement[] measurements = new ServerMeasurement[serverDataArr.length];
+		for (int i = 0; i < serverDataArr.length; i++) {
+			ServerData serverData = serverDataArr[i];
+			if (!serverData.due || unreachable[i])
+				continue;
+			long waitMilliseconds = deadline - System.currentTimeMillis();
+			if (executor == null) {
+				if (waitMilliseconds > 0) {
+					measurements[i] = collectServer(serverData,
+							attributePlans, options.periodSeconds);
+					started[i] = true;
+				}
+				continue;
+			}
+			try {
+				measurements[i] = serverData.pending.get(
+						Math.max(waitMilliseconds, 0), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException ex) {/* stale */
+			} catch (InterruptedException ex) {/* stale */
+			} catch (ExecutionException ex) {
+				measurements[i] = new ServerMeasurement();
+				measurements[i].error = (ex.getCause() instanceof Exception) ? (Exception) ex
+						.getCause() : ex;
+			}
+		}
+		AttributeValueAndName[] attributeNames = AttributePlan
+				.definitions(attributePlans);
+		for (int i = 0; i < serverDataArr.length; i++) {
+			// Servers without due reads keep their last results
+			if (!serverDataArr[i].due)
+				continue;
+			// A collection of an earlier cycle read other plans
+			serverDataArr[i].duePublished = started[i]
+					&& measurements[i] != null
+					&& measurements[i].error == null;
+			if (unreachable[i]) {
+				// No results, no messages (reported by the probes)
+				serverDataArr[i].stale = false;
+				serverDataArr[i].gcGroup = null;
+				serverDataArr[i].attributes = attributeNames;
+				continue;
+			}
+			publishMeasurement(serverDataArr[i], measurements[i],
+					attributeNames, options.errorFile);
+		}
+	}
+
+   /***
+    * Collect GC statistics and additional MBean-Attributes of a single server
+    * @param serverData
+    * @param attributePlans
+    * @param periodSeconds
+    * @return
+    */
+	static ServerMeasurement collectServer(ServerData serverData,
+			AttributePlan[] attributePlans, int periodSeconds) {
+		ServerMeasurement measurement = new ServerMeasurement();
+		long startNanos = System.nanoTime();
+		try {
+			// Local JVM with hsperfdata: no JMX, if all values are there
+			PerfDataFile perfData = serverData.connection.getPerfDataFile();
+			MBeanServerConnection mBeanServerConn = null;
+			ObjectNameCache nameCache = null;
+			RemoteMXBeans mxBeans = null;
+			if (perfData == null || serverData.connection.gcNotifications
+					|| serverData.threadActivity != null
+					|| serverData.memoryActivity != null
+					|| !AttributePlan.allPerfData(attributePlans)) {
+				// JMX- und MBeanServer-Connection (kept open over cycles):
+				mBeanServerConn = serverData.connection
+						.getMBeanServerConnection();
+				nameCache = serverData.connection.nameCache;
+				mxBeans = serverData.connection.mxBeans;
+			}
+			// Uptime of the JVM, shared by all computations of this cycle
+			long rtUptimeMs = (perfData != null) ? perfData.uptimeMillis()
+					: mxBeans.runtime().getUptime();
+			// After an error or a stale cycle (no published results) all
+			// values are read
+			boolean all = serverData.gcGroup == null;
+			if (all || serverData.gcDue) {
+				// Read GC statistics
+				long gcStartNanos = System.nanoTime();
+				measurement.gcGroup = (perfData != null) ? getGarbageCollectionGroup(
+						periodSeconds, rtUptimeMs, serverData.lastMeasurement,
+						perfData, mxBeans) : getGarbageCollectionGroup(
+						periodSeconds, rtUptimeMs, serverData.lastMeasurement,
+						mxBeans, nameCache);
+				CollectorStats.STATS.record(CollectorStats.GC_READ,
+						gcStartNanos);
+				// Single collections reported by GC notifications
+				GcNotificationListener gcListener = serverData.connection.gcListener;
+				if (gcListener != null && mxBeans != null)
+					gcListener.drainTo(measurement.gcGroup);
+				// Top-N threads by CPU time and allocation
+				if (serverData.threadActivity != null && mxBeans != null)
+					measurement.gcGroup.hotThreads = getHotThreads(serverData,
+							rtUptimeMs, mxBeans);
+				// Allocation, promotion and live set from the memory pools
+				if (serverData.memoryActivity != null && mBeanServerConn != null)
+					measurement.gcGroup.memoryRates = getMemoryRates(
+							serverData, rtUptimeMs, mBeanServerConn,
+							measurement.gcGroup);
+			} else {
+				measurement.gcGroup = serverData.gcGroup;
+			}
+			// Read additional MBean-Attributes
+			int droppedSeries = serverData.lastMeasurement.droppedSeries;
+			measurement.attributes = getAttributes(attributePlans,
+					all ? null : serverData.duePlans, serverData.planValues,
+					periodSeconds, rtUptimeMs, serverData.lastMeasurement,
+					mBeanServerConn, nameCache, perfData);
+			if (serverData.lastMeasurement.droppedSeries > droppedSeries)
+				System.out.println(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+						+ ", Url=" + serverData.url + ": "
+						+ serverData.lastMeasurement.droppedSeries
+						+ " MBeans of patterns not read (maxseries="
+						+ serverData.lastMeasurement.maxSeries + ")");
+		} catch (Exception ex) {
+			if (ServerConnection.isConnectionFailure(ex)) {
+				serverData.connection.invalidate();
+				serverData.connection.breaker.failure(System
+						.currentTimeMillis());
+			}
+			serverData.lastMeasurement.clear();
+			if (serverData.planValues != null)
+				Arrays.fill(serverData.planValues, null);
+			measurement.error = ex;
+		}
+		CollectorStats.STATS.recordServer(serverData.serverName, startNanos);
+		return measurement;
+	}
+
+   /***
+    * Take over the result of a single server for the outputs
+    * @param serverData
+    * @param measurement result or null, if there was no result within the deadline
+    * @param attributeNames
+    * @param errorFile
+    */
+	static void publishMeasurement(ServerData serverData,
+			ServerMeasurement measurement,
+			AttributeValueAndName[] attributeNames, String errorFile) {
+		serverData.stale = measurement == null;
+		if (measurement != null && measurement.error == null) {
+			serverData.gcGroup = measurement.gcGroup;
+			serverData.attributes = measurement.attributes;
+			return;
+		}
+		serverData.gcGroup = null;
+		serverData.attributes = attributeNames;
+		String s = formatDate(YYYYMMDD_HHMMSS_STD, new Date()) + ", Url="
+				+ serverData.url + ": ";
+		if (measurement == null) {
+			CollectorStats.STATS.stale();
+			System.out.println(s + "stale, no result within the cycle deadline");
+			return;
+		}
+		CollectorStats.STATS.error(measurement.error);
+		CircuitBreaker breaker = serverData.connection.breaker;
+		if (!breaker.isClosed())
+			s += "circuit open, next probe in "
+					+ (breaker.nextProbeMillis() - System.currentTimeMillis() + 500)
+					/ 1000 + " s: ";
+		System.out.println(s);
+		System.out.println(measurement.error);
+		writeErrorFile(s, measurement.error, errorFile);
+	}
+
    /***
     * Querying of a group of Garbage-Collection-statistics from a single server
     * @param periodSeconds
+    * @param rtUptimeMs uptime of the JVM read in this cycle
     * @param lastMeasurement
-    * @param mBeanServerConn
+    * @param mxBeans
+    * @param nameCache
     * @return
     * @throws Exception
     */
 	static GarbageCollectionGroup getGarbageCollectionGroup(int periodSeconds,
-			Map<String, Long[]> lastMeasurement,
-			MBeanServerConnection mBeanServerConn) throws Exception {
-		// Read a previous uptime of the JVM from Remote-Runtime-MXBean:
-		long rtUptimeMs = getRuntimeMXBeanFromRemote(mBeanServerConn)
-				.getUptime();
+			long rtUptimeMs, MeasurementState lastMeasurement,
+			RemoteMXBeans mxBeans, ObjectNameCache nameCache) throws Exception {
 		// Read GarbageCollector-MXBeans from Remote:
-		List<GarbageCollectorMXBean> gcMXBeans = getGarbageCollectorMXBeansFromRemote(mBeanServerConn);
+		List<GarbageCollectorMXBean> gcMXBeans = getGarbageCollectorMXBeansFromRemote(
+				mxBeans, nameCache);
 		// Different kinds of Garbage-Collections:
 		GarbageCollectionGroup gcGroup = new GarbageCollectionGroup();
 		for (GarbageCollectorMXBean gc : gcMXBeans) {
-			GarbageCollectionSingle gcSingle = new GarbageCollectionSingle();
-			gcSingle.gcName = gc.getName();
-			if (gcSingle.gcName != null && gcSingle.gcName.indexOf("Young") > 0) {
-				gcSingle.gcName = gcSingle.gcName.substring(gcSingle.gcName
-						.indexOf("Young"));
-			}
-			if (gcSingle.gcName != null && gcSingle.gcName.indexOf("Old") > 0) {
-				gcSingle.gcName = gcSingle.gcName.substring(gcSingle.gcName
-						.indexOf("Old"));
-			}
-			Long[] gcLast = lastMeasurement.get(gcSingle.gcName);
-			if (gcLast != null) {
-				gcSingle.gcCountPerPeriod = gc.getCollectionCount()
-						- gcLast[0].longValue();
-				gcSingle.gcTimePercent = ((gc.getCollectionTime() - gcLast[1]
-						.longValue()) / (periodInSeconds(periodSeconds))) / 10.;
-			}
-			if (gcLast == null || gcSingle.gcCountPerPeriod < 0
-					|| gcSingle.gcTimePercent < 0) {
-				// First time query (or Server-Reboot):
-				gcSingle.gcCountPerPeriod = gc.getCollectionCount()
-						* periodInSeconds(periodSeconds) * 1000 / rtUptimeMs;
-				gcSingle.gcTimePercent = (gc.getCollectionTime() * 1000 / rtUptimeMs) / 10.;
-			}
-			lastMeasurement.put(
-					gcSingle.gcName,
-					new Long[] { new Long(gc.getCollectionCount()),
-							new Long(gc.getCollectionTime()) });
-			gcGroup.gcSingles.add(gcSingle);
-			gcGroup.gcTimePercentSum += gcSingle.gcTimePercent;
+			// Each value is read only once per cycle
+			addGarbageCollectionSingle(gcGroup,
+					shortGcName(mxBeans.garbageCollectorName(gc)),
+					gc.getCollectionCount(), gc.getCollectionTime(),
+					periodSeconds, rtUptimeMs, lastMeasurement);
 		}
 		// CPU-Time:
 		gcGroup.cpuTimePercent = calculateCpuTimePercent(rtUptimeMs,
-				lastMeasurement, mBeanServerConn);
+				lastMeasurement, mxBeans);
+		return gcGroup;
+	}
+
+   /***
+    * Garbage-Collection-statistics of a local JVM from its hsperfdata file;
+    * the CPU time is read from /proc (or via JMX, if connected)
+    * @param periodSeconds
+    * @param rtUptimeMs uptime of the JVM read in this cycle
+    * @param lastMeasurement
+    * @param perfData
+    * @param mxBeans null, if there is no JMX connection
+    * @return
+    * @throws Exception
+    */
+	static GarbageCollectionGroup getGarbageCollectionGroup(int periodSeconds,
+			long rtUptimeMs, MeasurementState lastMeasurement,
+			PerfDataFile perfData, RemoteMXBeans mxBeans) throws Exception {
+		GarbageCollectionGroup gcGroup = new GarbageCollectionGroup();
+		for (int i = 0; i < perfData.gcNames.length; i++) {
+			addGarbageCollectionSingle(gcGroup,
+					perfDataGcName(perfData.gcNames[i]),
+					perfData.getLong(perfData.gcInvocations[i]),
+					perfData.ticksToMillis(perfData.getLong(perfData.gcTimes[i])),
+					periodSeconds, rtUptimeMs, lastMeasurement);
+		}
+		long cpuTime = perfData.processCpuTimeNanos();
+		if (cpuTime >= 0)
+			gcGroup.cpuTimePercent = calculateCpuTimePercent(rtUptimeMs,
+					lastMeasurement, cpuTime, Runtime.getRuntime()
+							.availableProcessors());
+		else
+			gcGroup.cpuTimePercent = (mxBeans != null) ? calculateCpuTimePercent(
+					rtUptimeMs, lastMeasurement, mxBeans) : -1;
 		return gcGroup;
 	}
 
+   /***
+    * Values per period of a single garbage collector
+    * @param gcGroup
+    * @param gcName
+    * @param gcCount collections since the start of the JVM
+    * @param gcTime time of the collections since the start in ms
+    * @param periodSeconds
+    * @param rtUptimeMs
+    * @param lastMeasurement
+    */
+	static void addGarbageCollectionSingle(GarbageCollectionGroup gcGroup,
+			String gcName, long gcCount, long gcTime, int periodSeconds,
+			long rtUptimeMs, MeasurementState lastMeasurement) {
+		GarbageCollectionSingle gcSingle = new GarbageCollectionSingle();
+		gcSingle.gcName = gcName;
+		int slot = lastMeasurement.keyedSlot(MeasurementState.GC_GROUP,
+				gcSingle.gcName);
+		// Actual time since the last read (the read interval of the
+		// server may be longer than the period)
+		long elapsedMs = rtUptimeMs - lastMeasurement.time(slot);
+		boolean gcLast = lastMeasurement.has(slot) && elapsedMs > 0;
+		if (gcLast) {
+			gcSingle.gcCountPerPeriod = gcCount - lastMeasurement.value(slot);
+			gcSingle.gcTimePercent = ((gcTime - lastMeasurement.value2(slot))
+					* 1000 / elapsedMs) / 10.;
+		}
+		if (!gcLast || gcSingle.gcCountPerPeriod < 0
+				|| gcSingle.gcTimePercent < 0) {
+			// First time query (or Server-Reboot):
+			gcSingle.gcCountPerPeriod = gcCount
+					* periodInSeconds(periodSeconds) * 1000 / rtUptimeMs;
+			gcSingle.gcTimePercent = (gcTime * 1000 / rtUptimeMs) / 10.;
+		}
+		lastMeasurement.set(slot, gcCount, gcTime, rtUptimeMs);
+		gcGroup.gcSingles.add(gcSingle);
+		gcGroup.gcTimePercentSum += gcSingle.gcTimePercent;
+	}
+
+   /***
+    * Top-N threads of a server; if the JVM has no bulk thread methods (no
+    * HotSpot), they are not read again
+    * @param serverData
+    * @param rtUptimeMs uptime of the JVM read in this cycle
+    * @param mxBeans
+    * @return null for the first read or if not supported
+    * @throws IOException
+    */
+	static HotThreads getHotThreads(ServerData serverData, long rtUptimeMs,
+			RemoteMXBeans mxBeans) throws IOException {
+		try {
+			return serverData.threadActivity.read(mxBeans.threads(),
+					rtUptimeMs);
+		} catch (RuntimeException ex) {
+			if (ServerConnection.isConnectionFailure(ex))
+				throw ex;
+			System.out.println(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+					+ ", Url=" + serverData.url
+					+ ": no thread statistics (" + ex + ")");
+			serverData.threadActivity = null;
+			return null;
+		}
+	}
+
+   /***
+    * Rates of the memory pools of a server; if they can not be read (e.g.
+    * no such MBeans), they are not read again
+    * @param serverData
+    * @param rtUptimeMs uptime of the JVM read in this cycle
+    * @param mBeanServerConn
+    * @param gcGroup GC values of this cycle
+    * @return null for the first read or if not supported
+    * @throws IOException
+    */
+	static MemoryPoolRates getMemoryRates(ServerData serverData,
+			long rtUptimeMs, MBeanServerConnection mBeanServerConn,
+			GarbageCollectionGroup gcGroup) throws IOException {
+		MemoryPoolActivity memoryActivity = serverData.memoryActivity;
+		String error;
+		try {
+			return memoryActivity.read(mBeanServerConn, gcGroup, rtUptimeMs);
+		} catch (JMException ex) {
+			error = ex.toString();
+		} catch (RuntimeException ex) {
+			if (ServerConnection.isConnectionFailure(ex))
+				throw ex;
+			error = ex.toString();
+		}
+		System.out.println(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+				+ ", Url=" + serverData.url
+				+ ": no memory pool statistics (" + error + ")");
+		serverData.memoryActivity = null;
+		return null;
+	}
+
+	/***
+	 * Name of a garbage collector of the hsperfdata as used in the outputs
+	 * (e.g. "G1 young" instead of "G1 young collection pauses")
+	 * @param gcName
+	 * @return
+	 */
+	static String perfDataGcName(String gcName) {
+		int n = (gcName != null) ? gcName.indexOf(" collection") : -1;
+		return (n > 0) ? gcName.substring(0, n) : gcName;
+	}
+
+	/***
+	 * Name of a garbage collector as used in the outputs
+	 * (e.g. "Young Generation" instead of "G1 Young Generation")
+	 * @param gcName
+	 * @return
+	 */
+	static String shortGcName(String gcName) {
+		if (gcName != null && gcName.indexOf("Young") > 0) {
+			gcName = gcName.substring(gcName.indexOf("Young"));
+		}
+		if (gcName != null && gcName.indexOf("Old") > 0) {
+			gcName = gcName.substring(gcName.indexOf("Old"));
+		}
+		return gcName;
+	}
+
+	/***
+	 * Write queued outputs and pending CSV lines and close all open JMX
+	 * connections when the JVM terminates
+	 * @param serverDataArr
+	 * @param pipeline
+	 * @param csvOutput
+	 * @param tsStore
+	 * @param httpEndpoint
+	 * @param discovery local JVMs or null
+	 */
+	static void closeOnShutdown(final ServerData[] serverDataArr,
+			final OutputPipeline pipeline, final CsvOutput csvOutput,
+			final TimeSeriesStore tsStore,
+			final HttpMetricsEndpoint httpEndpoint,
+			final LocalJvmDiscovery discovery) {
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("JmxServerMonitoring-shutdown") {
+					public void run() {
+						pipeline.close(5000);
+						csvOutput.close();
+						if (tsStore != null)
+							tsStore.close();
+						if (httpEndpoint != null)
+							httpEndpoint.close();
+						for (ServerData serverData : serverDataArr)
+							serverData.connection.close();
+						if (discovery != null)
+							discovery.close();
+					}
+				});
+	}
+
 	private static int periodInSeconds(int periodSeconds) {
 		return periodSeconds;
 	}
@@ -348,173 +1301,378 @@ public class JmxServerMonitoring
     * CPU-Time
     * @param rtUptimeMs
     * @param lastMeasurement
-    * @param mBeanServerConn
+    * @param mxBeans
     * @return
     * @throws Exception
     */
 	static int calculateCpuTimePercent(long rtUptimeMs,
-			Map<String, Long[]> lastMeasurement,
-			MBeanServerConnection mBeanServerConn) throws Exception {
+			MeasurementState lastMeasurement, RemoteMXBeans mxBeans)
+			throws Exception {
 		final String CPUTIME_ATTRIBUTENAME = "ProcessCpuTime";
-		final String CPUTIME_OBJECTNAME = "java.lang:type=OperatingSystem";
-		final String CPUTIME_KEY = CPUTIME_ATTRIBUTENAME + "::"
-				+ CPUTIME_OBJECTNAME;
 		try {
-			Long cpuTime = (Long) mBeanServerConn.getAttribute(new ObjectName(
-					CPUTIME_OBJECTNAME), CPUTIME_ATTRIBUTENAME);
+			Long cpuTime = (Long) mxBeans.mBeanServerConn.getAttribute(
+					CPUTIME_OBJECTNAME, CPUTIME_ATTRIBUTENAME);
 			if (cpuTime == null)
 				return -1;
-			Long[] lastCpuTimeVals = lastMeasurement.get(CPUTIME_KEY);
-			lastMeasurement.put(CPUTIME_KEY, new Long[] { new Long(rtUptimeMs),
-					cpuTime });
-			OperatingSystemMXBean op = getOperatingSystemMXBeanFromRemote(mBeanServerConn);
-			long cpuCount = Math.max(1, op.getAvailableProcessors());
-			long lastRtUptimeMs = 0;
-			long lastCpuTime = 0;
-			if (lastCpuTimeVals != null && lastCpuTimeVals.length > 1) {
-				lastRtUptimeMs = lastCpuTimeVals[0].longValue();
-				lastCpuTime = lastCpuTimeVals[1].longValue();
-			}
-			return (int) Math.min(99, (cpuTime.longValue() - lastCpuTime)
-					/ ((rtUptimeMs - lastRtUptimeMs) * cpuCount * 10000));
+			return calculateCpuTimePercent(rtUptimeMs, lastMeasurement,
+					cpuTime.longValue(), mxBeans.availableProcessors());
 		} catch (Exception ex) {
 			return -1;
 		}
 	}
 
+   /***
+    * CPU-Time in % of all processors since the last measurement
+    * @param rtUptimeMs
+    * @param lastMeasurement
+    * @param cpuTime CPU time of the process in ns
+    * @param cpuCount
+    * @return
+    */
+	static int calculateCpuTimePercent(long rtUptimeMs,
+			MeasurementState lastMeasurement, long cpuTime, long cpuCount) {
+		final int slot = MeasurementState.CPU_SLOT;
+		long lastRtUptimeMs = 0;
+		long lastCpuTime = 0;
+		if (lastMeasurement.has(slot)) {
+			lastRtUptimeMs = lastMeasurement.time(slot);
+			lastCpuTime = lastMeasurement.value(slot);
+		}
+		lastMeasurement.set(slot, cpuTime, 0, rtUptimeMs);
+		if (rtUptimeMs <= lastRtUptimeMs)
+			return -1;
+		return (int) Math.min(99, (cpuTime - lastCpuTime)
+				/ ((rtUptimeMs - lastRtUptimeMs) * cpuCount * 10000));
+	}
+
    /***
     * Additional  MBean-Attribute queries
-    * @param attributeNames
+    * 
+    * All attributes of the same MBean are read with a single getAttributes()
+    * call; hierarchical names like x.y.z are resolved locally from the
+    * attribute value read for x.
+    * Only the plans which are due are read; the others keep the values of
+    * their last read.
+    * Plans with an aggregation yield one value (or K) for all MBeans of
+    * their pattern. The other patterns yield one value per MBean, up to the
+    * series limit of the server (lastMeasurement.maxSeries): the MBeans
+    * beyond it (by name) are not read.
+    * @param attributePlans
+    * @param duePlans plans to read in this cycle (null: all)
+    * @param planValues last values per plan (may be null)
     * @param periodSeconds
+    * @param rtUptimeMs uptime of the JVM read in this cycle
     * @param lastMeasurement
-    * @param mBeanServerConn
+    * @param mBeanServerConn null, if all plans are hsperfdata counters
+    * @param nameCache
+    * @param perfData hsperfdata of a local JVM or null
     * @return
     * @throws Exception
     */
 	static AttributeValueAndName[] getAttributes(
-			AttributeValueAndName[] attributeNames, int periodSeconds,
-			Map<String, Long[]> lastMeasurement,
-			MBeanServerConnection mBeanServerConn) throws Exception {
-		if (attributeNames == null || attributeNames.length <= 0)
+			AttributePlan[] attributePlans, boolean[] duePlans,
+			AttributeValueAndName[][] planValues, int periodSeconds,
+			long rtUptimeMs, MeasurementState lastMeasurement,
+			MBeanServerConnection mBeanServerConn, ObjectNameCache nameCache,
+			PerfDataFile perfData) throws Exception {
+		if (attributePlans == null || attributePlans.length <= 0)
 			return null;
 		List<AttributeValueAndName> attributesList = new ArrayList<AttributeValueAndName>();
-		for (AttributeValueAndName attrNam : attributeNames) {
-			boolean attrFound = false;
-			// Get all object names matching a pattern
-			Set<ObjectName> objectNames = mBeanServerConn.queryNames(
-					new ObjectName(attrNam.objectName.trim()), null);
+		// Get all object names matching a pattern and collect the names of
+		// the attributes to read per MBean
+		List<Set<ObjectName>> objectNamesPerAttr = new ArrayList<Set<ObjectName>>();
+		Map<ObjectName, Set<String>> rootAttrNames = new LinkedHashMap<ObjectName, Set<String>>();
+		boolean[] read = new boolean[attributePlans.length];
+		int maxSeries = (lastMeasurement != null) ? lastMeasurement.maxSeries
+				: 0;
+		int series = 0, droppedSeries = 0;
+		for (int a = 0; a < attributePlans.length; a++) {
+			AttributePlan plan = attributePlans[a];
+			read[a] = duePlans == null || duePlans[a] || planValues == null
+					|| planValues[a] == null;
+			if (!read[a]) {
+				objectNamesPerAttr.add(null);
+				series += planValues[a].length;
+				continue;
+			}
+			if (plan.perfData) {
+				objectNamesPerAttr.add(Collections.singleton(plan.objectName));
+				series++;
+				continue;
+			}
+			Set<ObjectName> objectNames = queryNames(plan.objectName,
+					mBeanServerConn, nameCache);
+			if (plan.aggregation != AttributePlan.AGGREGATE_NONE) {
+				series += (plan.aggregation == AttributePlan.AGGREGATE_TOP) ? plan.topK
+						: 1;
+			} else if (maxSeries > 0
+					&& series + objectNames.size() > maxSeries) {
+				// The first MBeans by name, the same ones in every cycle
+				int keep = Math.max(maxSeries - series, 0);
+				droppedSeries += objectNames.size() - keep;
+				Set<ObjectName> kept = new LinkedHashSet<ObjectName>();
+				for (ObjectName objectName : new TreeSet<ObjectName>(
+						objectNames)) {
+					if (kept.size() >= keep)
+						break;
+					kept.add(objectName);
+				}
+				objectNames = kept;
+				series += Math.max(keep, 1);
+			} else {
+				series += Math.max(objectNames.size(), 1);
+			}
+			objectNamesPerAttr.add(objectNames);
+			if (plan.invoke)
+				continue;
+			String rootAttrName = plan.rootAttributeName;
 			for (ObjectName objectName : objectNames) {
+				Set<String> names = rootAttrNames.get(objectName);
+				if (names == null) {
+					names = new LinkedHashSet<String>();
+					rootAttrNames.put(objectName, names);
+				}
+				names.add(rootAttrName);
+			}
+		}
+		if (lastMeasurement != null)
+			lastMeasurement.droppedSeries = droppedSeries;
+		// One remote call per MBean
+		Map<ObjectName, Map<String, Object>> rootAttrValues = readAttributes(
+				rootAttrNames, mBeanServerConn);
+		for (int a = 0; a < attributePlans.length; a++) {
+			AttributePlan plan = attributePlans[a];
+			AttributeValueAndName attrNam = plan.definition;
+			if (!read[a]) {
+				// Not due: values of the last read
+				for (AttributeValueAndName attrVal : planValues[a])
+					attributesList.add(attrVal);
+				continue;
+			}
+			int first = attributesList.size();
+			boolean attrFound = false;
+			PatternAggregation aggregation = (plan.aggregation != AttributePlan.AGGREGATE_NONE) ? new PatternAggregation(
+					plan) : null;
+			// Last values per MBean of a pattern, only for the MBeans which
+			// still match
+			boolean keyed = attrNam.diff && plan.objectName.isPattern()
+					&& lastMeasurement != null;
+			if (keyed)
+				lastMeasurement.beginKeyedRead();
+			for (ObjectName objectName : objectNamesPerAttr.get(a)) {
+				int slot = keyed ? lastMeasurement.keyedSlot(plan.keyGroup,
+						objectName) : plan.slot;
 				Object obj = null;
+				AttributeValueAndName attrVal = new AttributeValueAndName();
+				attrVal.diff = attrNam.diff;
+				attrVal.title = attrNam.title;
+				attrVal.attributeName = attrNam.attributeName;
+				attrVal.objectName = "" + objectName;
+				if (plan.objectName.isPattern())
+					attrVal.instance = attrVal.objectName;
+				attrFound = true;
 				// Handle invocation of operations on attributes
-				if (attrNam.attributeName.trim().equalsIgnoreCase("invoke")) {
-					obj = invoke(attrNam.methodName, attrNam.methodParms,
-							objectName, mBeanServerConn);
+				if (plan.invoke) {
+					obj = invoke(plan, objectName, mBeanServerConn);
+				} else if (plan.perfData) {
+					// Counter of the hsperfdata file (only for local JVMs)
+					obj = (perfData != null) ? perfData
+							.getValue(attrNam.attributeName.trim()) : null;
+					if (obj == null) {
+						if (aggregation == null)
+							attributesList.add(attrVal);
+						continue;
+					}
 				} else {
 					// Handle reading of attribute values. Hierarchical names
 					// like x.y.z are supported
 					// The attribute value of the last element in a compound
 					// name is supposed to be integer or long
-					String attrName = attrNam.attributeName.trim();
-					String[] attrNameParts = attrName.split("\\.");
-					obj = mBeanServerConn.getAttribute(objectName,
-							attrNameParts[0]);
-					for (int i = 1; i < attrNameParts.length; ++i) {
-						obj = ((CompositeData) obj).get(attrNameParts[i]);
+					Map<String, Object> values = rootAttrValues.get(objectName);
+					if (values == null
+							|| !values.containsKey(plan.rootAttributeName)) {
+						// Attribute could not be read: keep the error value
+						if (aggregation == null)
+							attributesList.add(attrVal);
+						continue;
 					}
+					obj = plan.resolvePath(values.get(plan.rootAttributeName));
 				}
-				AttributeValueAndName attrVal = new AttributeValueAndName();
-				attrVal.diff = attrNam.diff;
-				attrVal.title = attrNam.title;
-				attrVal.attributeName = attrNam.attributeName;
-				attrVal.objectName = "" + objectName;
-				long actVal = -1;
-				try {
-					actVal = Long.parseLong("" + obj);
-				} catch (Exception ex) {/* ok */
-				}
+				long actVal = toLong(obj);
+				double number;
 				if (!attrVal.diff || actVal < 0 || periodSeconds <= 0) {
 					// No difference based output:
-					attrVal.value = (obj instanceof Double) ? DECIMAL_FORMAT2
-							.format(obj) : ("" + obj);
+					attrVal.value = (obj instanceof Double) ? formatDecimal(
+							DECIMAL_FORMAT2, obj) : ("" + obj);
+					number = (obj instanceof Number) ? ((Number) obj)
+							.doubleValue() : (actVal >= 0) ? actVal
+							: Double.NaN;
 				} else {
 					// difference based output and conversion into per second
 					// values:
-					String key = attrVal.attributeName + "::"
-							+ attrVal.objectName;
-					Long[] lastVal = lastMeasurement.get(key);
-					lastMeasurement.put(key, new Long[] { new Long(actVal) });
-					long v = 0;
-					if (lastVal != null && lastVal[0] != null
-							&& (v = actVal - lastVal[0].longValue()) >= 0) {
+					boolean lastVal = lastMeasurement.has(slot);
+					long v = actVal - lastMeasurement.value(slot);
+					// Actual time since the last read of this value
+					long elapsedMs = rtUptimeMs - lastMeasurement.time(slot);
+					lastMeasurement.set(slot, actVal, 0, rtUptimeMs);
+					if (lastVal && v >= 0 && elapsedMs > 0) {
 						// There is a valid last value:
-						v = v / periodSeconds / 6;// ????
+						v = v * 1000 / elapsedMs / 6;// ????
 					} else {
-						// Read previous up-time of the JVM from
-						// Remote-Runtime-MXBean:
-						long rtUptimeMs = getRuntimeMXBeanFromRemote(
-								mBeanServerConn).getUptime();
+						// No previous value: average over the up-time of the
+						// JVM
 						v = actVal * 10000 / rtUptimeMs;
 					}
-					attrVal.value = DECIMAL_FORMAT1.format(v / 10.);
+					attrVal.value = formatDecimal(DECIMAL_FORMAT1, v / 10.);
+					number = v / 10.;
 				}
-				attributesList.add(attrVal);
-				attrFound = true;
+				if (aggregation != null)
+					aggregation.add(number, attrVal);
+				else
+					attributesList.add(attrVal);
 			}
-			if (!attrFound) {
+			if (keyed)
+				lastMeasurement.releaseUnread(plan.keyGroup);
+			if (aggregation != null) {
+				// Also without matching MBeans (same number of values)
+				for (AttributeValueAndName attrVal : aggregation.result())
+					attributesList.add(attrVal);
+			} else if (!attrFound) {
 				attributesList.add(attrNam);
 			}
+			if (planValues != null) {
+				List<AttributeValueAndName> values = attributesList.subList(
+						first, attributesList.size());
+				planValues[a] = values.toArray(new AttributeValueAndName[values
+						.size()]);
+			}
 		}
 		return attributesList.toArray(new AttributeValueAndName[attributesList
 				.size()]);
 	}
 
    /***
-    * Invoke an MBean-Method
-    * @param methodName
-    * @param parms
+    * Integral attribute value or -1 (also for non-integral values)
+    * @param obj
+    * @return
+    */
+	static long toLong(Object obj) {
+		if (obj instanceof Long || obj instanceof Integer
+				|| obj instanceof Short || obj instanceof Byte)
+			return ((Number) obj).longValue();
+		if (obj == null || obj instanceof Number)
+			return -1;
+		try {
+			return Long.parseLong(obj.toString());
+		} catch (Exception ex) {/* ok */
+			return -1;
+		}
+	}
+
+   /***
+    * Resolve an ObjectName pattern, from the cache of the connection if
+    * available
+    * @param pattern
+    * @param mBeanServerConn
+    * @param nameCache
+    * @return
+    * @throws IOException
+    */
+	static Set<ObjectName> queryNames(ObjectName pattern,
+			MBeanServerConnection mBeanServerConn, ObjectNameCache nameCache)
+			throws IOException {
+		long startNanos = System.nanoTime();
+		try {
+			if (nameCache == null)
+				return mBeanServerConn.queryNames(pattern, null);
+			return nameCache.queryNames(pattern, mBeanServerConn);
+		} finally {
+			CollectorStats.STATS.record(CollectorStats.QUERY_NAMES,
+					startNanos);
+		}
+	}
+
+   /***
+    * Read the attribute values of several MBeans with one getAttributes() call
+    * per MBean. Attributes which can not be read are missing in the result.
+    * @param attrNamesPerObjectName
+    * @param mBeanServerConn
+    * @return attribute values by attribute name per MBean
+    * @throws Exception
+    */
+	static Map<ObjectName, Map<String, Object>> readAttributes(
+			Map<ObjectName, Set<String>> attrNamesPerObjectName,
+			MBeanServerConnection mBeanServerConn) throws Exception {
+		Map<ObjectName, Map<String, Object>> result = new HashMap<ObjectName, Map<String, Object>>();
+		for (Map.Entry<ObjectName, Set<String>> entry : attrNamesPerObjectName
+				.entrySet()) {
+			Set<String> names = entry.getValue();
+			AttributeList attributeList;
+			long startNanos = System.nanoTime();
+			try {
+				attributeList = mBeanServerConn.getAttributes(entry.getKey(),
+						names.toArray(new String[names.size()]));
+			} catch (InstanceNotFoundException ex) {
+				// MBean was unregistered in the meantime
+				continue;
+			} finally {
+				CollectorStats.STATS.record(CollectorStats.GET_ATTRIBUTES,
+						startNanos);
+			}
+			Map<String, Object> values = new HashMap<String, Object>();
+			for (Attribute attribute : attributeList.asList()) {
+				values.put(attribute.getName(), attribute.getValue());
+			}
+			result.put(entry.getKey(), values);
+		}
+		return result;
+	}
+
+   /***
+    * DecimalFormat is not thread-safe, but attributes of different servers
+    * may be converted in parallel
+    * @param format
+    * @param value
+    * @return
+    */
+	static String formatDecimal(DecimalFormat format, Object value) {
+		synchronized (format) {
+			return format.format(value);
+		}
+	}
+
+   /***
+    * SimpleDateFormat is not thread-safe, but the outputs run in their own
+    * threads
+    * @param format
+    * @param date
+    * @return
+    */
+	static String formatDate(SimpleDateFormat format, Date date) {
+		synchronized (format) {
+			return format.format(date);
+		}
+	}
+
+   /***
+    * Invoke an MBean-Method (parameters and signature are prepared by the plan)
+    * @param plan
     * @param on
     * @param mBeanServerConn
     * @return
     * @throws Exception
     */
-	static Object invoke(String methodName, String[] parms, ObjectName on,
+	static Object invoke(AttributePlan plan, ObjectName on,
 			MBeanServerConnection mBeanServerConn) throws Exception {
-		if (methodName == null || on == null || mBeanServerConn == null)
+		if (plan.methodName == null || on == null || mBeanServerConn == null)
 			return null;
-		Object[] oa = null;
-		String[] sa = null;
-		if (parms != null && parms.length >= 2) {
-			final Map<String, Class<?>[]> PRIMITIVE_TYPEN = new HashMap<String, Class<?>[]>();
-			PRIMITIVE_TYPEN.put("boolean", new Class<?>[] { boolean.class,
-					Boolean.class });
-			PRIMITIVE_TYPEN.put("int", new Class<?>[] { int.class,
-					Integer.class });
-			PRIMITIVE_TYPEN.put("long",
-					new Class<?>[] { long.class, Long.class });
-			PRIMITIVE_TYPEN.put("double", new Class<?>[] { double.class,
-					Double.class });
-			oa = new Object[parms.length / 2];
-			sa = new String[parms.length / 2];
-			for (int i = 0; i < parms.length - 1; i++) {
-				// Are parameters of primitive types?
-				Class<?>[] classForSigAndObj = PRIMITIVE_TYPEN.get(parms[i]);
-				// Classes as Parameter-Types:
-				if (classForSigAndObj == null) {
-					classForSigAndObj = new Class<?>[2];
-					try {
-						classForSigAndObj[0] = Class.forName("java.lang."
-								+ parms[i]);
-					} catch (ClassNotFoundException ex) {
-						classForSigAndObj[0] = Class.forName(parms[i]);
-					}
-					classForSigAndObj[1] = classForSigAndObj[0];
-				}
-				oa[i / 2] = classForSigAndObj[1].getConstructor(String.class)
-						.newInstance(parms[++i]);
-				sa[i / 2] = classForSigAndObj[0].getName();
-			}
+		long startNanos = System.nanoTime();
+		try {
+			return mBeanServerConn.invoke(on, plan.methodName,
+					plan.methodParams, plan.methodSignature);
+		} finally {
+			CollectorStats.STATS.record(CollectorStats.INVOKE, startNanos);
 		}
-		return mBeanServerConn.invoke(on, methodName, oa, sa);
 	}
 
    /***
@@ -528,12 +1686,37 @@ public class JmxServerMonitoring
     */
 	static JMXConnector getJMXConnector(String url, String usr, String pwd)
 			throws MalformedURLException, IOException {
+		return getJMXConnector(url, usr, pwd, 0);
+	}
+
+   /***
+    * JMX-Connection with a read timeout of the RMI sockets: notifications
+    * are fetched with a shorter timeout, so that the waiting fetch call is
+    * not taken for a hanging connection
+    * @param url
+    * @param usr
+    * @param pwd
+    * @param readTimeoutMillis 0 = none
+    * @return
+    * @throws MalformedURLException
+    * @throws IOException
+    */
+	static JMXConnector getJMXConnector(String url, String usr, String pwd,
+			long readTimeoutMillis) throws MalformedURLException, IOException {
+		Map<String, Object> envMap = new HashMap<String, Object>();
+		if (readTimeoutMillis > 0)
+			envMap.put("jmx.remote.x.notification.fetch.timeout",
+					Long.valueOf(readTimeoutMillis / 2));
+		if (url.startsWith(LocalAttach.PID_PREFIX))
+			return LocalAttach.connect(
+					url.substring(LocalAttach.PID_PREFIX.length()).trim(),
+					envMap);
 		String serviceUrl = "service:jmx:rmi:///jndi/rmi://" + url + "/jmxrmi";
 		if (usr == null || usr.trim().length() <= 0 || pwd == null
 				|| pwd.trim().length() <= 0) {
-			return JMXConnectorFactory.connect(new JMXServiceURL(serviceUrl));
+			return JMXConnectorFactory.connect(new JMXServiceURL(serviceUrl),
+					envMap);
 		}
-		Map<String, Object> envMap = new HashMap<String, Object>();
 		envMap.put("jmx.remote.credentials", new String[] { usr, pwd });
 		envMap.put(Context.SECURITY_PRINCIPAL, usr);
 		envMap.put(Context.SECURITY_CREDENTIALS, pwd);
@@ -567,27 +1750,26 @@ public class JmxServerMonitoring
 	}
 
    /***
-    * Read GarbageCollector-MXBeans from Remote
-    * @param mBeanServerConn
+    * Read GarbageCollector-MXBeans from Remote (proxies are cached per
+    * connection)
+    * @param mxBeans
+    * @param nameCache
     * @return
     * @throws MalformedObjectNameException
     * @throws NullPointerException
     * @throws IOException
     */
 	static List<GarbageCollectorMXBean> getGarbageCollectorMXBeansFromRemote(
-			MBeanServerConnection mBeanServerConn)
+			RemoteMXBeans mxBeans, ObjectNameCache nameCache)
 			throws MalformedObjectNameException, NullPointerException,
 			IOException {
 		List<GarbageCollectorMXBean> gcMXBeans = new ArrayList<GarbageCollectorMXBean>();
 		ObjectName gcAllObjectName = new ObjectName(
 				ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*");
-		Set<ObjectName> gcMXBeanObjectNames = mBeanServerConn.queryNames(
-				gcAllObjectName, null);
+		Set<ObjectName> gcMXBeanObjectNames = queryNames(gcAllObjectName,
+				mxBeans.mBeanServerConn, nameCache);
 		for (ObjectName on : gcMXBeanObjectNames) {
-			GarbageCollectorMXBean gc = ManagementFactory
-					.newPlatformMXBeanProxy(mBeanServerConn,
-							on.getCanonicalName(), GarbageCollectorMXBean.class);
-			gcMXBeans.add(gc);
+			gcMXBeans.add(mxBeans.garbageCollector(on));
 		}
 		return gcMXBeans;
 	}
@@ -596,31 +1778,112 @@ public class JmxServerMonitoring
     * Output to console
     * @param serverDataArr
     * @param showConsole
+    * @param pipeline for the state of the outputs (may be null)
+    * @param writtenGcGroups GC values written last per server URL (may be null)
     */
-	static void writeConsole(ServerData[] serverDataArr, boolean showConsole) {
+	static void writeConsole(ServerData[] serverDataArr, boolean showConsole,
+			OutputPipeline pipeline, HistogramWindow window,
+			Map<String, GarbageCollectionGroup> writtenGcGroups) {
 		if (serverDataArr == null || serverDataArr.length <= 0 || !showConsole)
 			return;
 		for (ServerData serverData : serverDataArr) {
 			if (serverData.gcGroup == null)
 				continue;
-			System.out.print(YYYYMMDD_HHMMSS_STD
-					.format(serverData.gcGroup.dateTime) + ": ");
+			System.out.print(formatDate(YYYYMMDD_HHMMSS_STD, serverData.gcGroup.dateTime) + ": ");
 			System.out.print(serverData.serverNameUndUrl + ": ");
 			System.out
 					.println("GarbageCollectionPercent = "
-							+ DECIMAL_FORMAT1
-									.format(serverData.gcGroup.gcTimePercentSum)
+							+ formatDecimal(DECIMAL_FORMAT1,
+									serverData.gcGroup.gcTimePercentSum)
 							+ " %");
 		}
 		for (ServerData serverData : serverDataArr) {
 			if (serverData.gcGroup == null)
 				continue;
-			System.out.print(YYYYMMDD_HHMMSS_STD
-					.format(serverData.gcGroup.dateTime) + ": ");
+			System.out.print(formatDate(YYYYMMDD_HHMMSS_STD, serverData.gcGroup.dateTime) + ": ");
 			System.out.print(serverData.serverNameUndUrl + ": ");
 			System.out.println("CpuTimePercent = "
 					+ serverData.gcGroup.cpuTimePercent + " %");
 		}
+		for (ServerData serverData : serverDataArr) {
+			// The pauses of a GC read which was not due were already written
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.gcPauses == null
+					|| !isNewGcGroup(serverData, writtenGcGroups))
+				continue;
+			String prefix = formatDate(YYYYMMDD_HHMMSS_STD,
+					serverData.gcGroup.dateTime)
+					+ ": " + serverData.serverNameUndUrl + ": ";
+			System.out.println(prefix + "GcPauses = "
+					+ serverData.gcGroup.gcPauses.size() + ", max = "
+					+ serverData.gcGroup.maxPauseMillis + " ms"
+					+ (serverData.gcGroup.lostGcPauses > 0 ? ", lost = "
+							+ serverData.gcGroup.lostGcPauses : ""));
+			for (GcPause pause : serverData.gcGroup.gcPauses) {
+				System.out.println(prefix + "GcPause " + pause.gcName + " = "
+						+ pause.durationMillis + " ms (" + pause.gcAction
+						+ ", " + pause.gcCause + ", "
+						+ pause.usedBeforeSum() / 1024 + " -> "
+						+ pause.usedAfterSum() / 1024 + " KB)");
+			}
+		}
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.hotThreads == null)
+				continue;
+			String prefix = formatDate(YYYYMMDD_HHMMSS_STD,
+					serverData.gcGroup.dateTime)
+					+ ": " + serverData.serverNameUndUrl + ": ";
+			HotThreads hotThreads = serverData.gcGroup.hotThreads;
+			for (HotThread hotThread : hotThreads.byCpu)
+				System.out.println(prefix + "HotThreadCpu " + hotThread.threadName
+						+ " = " + formatDecimal(DECIMAL_FORMAT1,
+								hotThread.cpuPercent) + " %");
+			if (hotThreads.byAllocation != null)
+				for (HotThread hotThread : hotThreads.byAllocation)
+					System.out.println(prefix + "HotThreadAllocation "
+							+ hotThread.threadName + " = "
+							+ hotThread.allocatedBytesPerSecond / 1024
+							+ " KB/s");
+		}
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.gcGroup == null
+					|| serverData.gcGroup.memoryRates == null)
+				continue;
+			String prefix = formatDate(YYYYMMDD_HHMMSS_STD,
+					serverData.gcGroup.dateTime)
+					+ ": " + serverData.serverNameUndUrl + ": ";
+			MemoryPoolRates rates = serverData.gcGroup.memoryRates;
+			String estimated = rates.fromNotifications ? "" : " (estimated)";
+			System.out.println(prefix + "AllocationRate = "
+					+ rates.allocatedBytesPerSecond / 1024 + " KB/s"
+					+ estimated);
+			if (rates.promotedBytesPerSecond >= 0)
+				System.out.println(prefix + "PromotionRate = "
+						+ rates.promotedBytesPerSecond / 1024 + " KB/s"
+						+ estimated);
+			if (rates.liveSetBytes >= 0)
+				System.out.println(prefix + "LiveSetAfterGc = "
+						+ rates.liveSetBytes / 1024 + " KB"
+						+ (Double.isNaN(rates.liveSetTrendBytesPerHour) ? ""
+								: ", trend = "
+										+ Math.round(rates.liveSetTrendBytesPerHour / 1024)
+										+ " KB/h"));
+			if (rates.thresholdExceeded > 0)
+				System.out.println(prefix + "LiveSetThresholdExceeded = "
+						+ rates.thresholdExceeded + " ("
+						+ rates.thresholdUsedBytes / 1024 + " KB)");
+		}
+		for (ServerData serverData : serverDataArr) {
+			System.out.print(formatDate(YYYYMMDD_HHMMSS_STD, new Date()) + ": ");
+			System.out.print(serverData.serverNameUndUrl + ": ");
+			CircuitBreaker breaker = serverData.connection.breaker;
+			System.out.println("JmxConnections = "
+					+ serverData.connection.connectCount + " opened, "
+					+ serverData.connection.reuseCount + " reused"
+					+ (breaker.isClosed() ? "" : ", unreachable ("
+							+ breaker.failures() + " failures)"));
+		}
 		for (ServerData serverData : serverDataArr) {
 			if (serverData.attributes == null
 					|| serverData.attributes.length <= 0)
@@ -629,21 +1892,79 @@ public class JmxServerMonitoring
 				if (attr.value == null || attr.value.length() <= 0
 						|| attr.value.equals(AttributeValueAndName.ERR_VALUE))
 					continue;
-				System.out.print(YYYYMMDD_HHMMSS_STD.format(attr.dateTime)
+				System.out.print(formatDate(YYYYMMDD_HHMMSS_STD, attr.dateTime)
 						+ ": ");
 				System.out.print(serverData.serverNameUndUrl + ": ");
 				System.out.println(attr.title + " = " + attr.value);
 			}
 		}
+		if (window != null) {
+			long seconds = (window.endMillis - window.startMillis + 500) / 1000;
+			String prefix = formatDate(YYYYMMDD_HHMMSS_STD,
+					new Date(window.endMillis)) + ": ";
+			for (HistogramWindow.Summary summary : window.summaries) {
+				System.out.println(prefix
+						+ ((summary.serverName != null) ? summary.serverName
+								: "All servers") + ": " + summary.qualifiedMetric()
+						+ " [" + seconds + " s]: count = " + summary.count
+						+ ", min = " + formatDecimal(DECIMAL_FORMAT2, summary.min)
+						+ ", p50 = " + formatDecimal(DECIMAL_FORMAT2, summary.p50)
+						+ ", p90 = " + formatDecimal(DECIMAL_FORMAT2, summary.p90)
+						+ ", p99 = " + formatDecimal(DECIMAL_FORMAT2, summary.p99)
+						+ ", p99.9 = " + formatDecimal(DECIMAL_FORMAT2, summary.p999)
+						+ ", max = " + formatDecimal(DECIMAL_FORMAT2, summary.max)
+						+ ", mean = " + formatDecimal(DECIMAL_FORMAT2, summary.mean));
+			}
+		}
+		for (OutputPipeline.SinkWorker worker : (pipeline != null) ? pipeline.workers
+				: Collections.<OutputPipeline.SinkWorker> emptyList()) {
+			if (worker.dropped <= 0
+					&& worker.lastLagMillis < WARN_OUTPUT_LAG_MILLIS)
+				continue;
+			System.out.print(formatDate(YYYYMMDD_HHMMSS_STD, new Date())
+					+ ": ");
+			System.out.println("Output " + worker.sinkName + ": lag = "
+					+ worker.lastLagMillis + " ms (max " + worker.maxLagMillis
+					+ " ms), dropped cycles = " + worker.dropped);
+		}
 		System.out.println();
+		rememberGcGroups(serverDataArr, writtenGcGroups);
+	}
+
+   /***
+    * Whether the GC values of a server were read after the last output
+    * (reads which are not due keep the last group)
+    * @param serverData
+    * @param writtenGcGroups GC values written last per server URL (may be null)
+    * @return
+    */
+	static boolean isNewGcGroup(ServerData serverData,
+			Map<String, GarbageCollectionGroup> writtenGcGroups) {
+		return writtenGcGroups == null
+				|| writtenGcGroups.get(serverData.url) != serverData.gcGroup;
+	}
+
+	static void rememberGcGroups(ServerData[] serverDataArr,
+			Map<String, GarbageCollectionGroup> writtenGcGroups) {
+		if (writtenGcGroups == null)
+			return;
+		// Only the current servers (local JVMs come and go)
+		writtenGcGroups.clear();
+		for (ServerData serverData : serverDataArr)
+			if (serverData.gcGroup != null)
+				writtenGcGroups.put(serverData.url, serverData.gcGroup);
 	}
 
    /***
     * Write summary results into a file (e.g. for Nagios)
     * @param serverDataArr
     * @param nagiosFile
+    * @param pipeline for the state of the outputs (may be null)
+    * @param writtenGcGroups GC values written last per server URL (may be null)
     */
-	static void writeNagiosFile(ServerData[] serverDataArr, String nagiosFile) {
+	static void writeNagiosFile(ServerData[] serverDataArr, String nagiosFile,
+			OutputPipeline pipeline,
+			Map<String, GarbageCollectionGroup> writtenGcGroups) {
 		if (serverDataArr == null || serverDataArr.length <= 0
 				|| nagiosFile == null || nagiosFile.trim().length() <= 0)
 			return;
@@ -654,14 +1975,14 @@ public class JmxServerMonitoring
 					new FileOutputStream(nagiosFile)));
 			out.write("SecondsSince1970=" + (dat.getTime() / 1000));
 			out.newLine();
-			out.write("DateTime=" + YYYYMMDD_HHMMSS_NAG.format(dat));
+			out.write("DateTime=" + formatDate(YYYYMMDD_HHMMSS_NAG, dat));
 			out.newLine();
 			for (ServerData serverData : serverDataArr) {
 				if (serverData.gcGroup == null)
 					continue;
 				out.write(serverData.serverName.replaceAll("[:-]", ".") + ".");
 				out.write("GarbageCollectionPercent="
-						+ DECIMAL_FORMAT1.format(
+						+ formatDecimal(DECIMAL_FORMAT1,
 								serverData.gcGroup.gcTimePercentSum).replace(
 								',', '.'));
 				out.newLine();
@@ -673,6 +1994,89 @@ public class JmxServerMonitoring
 				out.write("CpuTimePercent=" + serverData.gcGroup.cpuTimePercent);
 				out.newLine();
 			}
+			for (ServerData serverData : serverDataArr) {
+				if (serverData.gcGroup == null
+						|| serverData.gcGroup.gcPauses == null)
+					continue;
+				String prefix = serverData.serverName.replaceAll("[:-]", ".")
+						+ ".";
+				// No new pauses, if the GC values were not read again
+				boolean fresh = isNewGcGroup(serverData, writtenGcGroups);
+				out.write(prefix + "GcPauses="
+						+ (fresh ? serverData.gcGroup.gcPauses.size() : 0));
+				out.newLine();
+				out.write(prefix + "GcMaxPauseMillis="
+						+ (fresh ? serverData.gcGroup.maxPauseMillis : 0));
+				out.newLine();
+				out.write(prefix + "GcLostPauses="
+						+ serverData.gcGroup.lostGcPauses);
+				out.newLine();
+			}
+			for (ServerData serverData : serverDataArr) {
+				if (serverData.gcGroup == null
+						|| serverData.gcGroup.hotThreads == null)
+					continue;
+				// Only the top thread of each metric
+				String prefix = serverData.serverName.replaceAll("[:-]", ".")
+						+ ".";
+				HotThreads hotThreads = serverData.gcGroup.hotThreads;
+				out.write(prefix + "TopThreadCpuPercent="
+						+ ((hotThreads.byCpu.length > 0) ? formatDecimal(
+								DECIMAL_FORMAT1, hotThreads.byCpu[0].cpuPercent)
+								.replace(',', '.') : "0.0"));
+				out.newLine();
+				if (hotThreads.byAllocation != null) {
+					out.write(prefix
+							+ "TopThreadAllocatedBytesPerSecond="
+							+ ((hotThreads.byAllocation.length > 0) ? hotThreads.byAllocation[0].allocatedBytesPerSecond
+									: 0));
+					out.newLine();
+				}
+			}
+			for (ServerData serverData : serverDataArr) {
+				if (serverData.gcGroup == null
+						|| serverData.gcGroup.memoryRates == null)
+					continue;
+				String prefix = serverData.serverName.replaceAll("[:-]", ".")
+						+ ".";
+				MemoryPoolRates rates = serverData.gcGroup.memoryRates;
+				out.write(prefix + "AllocatedBytesPerSecond="
+						+ rates.allocatedBytesPerSecond);
+				out.newLine();
+				if (rates.promotedBytesPerSecond >= 0) {
+					out.write(prefix + "PromotedBytesPerSecond="
+							+ rates.promotedBytesPerSecond);
+					out.newLine();
+				}
+				if (rates.liveSetBytes >= 0) {
+					out.write(prefix + "LiveSetBytes=" + rates.liveSetBytes);
+					out.newLine();
+				}
+				if (!Double.isNaN(rates.liveSetTrendBytesPerHour)) {
+					out.write(prefix + "LiveSetTrendBytesPerHour="
+							+ Math.round(rates.liveSetTrendBytesPerHour));
+					out.newLine();
+				}
+				out.write(prefix + "LiveSetThresholdExceeded="
+						+ rates.thresholdExceeded);
+				out.newLine();
+			}
+			for (ServerData serverData : serverDataArr) {
+				String prefix = serverData.serverName.replaceAll("[:-]", ".")
+						+ ".";
+				out.write(prefix + "JmxConnects="
+						+ serverData.connection.connectCount);
+				out.newLine();
+				out.write(prefix + "JmxConnectionReuses="
+						+ serverData.connection.reuseCount);
+				out.newLine();
+				out.write(prefix + "JmxCircuitOpen="
+						+ (serverData.connection.breaker.isClosed() ? 0 : 1));
+				out.newLine();
+				out.write(prefix + "JmxConnectFailures="
+						+ serverData.connection.breaker.failures());
+				out.newLine();
+			}
 			for (ServerData serverData : serverDataArr) {
 				if (serverData.attributes == null
 						|| serverData.attributes.length <= 0)
@@ -692,81 +2096,20 @@ public class JmxServerMonitoring
 					out.newLine();
 				}
 			}
-		} catch (Exception exWrite) {
-			System.out.println("Error writing Nagios-file '" + nagiosFile
-					+ "': " + exWrite);
-		} finally {
-			if (out != null)
-				try {
-					out.close();
-				} catch (Exception exClose) {/* ok */
-				}
-		}
-	}
-
-   /***
-    * Output into a single CSV-file (Comma Separated Values, e.g. for Excel):
-    * Use a common CSV-file for all Servers (GC: only with summary values)
-    * @param serverDataArr
-    * @param csvFile
-    */
-   // 
-	static void writeCsvFileOneForAllServers(ServerData[] serverDataArr,
-			String csvFile) {
-		if (serverDataArr == null || serverDataArr.length <= 0
-				|| csvFile == null || csvFile.trim().length() <= 0)
-			return;
-		BufferedWriter out = null;
-		try {
-			boolean exists = (new File(csvFile)).exists();
-			out = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(csvFile, true)));
-			if (!exists) {
-				out.write("Date/Time;");
-				for (ServerData serverData : serverDataArr) {
-					out.write(" "
-							+ ((serverData != null) ? ("GC-" + serverData.serverName)
-									: "?") + ";");
-				}
-				for (ServerData serverData : serverDataArr) {
-					out.write(" "
-							+ ((serverData != null) ? ("CPU-" + serverData.serverName)
-									: "?") + ";");
-				}
-				for (ServerData serverData : serverDataArr) {
-					if (serverData != null && serverData.attributes != null) {
-						for (AttributeValueAndName attr : serverData.attributes) {
-							out.write(" " + attr.title + "-"
-									+ serverData.serverName + ";");
-						}
-					}
-				}
-				out.newLine();
-			}
-			out.write(YYYYMMDD_HHMMSS_STD.format(new Date()) + ";");
-			for (ServerData serverData : serverDataArr) {
-				double d = (serverData != null && serverData.gcGroup != null) ? serverData.gcGroup.gcTimePercentSum
-						: -0.1;
-				out.write(" " + DECIMAL_FORMAT1.format(d) + ";");
-			}
-			for (ServerData serverData : serverDataArr) {
-				out.write(((serverData != null && serverData.gcGroup != null) ? (" " + serverData.gcGroup.cpuTimePercent)
-						: " -0.1")
-						+ ";");
-			}
-			for (ServerData serverData : serverDataArr) {
-				if (serverData != null && serverData.attributes != null) {
-					for (AttributeValueAndName attr : serverData.attributes) {
-						out.write(" "
-								+ attr.value.replaceAll("\r\n|\r|\n", ". ")
-								+ ";");
-					}
+			if (pipeline != null) {
+				for (OutputPipeline.SinkWorker worker : pipeline.workers) {
+					String prefix = "JmxServerMonitoring.Output."
+							+ worker.sinkName + ".";
+					out.write(prefix + "LagMillis=" + worker.lastLagMillis);
+					out.newLine();
+					out.write(prefix + "DroppedCycles=" + worker.dropped);
+					out.newLine();
 				}
 			}
-			out.newLine();
+			rememberGcGroups(serverDataArr, writtenGcGroups);
 		} catch (Exception exWrite) {
-			System.out.println("Error writing the CSV-file '" + csvFile + "': "
-					+ exWrite);
+			System.out.println("Error writing Nagios-file '" + nagiosFile
+					+ "': " + exWrite);
 		} finally {
 			if (out != null)
 				try {
@@ -776,76 +2119,6 @@ public class JmxServerMonitoring
 		}
 	}
 
-   /***
-    * Output into multiple CSV-files (Comma Separated Values, e.g. for Excel):
-    * Output a separate CSV-file per server with all collected GC-values
-    * 
-    * @param serverDataArr
-    * @param csvFileOhneUrl
-    * @param writeAllGcValues
-    */
-	static void writeCsvFilePerServerWithDifferentGcValues(
-			ServerData[] serverDataArr, String csvFileOhneUrl,
-			boolean writeAllGcValues) {
-		if (!writeAllGcValues || serverDataArr == null
-				|| serverDataArr.length <= 0 || csvFileOhneUrl == null
-				|| csvFileOhneUrl.trim().length() <= 0)
-			return;
-		for (ServerData serverData : serverDataArr) {
-			String urlInsert = "-" + serverData.url.replace(':', '.');
-			int e = csvFileOhneUrl.lastIndexOf('.');
-			String csvFileMitUrl = (e > 0 && e < csvFileOhneUrl.length() - 1) ? csvFileOhneUrl
-					.substring(0, e) + urlInsert + csvFileOhneUrl.substring(e)
-					: csvFileOhneUrl + urlInsert + ".csv";
-			BufferedWriter out = null;
-			try {
-				if (serverData.gcGroup == null
-						|| serverData.gcGroup.gcSingles == null
-						|| serverData.gcGroup.gcSingles.size() <= 0)
-					continue;
-				boolean exists = (new File(csvFileMitUrl)).exists();
-				out = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(csvFileMitUrl, true)));
-				if (!exists) {
-					out.write("Datum/Zeit; ");
-					for (GarbageCollectionSingle gcSingle : serverData.gcGroup.gcSingles) {
-						int n;
-						String s = gcSingle.gcName;
-						if (s == null)
-							s = "";
-						if ((n = s.lastIndexOf(" Collector")) > 1)
-							s = s.substring(0, n);
-						s = s.trim();
-						if (s.length() > 0)
-							s = s + "-";
-						out.write(s + "CountPerPeriod; " + s + "TimePercent; ");
-					}
-					out.write("TimePercentSum;");
-					out.newLine();
-				}
-				out.write(YYYYMMDD_HHMMSS_STD
-						.format(serverData.gcGroup.dateTime) + "; ");
-				for (GarbageCollectionSingle gcSingle : serverData.gcGroup.gcSingles) {
-					out.write(gcSingle.gcCountPerPeriod + "; "
-							+ DECIMAL_FORMAT1.format(gcSingle.gcTimePercent)
-							+ "; ");
-				}
-				out.write(DECIMAL_FORMAT1
-						.format(serverData.gcGroup.gcTimePercentSum) + "; ");
-				out.newLine();
-			} catch (Exception exWrite) {
-				System.out.println("Error writing the CSV-file '"
-						+ csvFileMitUrl + "': " + exWrite);
-			} finally {
-				if (out != null)
-					try {
-						out.close();
-					} catch (Exception exClose) {/* ok */
-					}
-			}
-		}
-	}
-
    /**
     * Output Exceptions into an error file
     * @param s
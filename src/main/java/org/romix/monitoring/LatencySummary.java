@@ -0,0 +1,54 @@
+package org.romix.monitoring;
+
+/***
+ * Latency distribution of a phase of the collector in milliseconds (an
+ * open data type of CollectorStatsMXBean, hence public with getters).
+ * @author romix
+ *
+ */
+public class LatencySummary {
+	private final long count;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p90Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	/***
+	 * @param histogram
+	 *            not modified while the summary is created
+	 */
+	LatencySummary(LogHistogram histogram) {
+		count = histogram.count();
+		boolean empty = count <= 0;
+		meanMillis = empty ? 0 : histogram.mean();
+		p50Millis = empty ? 0 : histogram.percentile(50);
+		p90Millis = empty ? 0 : histogram.percentile(90);
+		p99Millis = empty ? 0 : histogram.percentile(99);
+		maxMillis = empty ? 0 : histogram.max();
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP90Millis() {
+		return p90Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+}
@@ -0,0 +1,99 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+/***
+ * Connections to JVMs on the same host via the Attach API: the local
+ * management agent of the JVM is started (or the running one is found) and
+ * its local connector address is used. No JMX port has to be configured
+ * and there is no RMI registry lookup.
+ * @author romix
+ *
+ */
+class LocalAttach {
+	static final String PID_PREFIX = "pid:";
+	static final String LOCAL_PREFIX = "local:";
+
+	/***
+	 * Connect to the local management agent of a JVM
+	 * @param pid
+	 * @param envMap
+	 * @return
+	 * @throws IOException also if the JVM does not exist (any more) or does
+	 *             not allow to attach
+	 */
+	static JMXConnector connect(String pid, Map<String, ?> envMap)
+			throws IOException {
+		VirtualMachine vm;
+		try {
+			vm = VirtualMachine.attach(pid);
+		} catch (AttachNotSupportedException ex) {
+			throw new IOException("Attach to pid " + pid + " failed: "
+					+ ex.getMessage(), ex);
+		}
+		String address;
+		try {
+			address = vm.startLocalManagementAgent();
+		} finally {
+			vm.detach();
+		}
+		return JMXConnectorFactory.connect(new JMXServiceURL(address), envMap);
+	}
+
+	/***
+	 * JVMs of the current user on this host whose display name (main class
+	 * or jar file and arguments) matches a pattern; the own JVM is excluded
+	 * @param pattern
+	 * @return display names by pid
+	 */
+	static Map<String, String> list(Pattern pattern) {
+		Map<String, String> vms = new LinkedHashMap<String, String>();
+		String ownPid = ownPid();
+		for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+			String displayName = vmd.displayName();
+			if (vmd.id().equals(ownPid) || displayName == null)
+				continue;
+			if (pattern.matcher(displayName).find())
+				vms.put(vmd.id(), displayName);
+		}
+		return vms;
+	}
+
+	static String ownPid() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int n = name.indexOf('@');
+		return (n > 0) ? name.substring(0, n) : name;
+	}
+
+	/***
+	 * Short name of a JVM: its main class without package or its jar file
+	 * without directory
+	 * @param displayName
+	 * @return
+	 */
+	static String shortName(String displayName) {
+		String s = displayName.trim();
+		int n = s.indexOf(' ');
+		if (n > 0)
+			s = s.substring(0, n);
+		if (s.endsWith(".jar"))
+			s = s.substring(0, s.length() - 4);
+		n = Math.max(s.lastIndexOf('/'), s.lastIndexOf('\\'));
+		if (n >= 0)
+			s = s.substring(n + 1);
+		else if ((n = s.lastIndexOf('.')) >= 0)
+			s = s.substring(n + 1);
+		return (s.length() > 0) ? s : "jvm";
+	}
+}
@@ -0,0 +1,161 @@
+package org.romix.monitoring;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/***
+ * Servers configured as 'local:<regex>': all JVMs on this host whose main
+ * class (or jar file and arguments) matches the regular expression. The
+ * JVMs are looked up again periodically; new ones are added to the polled
+ * servers (as 'pid:<n>'), terminated ones are removed.
+ * @author romix
+ *
+ */
+class LocalJvmDiscovery {
+	/** The 'local:' entries of the configuration */
+	private final ServerData[] templates;
+	private final Pattern[] patterns;
+	/** All other servers (polled always) */
+	private final ServerData[] fixedServers;
+	/** Discovered JVMs by URL ('pid:<n>') */
+	private final Map<String, ServerData> discovered = new LinkedHashMap<String, ServerData>();
+	private final long intervalMillis;
+	private long nextMillis;
+
+	private LocalJvmDiscovery(ServerData[] templates, ServerData[] fixedServers,
+			long intervalMillis) {
+		this.templates = templates;
+		this.fixedServers = fixedServers;
+		this.intervalMillis = intervalMillis;
+		patterns = new Pattern[templates.length];
+		for (int i = 0; i < templates.length; i++)
+			patterns[i] = Pattern.compile(templates[i].url
+					.substring(LocalAttach.LOCAL_PREFIX.length()));
+	}
+
+	/***
+	 * Discovery of the 'local:' entries of the servers
+	 * @param serverDataArr
+	 * @param intervalMillis
+	 * @return null, if there are none
+	 */
+	static LocalJvmDiscovery create(ServerData[] serverDataArr,
+			long intervalMillis) {
+		List<ServerData> templates = new ArrayList<ServerData>();
+		List<ServerData> fixedServers = new ArrayList<ServerData>();
+		for (ServerData serverData : serverDataArr) {
+			if (serverData.url.startsWith(LocalAttach.LOCAL_PREFIX))
+				templates.add(serverData);
+			else
+				fixedServers.add(serverData);
+		}
+		if (templates.isEmpty())
+			return null;
+		return new LocalJvmDiscovery(templates.toArray(new ServerData[templates
+				.size()]), fixedServers.toArray(new ServerData[fixedServers
+				.size()]), intervalMillis);
+	}
+
+	/***
+	 * Look up the local JVMs, if the discovery interval has passed
+	 * @param now
+	 * @return the new set of servers (configured ones first), or null if it
+	 *         did not change
+	 */
+	synchronized ServerData[] discover(long now) {
+		if (now < nextMillis)
+			return null;
+		nextMillis = now + intervalMillis;
+		Set<String> configuredUrls = new HashSet<String>();
+		for (ServerData serverData : fixedServers)
+			configuredUrls.add(serverData.url);
+		Map<String, ServerData> found = new LinkedHashMap<String, ServerData>();
+		for (int i = 0; i < templates.length; i++) {
+			Map<String, String> vms;
+			try {
+				vms = LocalAttach.list(patterns[i]);
+			} catch (RuntimeException ex) {
+				System.out.println("Error: discovery of '" + templates[i].url
+						+ "': " + ex);
+				continue;
+			} catch (LinkageError ex) {
+				System.out.println("Error: discovery of '" + templates[i].url
+						+ "' needs the Attach API (jdk.attach): " + ex);
+				continue;
+			}
+			for (Map.Entry<String, String> vm : vms.entrySet()) {
+				String url = LocalAttach.PID_PREFIX + vm.getKey();
+				if (configuredUrls.contains(url) || found.containsKey(url))
+					continue;
+				ServerData serverData = discovered.get(url);
+				found.put(url, (serverData != null) ? serverData : newServer(
+						templates[i], url, vm.getValue()));
+			}
+		}
+		if (found.keySet().equals(discovered.keySet()))
+			return null;
+		String time = JmxServerMonitoring.formatDate(
+				JmxServerMonitoring.YYYYMMDD_HHMMSS_STD, new Date());
+		for (Iterator<ServerData> it = discovered.values().iterator(); it
+				.hasNext();) {
+			ServerData serverData = it.next();
+			if (found.containsKey(serverData.url))
+				continue;
+			System.out.println(time + ", Url=" + serverData.url + ": "
+					+ serverData.serverName + " is gone");
+			serverData.connection.close();
+			it.remove();
+		}
+		for (ServerData serverData : found.values()) {
+			if (discovered.put(serverData.url, serverData) == null)
+				System.out.println(time + ", Url=" + serverData.url
+						+ ": discovered " + serverData.serverName);
+		}
+		return servers();
+	}
+
+	private static ServerData newServer(ServerData template, String url,
+			String displayName) {
+		ServerData serverData = new ServerData();
+		serverData.connection = new ServerConnection(serverData);
+		serverData.url = url;
+		String pid = url.substring(LocalAttach.PID_PREFIX.length());
+		// A configured server name is a prefix for all discovered JVMs
+		serverData.serverName = (template.serverName.equals(template.url)) ? LocalAttach
+				.shortName(displayName) + "-" + pid
+				: template.serverName + "-" + pid;
+		serverData.serverNameUndUrl = serverData.serverName + "-" + url;
+		serverData.intervalSeconds = template.intervalSeconds;
+		return serverData;
+	}
+
+	/***
+	 * The configured servers followed by the discovered JVMs
+	 * @return
+	 */
+	synchronized ServerData[] servers() {
+		ServerData[] serverDataArr = new ServerData[fixedServers.length
+				+ discovered.size()];
+		System.arraycopy(fixedServers, 0, serverDataArr, 0,
+				fixedServers.length);
+		int i = fixedServers.length;
+		for (ServerData serverData : discovered.values())
+			serverDataArr[i++] = serverData;
+		return serverDataArr;
+	}
+
+	/***
+	 * Close the connections to the discovered JVMs
+	 */
+	synchronized void close() {
+		for (ServerData serverData : discovered.values())
+			serverData.connection.close();
+	}
+}
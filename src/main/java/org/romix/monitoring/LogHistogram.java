@@ -0,0 +1,180 @@
+package org.romix.monitoring;
+
+import java.util.Arrays;
+
+/***
+ * Histogram with logarithmic buckets (in the style of HdrHistogram) for
+ * positive values.
+ *
+ * Each power of two is divided into 16 linear sub-buckets, so a percentile
+ * (the mid of its bucket) is exact within 1/32 (3 %) of the value. The
+ * sub-buckets of a power of two are allocated when it gets its first value
+ * and then reused, so a histogram of a metric within a few powers of two
+ * needs less than 1 KB; values below 2^-10 (including zero and negative
+ * values) are counted in a zero bucket, values above 2^51 in the highest
+ * bucket. Min, max and sum are exact. Histograms of different windows or
+ * servers are merged by adding their buckets.
+ *
+ * Not thread-safe.
+ * @author romix
+ *
+ */
+class LogHistogram {
+	static final int SUB_BITS = 4;
+	static final int SUB_COUNT = 1 << SUB_BITS;
+	static final int MIN_EXP = -10;
+	static final int MAX_EXP = 51;
+	static final int BUCKETS = (MAX_EXP - MIN_EXP + 1) * SUB_COUNT;
+
+	/** Sub-bucket counts by power of two (null until the first value) */
+	private final long[][] counts = new long[MAX_EXP - MIN_EXP + 1][];
+	private long zeroCount;
+	private long count;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double sum;
+
+	/***
+	 * Record a value (NaN is ignored)
+	 * @param value
+	 */
+	void record(double value) {
+		if (Double.isNaN(value))
+			return;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+		int index = bucket(value);
+		if (index < 0)
+			zeroCount++;
+		else
+			subCounts(index / SUB_COUNT)[index % SUB_COUNT]++;
+	}
+
+	private long[] subCounts(int exp) {
+		long[] sub = counts[exp];
+		if (sub == null) {
+			sub = new long[SUB_COUNT];
+			counts[exp] = sub;
+		}
+		return sub;
+	}
+
+	/***
+	 * Bucket of a value
+	 * @param value
+	 * @return -1 for the zero bucket
+	 */
+	static int bucket(double value) {
+		if (!(value > 0))
+			return -1;
+		long bits = Double.doubleToRawLongBits(value);
+		int exp = (int) ((bits >>> 52) & 0x7FF) - 1023;
+		if (exp < MIN_EXP)
+			return -1;
+		if (exp > MAX_EXP)
+			return BUCKETS - 1;
+		int sub = (int) ((bits >>> (52 - SUB_BITS)) & (SUB_COUNT - 1));
+		return (exp - MIN_EXP) * SUB_COUNT + sub;
+	}
+
+	/***
+	 * Mid of the value range of a bucket
+	 * @param index
+	 * @return
+	 */
+	static double bucketValue(int index) {
+		if (index < 0)
+			return 0;
+		int exp = index / SUB_COUNT + MIN_EXP;
+		int sub = index % SUB_COUNT;
+		return Math.scalb(1 + (sub + 0.5) / SUB_COUNT, exp);
+	}
+
+	/***
+	 * Add the values of another histogram
+	 * @param other
+	 */
+	void merge(LogHistogram other) {
+		if (other.count == 0)
+			return;
+		for (int e = 0; e < counts.length; e++) {
+			long[] otherSub = other.counts[e];
+			if (otherSub == null)
+				continue;
+			long[] sub = subCounts(e);
+			for (int i = 0; i < SUB_COUNT; i++)
+				sub[i] += otherSub[i];
+		}
+		zeroCount += other.zeroCount;
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	void reset() {
+		if (count == 0)
+			return;
+		for (long[] sub : counts)
+			if (sub != null)
+				Arrays.fill(sub, 0L);
+		zeroCount = 0;
+		count = 0;
+		sum = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	long count() {
+		return count;
+	}
+
+	double min() {
+		return (count > 0) ? min : Double.NaN;
+	}
+
+	double max() {
+		return (count > 0) ? max : Double.NaN;
+	}
+
+	double sum() {
+		return sum;
+	}
+
+	double mean() {
+		return (count > 0) ? sum / count : Double.NaN;
+	}
+
+	/***
+	 * Value at a percentile
+	 * @param percentile
+	 *            0..100
+	 * @return NaN, if the histogram is empty
+	 */
+	double percentile(double percentile) {
+		if (count == 0)
+			return Double.NaN;
+		long rank = (long) Math.ceil(percentile / 100. * count);
+		if (rank < 1)
+			rank = 1;
+		long seen = zeroCount;
+		if (seen >= rank)
+			return Math.max(min, Math.min(0, max));
+		for (int e = 0; e < counts.length; e++) {
+			long[] sub = counts[e];
+			if (sub == null)
+				continue;
+			for (int i = 0; i < SUB_COUNT; i++) {
+				seen += sub[i];
+				if (seen >= rank)
+					return Math.max(min,
+							Math.min(bucketValue(e * SUB_COUNT + i), max));
+			}
+		}
+		return max;
+	}
+}
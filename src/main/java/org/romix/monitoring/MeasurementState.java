@@ -0,0 +1,146 @@
+package org.romix.monitoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Last measured values of a single server, used for difference based values.
+ *
+ * Every measured metric has a stable integer slot; the values are kept in
+ * primitive columns, so that updating them does not allocate. Slots of the
+ * CPU time and of attribute plans with a single MBean are fixed when the
+ * plans are compiled; garbage collectors and MBeans matching a pattern get
+ * a slot when they are seen for the first time. The slots of MBeans which
+ * did not match any more in the last read of their pattern are released
+ * and reused, so MBeans coming and going do not grow the columns.
+ * @author romix
+ *
+ */
+class MeasurementState {
+	/** Slot of the process CPU time */
+	static final int CPU_SLOT = 0;
+	/** First slot of the attribute plans (see AttributePlan.slot) */
+	static final int FIRST_PLAN_SLOT = 1;
+	/** Key group of the garbage collectors (plans use 1 + plan index) */
+	static final int GC_GROUP = 0;
+
+	private long[] values;
+	private long[] values2;
+	private long[] times;
+	private boolean[] valid;
+	/** Read in which keyed read (see beginKeyedRead)? */
+	private long[] reads;
+	private long read;
+	private int slotCount;
+	private final List<Map<Object, Integer>> keyedSlots = new ArrayList<Map<Object, Integer>>();
+	private int[] freeSlots = new int[16];
+	private int freeCount;
+	/** Maximum number of attribute values per cycle (0 = no limit) */
+	int maxSeries;
+	/** MBeans of patterns which were not read in the last cycle */
+	int droppedSeries;
+
+	/***
+	 * @param fixedSlots
+	 *            number of fixed slots (CPU time and attribute plans)
+	 */
+	MeasurementState(int fixedSlots) {
+		slotCount = Math.max(fixedSlots, FIRST_PLAN_SLOT);
+		values = new long[Math.max(slotCount * 2, 16)];
+		values2 = new long[values.length];
+		times = new long[values.length];
+		valid = new boolean[values.length];
+		reads = new long[values.length];
+	}
+
+	/***
+	 * Slot of a dynamically discovered metric (e.g. a garbage collector or an
+	 * MBean matching a pattern). Only the first call for a key allocates.
+	 * @param group
+	 * @param key
+	 * @return
+	 */
+	int keyedSlot(int group, Object key) {
+		while (keyedSlots.size() <= group)
+			keyedSlots.add(new HashMap<Object, Integer>());
+		Map<Object, Integer> slots = keyedSlots.get(group);
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			slot = (freeCount > 0) ? freeSlots[--freeCount] : slotCount++;
+			slots.put(key, slot);
+			if (slotCount > values.length) {
+				int n = values.length * 2;
+				values = Arrays.copyOf(values, n);
+				values2 = Arrays.copyOf(values2, n);
+				times = Arrays.copyOf(times, n);
+				valid = Arrays.copyOf(valid, n);
+				reads = Arrays.copyOf(reads, n);
+			}
+		}
+		reads[slot] = read;
+		return slot.intValue();
+	}
+
+	/***
+	 * Start reading the keys of a group (e.g. the MBeans matching a pattern)
+	 */
+	void beginKeyedRead() {
+		read++;
+	}
+
+	/***
+	 * Release the slots of the keys of a group which were not used since
+	 * beginKeyedRead
+	 * @param group
+	 */
+	void releaseUnread(int group) {
+		if (keyedSlots.size() <= group)
+			return;
+		for (Iterator<Integer> it = keyedSlots.get(group).values().iterator(); it
+				.hasNext();) {
+			int slot = it.next().intValue();
+			if (reads[slot] == read)
+				continue;
+			it.remove();
+			valid[slot] = false;
+			if (freeCount == freeSlots.length)
+				freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+			freeSlots[freeCount++] = slot;
+		}
+	}
+
+	boolean has(int slot) {
+		return valid[slot];
+	}
+
+	long value(int slot) {
+		return values[slot];
+	}
+
+	long value2(int slot) {
+		return values2[slot];
+	}
+
+	long time(int slot) {
+		return times[slot];
+	}
+
+	void set(int slot, long value, long value2, long time) {
+		values[slot] = value;
+		values2[slot] = value2;
+		times[slot] = time;
+		valid[slot] = true;
+	}
+
+	/***
+	 * Forget all values (e.g. after a connection error); the slots stay
+	 * assigned
+	 */
+	void clear() {
+		Arrays.fill(valid, false);
+	}
+}
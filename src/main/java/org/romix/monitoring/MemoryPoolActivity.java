@@ -0,0 +1,444 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/***
+ * Allocation rate, promotion rate and live set of a server, derived from
+ * the usage of its heap memory pools (MemoryPoolMXBeans).
+ *
+ * With GC notifications the used bytes of each pool before and after every
+ * collection are known, so the rates are exact: allocated = growth of the
+ * eden + everything the collections removed from it, promoted = growth of
+ * the old generation by young collections. Without them the collections
+ * within the period are only counted, and the eden is assumed to be full
+ * when collected. The live set is the heap used after an old (or full)
+ * collection; its trend is the slope over the last TREND_POINTS of them.
+ *
+ * Optionally the collection usage threshold of the old generation is set
+ * and its notifications are received, instead of polling the live set
+ * against a limit.
+ * @author romix
+ *
+ */
+class MemoryPoolActivity implements NotificationListener {
+	static final ObjectName MEMORY_OBJECTNAME = JmxServerMonitoring
+			.newObjectName(ManagementFactory.MEMORY_MXBEAN_NAME);
+	static final ObjectName POOL_PATTERN = JmxServerMonitoring
+			.newObjectName(ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE
+					+ ",*");
+	/** Live sets used for the trend */
+	static final int TREND_POINTS = 16;
+	private static final String[] USAGE = { "Usage" };
+	private static final String[] USAGE_AND_COLLECTION_USAGE = { "Usage",
+			"CollectionUsage" };
+
+	/** Collection usage threshold in % of the maximum (0 = off) */
+	final int thresholdPercent;
+	/** Heap pools of the current connection */
+	private ObjectName[] pools = new ObjectName[0];
+	private String[] poolNames = new String[0];
+	/** Pools with the new objects (eden; all pools, if not generational) */
+	private boolean[] allocating = new boolean[0];
+	/** Pools of the old generation (all pools, if not generational) */
+	private boolean[] old = new boolean[0];
+	private boolean generational;
+	/** Collectors which collect an allocating pool (short names) */
+	private final Set<String> youngCollectors = new HashSet<String>();
+	private long[] lastUsed = new long[0];
+	private long[] lastCommitted = new long[0];
+	private long[] lastCollectionUsed = new long[0];
+	private long lastUptimeMs = -1;
+	private long lastLostGcPauses;
+	private long liveSet = -1;
+	private final long[] trendTimes = new long[TREND_POINTS];
+	private final long[] trendValues = new long[TREND_POINTS];
+	private int trendCount;
+	/** Threshold notifications (guarded by thresholdLock) */
+	private final Object thresholdLock = new Object();
+	private long thresholdExceeded;
+	private long thresholdUsedBytes;
+
+	MemoryPoolActivity(int thresholdPercent) {
+		this.thresholdPercent = thresholdPercent;
+	}
+
+	/***
+	 * Look up the heap pools and collectors of a new connection (the JVM
+	 * may have been restarted: nothing of the last one is kept) and set the
+	 * collection usage threshold
+	 * @param mBeanServerConn
+	 * @throws IOException
+	 */
+	synchronized void connected(MBeanServerConnection mBeanServerConn)
+			throws IOException {
+		List<ObjectName> heapPools = new ArrayList<ObjectName>();
+		for (ObjectName pool : mBeanServerConn.queryNames(POOL_PATTERN, null)) {
+			try {
+				if ("HEAP".equals(String.valueOf(mBeanServerConn.getAttribute(
+						pool, "Type"))))
+					heapPools.add(pool);
+			} catch (JMException ex) {/* no pool to read */
+			}
+		}
+		int n = heapPools.size();
+		pools = heapPools.toArray(new ObjectName[n]);
+		poolNames = new String[n];
+		allocating = new boolean[n];
+		old = new boolean[n];
+		boolean anyAllocating = false, anyOld = false;
+		for (int i = 0; i < n; i++) {
+			poolNames[i] = pools[i].getKeyProperty("name");
+			String name = poolNames[i].toLowerCase();
+			allocating[i] = name.indexOf("eden") >= 0
+					|| name.indexOf("young") >= 0
+					|| name.indexOf("nursery-allocate") >= 0;
+			old[i] = name.indexOf("old") >= 0 || name.indexOf("tenured") >= 0;
+			anyAllocating |= allocating[i];
+			anyOld |= old[i];
+		}
+		generational = anyAllocating && anyOld;
+		if (!generational) {
+			// e.g. ZGC, Shenandoah: a single heap pool
+			for (int i = 0; i < n; i++) {
+				allocating[i] = true;
+				old[i] = true;
+			}
+		}
+		youngCollectors.clear();
+		for (ObjectName gc : mBeanServerConn.queryNames(
+				GcNotificationListener.GC_PATTERN, null)) {
+			try {
+				String[] gcPools = (String[]) mBeanServerConn.getAttribute(gc,
+						"MemoryPoolNames");
+				for (String gcPool : gcPools)
+					for (int i = 0; i < n; i++)
+						if (allocating[i] && poolNames[i].equals(gcPool))
+							youngCollectors.add(JmxServerMonitoring
+									.shortGcName(gc.getKeyProperty("name")));
+			} catch (JMException ex) {/* not counted */
+			}
+		}
+		lastUsed = new long[n];
+		lastCommitted = new long[n];
+		lastCollectionUsed = new long[n];
+		lastUptimeMs = -1;
+		lastLostGcPauses = 0;
+		liveSet = -1;
+		trendCount = 0;
+		if (thresholdPercent > 0)
+			setThreshold(mBeanServerConn);
+	}
+
+	/***
+	 * Set the collection usage threshold of the old generation pools and
+	 * subscribe to its notifications (the threshold is a setting of the
+	 * remote JVM: it is shared with all other tools)
+	 * @param mBeanServerConn
+	 * @throws IOException
+	 */
+	private void setThreshold(MBeanServerConnection mBeanServerConn)
+			throws IOException {
+		boolean set = false;
+		for (int i = 0; i < pools.length; i++) {
+			if (!old[i])
+				continue;
+			try {
+				if (!Boolean.TRUE.equals(mBeanServerConn.getAttribute(pools[i],
+						"CollectionUsageThresholdSupported")))
+					continue;
+				MemoryUsage usage = MemoryUsage
+						.from((CompositeData) mBeanServerConn.getAttribute(
+								pools[i], "Usage"));
+				if (usage == null || usage.getMax() <= 0)
+					continue;
+				mBeanServerConn.setAttribute(pools[i], new Attribute(
+						"CollectionUsageThreshold", usage.getMax() / 100
+								* thresholdPercent));
+				set = true;
+			} catch (JMException ex) {/* no threshold for this pool */
+			}
+		}
+		if (!set)
+			return;
+		NotificationFilterSupport filter = new NotificationFilterSupport();
+		filter.enableType(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED);
+		try {
+			mBeanServerConn.addNotificationListener(MEMORY_OBJECTNAME, this,
+					filter, null);
+		} catch (JMException ex) {/* no notifications */
+		}
+	}
+
+	public void handleNotification(Notification notification, Object handback) {
+		if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+				.equals(notification.getType()))
+			return;
+		MemoryNotificationInfo info = MemoryNotificationInfo
+				.from((CompositeData) notification.getUserData());
+		synchronized (thresholdLock) {
+			thresholdExceeded++;
+			thresholdUsedBytes = info.getUsage().getUsed();
+		}
+	}
+
+	/***
+	 * Read the heap pools (one call per pool) and compute the rates of the
+	 * period
+	 * @param mBeanServerConn
+	 * @param gcGroup GC values of this cycle (with the single collections,
+	 *            if GC notifications are on)
+	 * @param uptimeMs uptime of the JVM read in this cycle
+	 * @return null for the first read (no period yet)
+	 * @throws IOException
+	 * @throws JMException
+	 */
+	synchronized MemoryPoolRates read(MBeanServerConnection mBeanServerConn,
+			GarbageCollectionGroup gcGroup, long uptimeMs) throws IOException,
+			JMException {
+		// Exact only if no collection was lost since the last read
+		boolean notified = gcGroup.gcPauses != null
+				&& gcGroup.lostGcPauses == lastLostGcPauses;
+		int n = pools.length;
+		long[] used = new long[n];
+		long[] committed = new long[n];
+		long[] collectionUsed = new long[n];
+		for (int i = 0; i < n; i++) {
+			collectionUsed[i] = -1;
+			AttributeList attributes = mBeanServerConn.getAttributes(pools[i],
+					notified ? USAGE : USAGE_AND_COLLECTION_USAGE);
+			for (Attribute attribute : attributes.asList()) {
+				MemoryUsage usage = MemoryUsage
+						.from((CompositeData) attribute.getValue());
+				if (usage == null)
+					continue;
+				if (attribute.getName().equals("Usage")) {
+					used[i] = usage.getUsed();
+					committed[i] = usage.getCommitted();
+				} else {
+					collectionUsed[i] = usage.getUsed();
+				}
+			}
+		}
+		long elapsedMs = uptimeMs - lastUptimeMs;
+		boolean period = lastUptimeMs >= 0 && elapsedMs > 0;
+		MemoryPoolRates rates = null;
+		if (period) {
+			rates = new MemoryPoolRates();
+			rates.fromNotifications = notified;
+			long allocated = notified ? allocatedByNotifications(used,
+					gcGroup.gcPauses) : allocatedByEstimate(used,
+					collectionUsed, youngCollections(gcGroup));
+			rates.allocatedBytesPerSecond = Math.max(allocated, 0) * 1000
+					/ elapsedMs;
+			if (generational) {
+				long promoted = notified ? promotedByNotifications(gcGroup.gcPauses)
+						: promotedByEstimate(used, collectionUsed);
+				rates.promotedBytesPerSecond = Math.max(promoted, 0) * 1000
+						/ elapsedMs;
+			}
+		}
+		if (notified)
+			liveSetByNotifications(gcGroup.gcPauses, uptimeMs);
+		else
+			liveSetByCollectionUsage(collectionUsed, uptimeMs);
+		lastUsed = used;
+		lastCommitted = committed;
+		if (!notified)
+			lastCollectionUsed = collectionUsed;
+		lastUptimeMs = uptimeMs;
+		lastLostGcPauses = gcGroup.lostGcPauses;
+		if (rates == null)
+			return null;
+		rates.liveSetBytes = liveSet;
+		rates.liveSetTrendBytesPerHour = liveSetTrend();
+		synchronized (thresholdLock) {
+			rates.thresholdExceeded = thresholdExceeded;
+			rates.thresholdUsedBytes = thresholdUsedBytes;
+			thresholdExceeded = 0;
+		}
+		return rates;
+	}
+
+	/***
+	 * Growth of the allocating pools plus what the collections removed
+	 * from them
+	 */
+	private long allocatedByNotifications(long[] used, List<GcPause> pauses) {
+		long allocated = 0;
+		for (int i = 0; i < pools.length; i++) {
+			if (!allocating[i])
+				continue;
+			allocated += used[i] - lastUsed[i];
+			for (GcPause pause : pauses) {
+				Long before = pause.usedBefore.get(poolNames[i]);
+				Long after = pause.usedAfter.get(poolNames[i]);
+				if (before != null && after != null)
+					allocated += before.longValue() - after.longValue();
+			}
+		}
+		return allocated;
+	}
+
+	/***
+	 * Without notifications: each collection is assumed to start with a
+	 * full pool (committed size) and to leave its collection usage
+	 */
+	private long allocatedByEstimate(long[] used, long[] collectionUsed,
+			long collections) {
+		boolean collected = collections > 0;
+		for (int i = 0; i < pools.length && !collected; i++)
+			if (allocating[i] && used[i] < lastUsed[i])
+				collected = true; // collectors of other names (hsperfdata)
+		long allocated = 0;
+		for (int i = 0; i < pools.length; i++) {
+			if (!allocating[i])
+				continue;
+			if (!collected) {
+				allocated += used[i] - lastUsed[i];
+				continue;
+			}
+			long after = Math.max(collectionUsed[i], 0);
+			allocated += (lastCommitted[i] - lastUsed[i])
+					+ (Math.max(collections, 1) - 1)
+					* (lastCommitted[i] - after) + (used[i] - after);
+		}
+		return allocated;
+	}
+
+	private long youngCollections(GarbageCollectionGroup gcGroup) {
+		long collections = 0;
+		for (GarbageCollectionSingle gcSingle : gcGroup.gcSingles)
+			if (youngCollectors.contains(gcSingle.gcName))
+				collections += Math.max(gcSingle.gcCountPerPeriod, 0);
+		return collections;
+	}
+
+	/***
+	 * Growth of the old generation by young collections
+	 */
+	private long promotedByNotifications(List<GcPause> pauses) {
+		long promoted = 0;
+		for (GcPause pause : pauses) {
+			if (isMajor(pause))
+				continue;
+			for (int i = 0; i < pools.length; i++) {
+				if (!old[i])
+					continue;
+				Long before = pause.usedBefore.get(poolNames[i]);
+				Long after = pause.usedAfter.get(poolNames[i]);
+				if (before != null && after != null)
+					promoted += Math.max(after.longValue() - before.longValue(),
+							0);
+			}
+		}
+		return promoted;
+	}
+
+	/***
+	 * Growth of the old generation, since the last read or since its last
+	 * collection
+	 */
+	private long promotedByEstimate(long[] used, long[] collectionUsed) {
+		long promoted = 0;
+		for (int i = 0; i < pools.length; i++) {
+			if (!old[i])
+				continue;
+			boolean collected = collectionUsed[i] != lastCollectionUsed[i]
+					|| used[i] < lastUsed[i];
+			promoted += Math.max(used[i]
+					- (collected ? Math.max(collectionUsed[i], 0) : lastUsed[i]),
+					0);
+		}
+		return promoted;
+	}
+
+	/***
+	 * Heap after the last old collection of the period (every collection,
+	 * if not generational)
+	 */
+	private void liveSetByNotifications(List<GcPause> pauses, long uptimeMs) {
+		for (GcPause pause : pauses) {
+			if (generational && !isMajor(pause))
+				continue;
+			long heapAfter = 0;
+			for (int i = 0; i < pools.length; i++) {
+				Long after = pause.usedAfter.get(poolNames[i]);
+				if (after != null)
+					heapAfter += after.longValue();
+			}
+			addLiveSet(heapAfter, uptimeMs);
+		}
+	}
+
+	/***
+	 * Used bytes of the old generation after its last collection; a new
+	 * live set, if it changed
+	 */
+	private void liveSetByCollectionUsage(long[] collectionUsed, long uptimeMs) {
+		long heapAfter = 0;
+		boolean changed = false;
+		for (int i = 0; i < pools.length; i++) {
+			if (!old[i] || collectionUsed[i] <= 0)
+				continue;
+			heapAfter += collectionUsed[i];
+			changed |= collectionUsed[i] != lastCollectionUsed[i];
+		}
+		if (changed)
+			addLiveSet(heapAfter, uptimeMs);
+	}
+
+	private static boolean isMajor(GcPause pause) {
+		return pause.gcAction != null && pause.gcAction.indexOf("major") >= 0;
+	}
+
+	private void addLiveSet(long bytes, long uptimeMs) {
+		liveSet = bytes;
+		if (trendCount == TREND_POINTS) {
+			System.arraycopy(trendTimes, 1, trendTimes, 0, TREND_POINTS - 1);
+			System.arraycopy(trendValues, 1, trendValues, 0, TREND_POINTS - 1);
+			trendCount--;
+		}
+		trendTimes[trendCount] = uptimeMs;
+		trendValues[trendCount] = bytes;
+		trendCount++;
+	}
+
+	/***
+	 * Least squares slope of the last live sets
+	 * @return bytes per hour, NaN if less than two live sets
+	 */
+	private double liveSetTrend() {
+		if (trendCount < 2)
+			return Double.NaN;
+		double meanTime = 0, meanValue = 0;
+		for (int i = 0; i < trendCount; i++) {
+			meanTime += trendTimes[i];
+			meanValue += trendValues[i];
+		}
+		meanTime /= trendCount;
+		meanValue /= trendCount;
+		double covariance = 0, variance = 0;
+		for (int i = 0; i < trendCount; i++) {
+			double dt = trendTimes[i] - meanTime;
+			covariance += dt * (trendValues[i] - meanValue);
+			variance += dt * dt;
+		}
+		return (variance > 0) ? covariance / variance * 3600000 : Double.NaN;
+	}
+}
@@ -0,0 +1,23 @@
+package org.romix.monitoring;
+
+/***
+ * Allocation, promotion and live set of a server within the period, derived
+ * from the heap memory pools
+ * @author romix
+ *
+ */
+class MemoryPoolRates {
+	/** From GC notifications (exact) or estimated from the pool sizes */
+	boolean fromNotifications;
+	long allocatedBytesPerSecond;
+	/** Growth of the old generation by collections (-1, if not generational) */
+	long promotedBytesPerSecond = -1;
+	/** Heap used after the last old (or full) collection (-1, if none yet) */
+	long liveSetBytes = -1;
+	/** Slope of the last live sets (NaN, if less than two) */
+	double liveSetTrendBytesPerHour = Double.NaN;
+	/** Collection usage threshold notifications within the period */
+	long thresholdExceeded;
+	/** Used bytes of the last of these notifications */
+	long thresholdUsedBytes;
+}
@@ -0,0 +1,224 @@
+package org.romix.monitoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/***
+ * Histograms of all metrics of all servers over a reporting window.
+ *
+ * Every cycle adds its values (and the single GC pauses, if GC
+ * notifications are on) to a LogHistogram per server and metric. When the
+ * window is over, the histograms are summarized into a HistogramWindow
+ * (per server and merged over all servers) and reset. The histograms are
+ * allocated when a metric appears for the first time and then reused, so
+ * recording does not allocate. The histograms of a server are kept by its
+ * URL and dropped after the first window without the server (local JVMs
+ * come and go); attributes are kept by title and ObjectName, those of an
+ * MBean which is gone are dropped after a window without values.
+ *
+ * Only used by the collection loop thread; the outputs read lastWindow.
+ * @author romix
+ *
+ */
+class MetricHistograms {
+	static final String GC_PERCENT = "GarbageCollectionPercent";
+	static final String CPU_PERCENT = "CpuTimePercent";
+	static final String PAUSE_MILLIS = ".PauseMillis";
+
+	/***
+	 * Histograms of a single server
+	 */
+	static final class ServerHistograms {
+		String serverName;
+		final LogHistogram gcPercent = new LogHistogram();
+		final LogHistogram cpuPercent = new LogHistogram();
+		/** Pause durations by collector */
+		final Map<String, LogHistogram> gcPauses = new LinkedHashMap<String, LogHistogram>();
+		/** By attribute title and MBean */
+		final Map<String, Map<String, LogHistogram>> attributes = new LinkedHashMap<String, Map<String, LogHistogram>>();
+		/** Values recorded last, per histogram (values which were not read
+		 * again in a cycle are not recorded twice) */
+		final Map<LogHistogram, AttributeValueAndName> lastRecorded = new IdentityHashMap<LogHistogram, AttributeValueAndName>();
+		GarbageCollectionGroup lastGcGroup;
+	}
+
+	final long windowMillis;
+	private long windowStart;
+	/** By server URL */
+	private final Map<String, ServerHistograms> servers = new LinkedHashMap<String, ServerHistograms>();
+	/** Summing up over all servers, by metric and MBean (null for the GC
+	 * metrics) */
+	private final Map<String, Map<String, LogHistogram>> allServers = new LinkedHashMap<String, Map<String, LogHistogram>>();
+	/** The last complete window (null before the first one) */
+	volatile HistogramWindow lastWindow;
+
+	MetricHistograms(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/***
+	 * Add the values of a cycle; closes the window, if it is over
+	 * @param serverDataArr
+	 * @param nowMillis
+	 */
+	void record(ServerData[] serverDataArr, long nowMillis) {
+		if (windowStart == 0)
+			windowStart = nowMillis;
+		for (ServerData serverData : serverDataArr) {
+			if (serverData == null || serverData.gcGroup == null)
+				continue;
+			ServerHistograms histograms = servers.get(serverData.url);
+			if (histograms == null) {
+				histograms = new ServerHistograms();
+				servers.put(serverData.url, histograms);
+			}
+			histograms.serverName = serverData.serverName;
+			GarbageCollectionGroup gcGroup = serverData.gcGroup;
+			if (gcGroup != histograms.lastGcGroup) {
+				histograms.lastGcGroup = gcGroup;
+				histograms.gcPercent.record(gcGroup.gcTimePercentSum);
+				histograms.cpuPercent.record(gcGroup.cpuTimePercent);
+				if (gcGroup.gcPauses != null) {
+					for (GcPause pause : gcGroup.gcPauses)
+						histogram(histograms.gcPauses, pause.gcName).record(
+								pause.durationMillis);
+				}
+			}
+			if (serverData.attributes == null)
+				continue;
+			for (AttributeValueAndName attr : serverData.attributes) {
+				double value = attr.numericValue();
+				if (Double.isNaN(value))
+					continue;
+				LogHistogram histogram = histogram(
+						byMBean(histograms.attributes, attr.title),
+						attr.objectName);
+				if (histograms.lastRecorded.put(histogram, attr) != attr)
+					histogram.record(value);
+			}
+		}
+		if (nowMillis - windowStart >= windowMillis) {
+			lastWindow = closeWindow(serverDataArr, nowMillis);
+			windowStart = nowMillis;
+		}
+	}
+
+	private static Map<String, LogHistogram> byMBean(
+			Map<String, Map<String, LogHistogram>> map, String metric) {
+		Map<String, LogHistogram> byMBean = map.get(metric);
+		if (byMBean == null) {
+			byMBean = new LinkedHashMap<String, LogHistogram>();
+			map.put(metric, byMBean);
+		}
+		return byMBean;
+	}
+
+	private static LogHistogram histogram(Map<String, LogHistogram> map,
+			String key) {
+		LogHistogram histogram = map.get(key);
+		if (histogram == null) {
+			histogram = new LogHistogram();
+			map.put(key, histogram);
+		}
+		return histogram;
+	}
+
+	/***
+	 * Summarize and reset all histograms, drop those of servers which are
+	 * gone and those of MBeans without values in the window which are gone
+	 * @param serverDataArr
+	 * @param nowMillis
+	 * @return
+	 */
+	private HistogramWindow closeWindow(ServerData[] serverDataArr,
+			long nowMillis) {
+		List<HistogramWindow.Summary> summaries = new ArrayList<HistogramWindow.Summary>();
+		for (Map<String, LogHistogram> byMBean : allServers.values())
+			for (LogHistogram histogram : byMBean.values())
+				histogram.reset();
+		Map<String, ServerData> urls = new HashMap<String, ServerData>();
+		for (ServerData serverData : serverDataArr)
+			if (serverData != null)
+				urls.put(serverData.url, serverData);
+		for (Iterator<Map.Entry<String, ServerHistograms>> it = servers
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, ServerHistograms> server = it.next();
+			ServerHistograms histograms = server.getValue();
+			String serverName = histograms.serverName;
+			// A server which is gone is summarized a last time
+			ServerData serverData = urls.get(server.getKey());
+			if (serverData == null)
+				it.remove();
+			summarize(summaries, serverName, GC_PERCENT, null,
+					histograms.gcPercent);
+			summarize(summaries, serverName, CPU_PERCENT, null,
+					histograms.cpuPercent);
+			for (Map.Entry<String, LogHistogram> gc : histograms.gcPauses
+					.entrySet())
+				summarize(summaries, serverName, gc.getKey() + PAUSE_MILLIS,
+						null, gc.getValue());
+			// Values of the last cycle (MBeans which are still there)
+			Set<AttributeValueAndName> current = Collections
+					.newSetFromMap(new IdentityHashMap<AttributeValueAndName, Boolean>());
+			if (serverData != null && serverData.attributes != null)
+				Collections.addAll(current, serverData.attributes);
+			for (Iterator<Map.Entry<String, Map<String, LogHistogram>>> attrs = histograms.attributes
+					.entrySet().iterator(); attrs.hasNext();) {
+				Map.Entry<String, Map<String, LogHistogram>> attr = attrs
+						.next();
+				for (Iterator<Map.Entry<String, LogHistogram>> mbeans = attr
+						.getValue().entrySet().iterator(); mbeans.hasNext();) {
+					Map.Entry<String, LogHistogram> mbean = mbeans.next();
+					LogHistogram histogram = mbean.getValue();
+					if (histogram.count() == 0
+							&& !current.contains(histograms.lastRecorded
+									.get(histogram))) {
+						histograms.lastRecorded.remove(histogram);
+						mbeans.remove();
+						continue;
+					}
+					summarize(summaries, serverName, attr.getKey(),
+							mbean.getKey(), histogram);
+				}
+				if (attr.getValue().isEmpty())
+					attrs.remove();
+			}
+		}
+		for (Iterator<Map.Entry<String, Map<String, LogHistogram>>> metrics = allServers
+				.entrySet().iterator(); metrics.hasNext();) {
+			Map.Entry<String, Map<String, LogHistogram>> metric = metrics
+					.next();
+			for (Iterator<Map.Entry<String, LogHistogram>> mbeans = metric
+					.getValue().entrySet().iterator(); mbeans.hasNext();) {
+				Map.Entry<String, LogHistogram> mbean = mbeans.next();
+				if (mbean.getValue().count() > 0)
+					summaries.add(new HistogramWindow.Summary(null, metric
+							.getKey(), mbean.getKey(), mbean.getValue()));
+				else
+					mbeans.remove();
+			}
+			if (metric.getValue().isEmpty())
+				metrics.remove();
+		}
+		return new HistogramWindow(windowStart, nowMillis,
+				Collections.unmodifiableList(summaries));
+	}
+
+	private void summarize(List<HistogramWindow.Summary> summaries,
+			String serverName, String metric, String mbean,
+			LogHistogram histogram) {
+		if (histogram.count() == 0)
+			return;
+		summaries.add(new HistogramWindow.Summary(serverName, metric, mbean,
+				histogram));
+		histogram(byMBean(allServers, metric), mbean).merge(histogram);
+		histogram.reset();
+	}
+}
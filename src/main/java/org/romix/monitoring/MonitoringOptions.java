@@ -0,0 +1,80 @@
+package org.romix.monitoring;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * Settings of the collection loop and the outputs
+ * @author romix
+ *
+ */
+class MonitoringOptions {
+	int periodSeconds;
+	boolean showConsole;
+	boolean writeAllGcValues;
+	/** Subscribe to the GC notifications of the servers */
+	boolean gcNotifications;
+	String nagiosFile;
+	String csvFile;
+	/** CSV lines are written after this number of cycles ... */
+	int csvFlushCycles = 1;
+	/** ... or (if > 0) when this time has passed since the last write */
+	long csvFlushMillis;
+	/** Directory of the binary time series files */
+	String tsDir;
+	/** Window of the value distributions (0 = none) */
+	int histogramSeconds;
+	/** Port of the HTTP endpoint (0 = none) */
+	int httpPort;
+	String errorFile;
+	/** Number of servers polled in parallel (1 = sequential) */
+	int threads = 1;
+	/** Deadline for collecting the data of all servers within one cycle */
+	int cycleTimeoutSeconds;
+	/** Number of cycles queued per output */
+	int outputQueue = 16;
+	/** "block" or "drop" per output name ("" for all outputs) */
+	Map<String, String> backpressure = new HashMap<String, String>();
+	/** Full resync of the cached ObjectName pattern queries */
+	int resyncSeconds = 300;
+	/** Maximum number of attribute values per server (0 = no limit) */
+	int maxSeries;
+	/** Timeouts of the RMI sockets (0 = none) */
+	int connectTimeoutSeconds = 10;
+	int readTimeoutSeconds;
+	/** Maximum backoff of the reconnect probes of unreachable servers */
+	int backoffMaxSeconds = 300;
+	/** Interval for looking up the JVMs of 'local:' servers */
+	int discoverySeconds = 60;
+	/** Read local JVMs from their hsperfdata file */
+	boolean perfData;
+	/** Number of threads reported by CPU time and allocation (0 = off) */
+	int topThreads;
+	/** Allocation, promotion and live set from the heap memory pools */
+	boolean memoryPools;
+	/** Collection usage threshold of the old generation in % (0 = none) */
+	int liveSetThresholdPercent;
+	/** Thresholds which start a stack sampling profile (null = off) */
+	String profileTrigger;
+	int profileHz = 10;
+	int profileSeconds = 30;
+	int profileDepth = 64;
+	/** Sample all threads, not only the running ones */
+	boolean profileAllThreads;
+	String profileDir = ".";
+	/** Minimum time between two profiles of a server */
+	int profileCooldownSeconds = 300;
+
+	/***
+	 * Should the loop wait, if the queue of an output is full?
+	 * @param sinkName
+	 * @param dflt
+	 * @return
+	 */
+	boolean isBlocking(String sinkName, boolean dflt) {
+		String mode = backpressure.get(sinkName);
+		if (mode == null)
+			mode = backpressure.get("");
+		return (mode != null) ? mode.equals("block") : dflt;
+	}
+}
@@ -0,0 +1,115 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+/***
+ * Cache of resolved ObjectName patterns of a single connection.
+ *
+ * Pattern queries are expensive on servers with many MBeans, but their
+ * results rarely change. The cached sets are kept up to date with the
+ * registration/unregistration notifications of the MBeanServerDelegate and
+ * are dropped completely every resyncMillis as a safety net (and whenever
+ * notifications were lost).
+ * @author romix
+ *
+ */
+class ObjectNameCache implements NotificationListener {
+	private final Map<ObjectName, Set<ObjectName>> resolved = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+	private final long resyncMillis;
+	private volatile long lastResync = System.currentTimeMillis();
+
+	private ObjectNameCache(long resyncMillis) {
+		this.resyncMillis = resyncMillis;
+	}
+
+	/***
+	 * Subscribe to the MBeanServerDelegate of a connection
+	 * @param mBeanServerConn
+	 * @param resyncMillis
+	 * @return the cache or null, if notifications are not available
+	 * @throws IOException
+	 */
+	static ObjectNameCache create(MBeanServerConnection mBeanServerConn,
+			long resyncMillis) throws IOException {
+		ObjectNameCache cache = new ObjectNameCache(resyncMillis);
+		MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+		filter.enableAllObjectNames();
+		try {
+			mBeanServerConn.addNotificationListener(
+					MBeanServerDelegate.DELEGATE_NAME, cache, filter, null);
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			return null;
+		}
+		return cache;
+	}
+
+	/***
+	 * All registered names matching a pattern (or the name itself, if it is
+	 * no pattern and registered)
+	 * @param pattern
+	 * @param mBeanServerConn
+	 * @return
+	 * @throws IOException
+	 */
+	Set<ObjectName> queryNames(ObjectName pattern,
+			MBeanServerConnection mBeanServerConn) throws IOException {
+		long now = System.currentTimeMillis();
+		if (now - lastResync >= resyncMillis) {
+			lastResync = now;
+			resolved.clear();
+		}
+		Set<ObjectName> names = resolved.get(pattern);
+		if (names == null) {
+			names = Collections.unmodifiableSet(new HashSet<ObjectName>(
+					mBeanServerConn.queryNames(pattern, null)));
+			resolved.put(pattern, names);
+		}
+		return names;
+	}
+
+	/***
+	 * Forget all resolved patterns (e.g. after lost notifications)
+	 */
+	void clear() {
+		resolved.clear();
+	}
+
+	/***
+	 * Registration and unregistration of MBeans: update all cached sets
+	 * whose pattern matches the name. The sets are replaced, not modified, as
+	 * they may be iterated by a collector thread at the same time.
+	 */
+	public void handleNotification(Notification notification, Object handback) {
+		if (!(notification instanceof MBeanServerNotification))
+			return;
+		ObjectName name = ((MBeanServerNotification) notification)
+				.getMBeanName();
+		boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION
+				.equals(notification.getType());
+		for (Map.Entry<ObjectName, Set<ObjectName>> entry : resolved
+				.entrySet()) {
+			if (!entry.getKey().apply(name))
+				continue;
+			Set<ObjectName> names = new HashSet<ObjectName>(entry.getValue());
+			if (registered)
+				names.add(name);
+			else
+				names.remove(name);
+			entry.setValue(Collections.unmodifiableSet(names));
+		}
+	}
+}
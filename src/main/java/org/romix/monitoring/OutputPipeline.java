@@ -0,0 +1,151 @@
+package org.romix.monitoring;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Decouples the collection loop from the outputs.
+ *
+ * The loop publishes an immutable snapshot per cycle; every sink has a
+ * bounded queue and its own thread, so that a slow disk or a blocked console
+ * does not delay the next measurement. If a queue is full, the snapshot is
+ * either dropped for this sink or the loop waits (backpressure), depending on
+ * the sink.
+ * @author romix
+ *
+ */
+class OutputPipeline {
+	private static final ServerData[] END = new ServerData[0];
+	final List<SinkWorker> workers = new CopyOnWriteArrayList<SinkWorker>();
+	private final int queueSize;
+
+	OutputPipeline(int queueSize) {
+		this.queueSize = Math.max(queueSize, 1);
+	}
+
+	/***
+	 * Snapshot of one cycle with its publishing time
+	 */
+	static final class Snapshot {
+		final ServerData[] serverDataArr;
+		final long publishMillis;
+
+		Snapshot(ServerData[] serverDataArr, long publishMillis) {
+			this.serverDataArr = serverDataArr;
+			this.publishMillis = publishMillis;
+		}
+	}
+
+	/***
+	 * Queue and thread of a single sink, with its statistics
+	 */
+	static final class SinkWorker extends Thread {
+		final String sinkName;
+		final OutputSink sink;
+		final boolean block;
+		final BlockingQueue<Snapshot> queue;
+		volatile long written;
+		volatile long dropped;
+		volatile long lastLagMillis;
+		volatile long maxLagMillis;
+
+		SinkWorker(String sinkName, OutputSink sink, boolean block,
+				int queueSize) {
+			super("JmxServerMonitoring-output-" + sinkName);
+			setDaemon(true);
+			this.sinkName = sinkName;
+			this.sink = sink;
+			this.block = block;
+			this.queue = new ArrayBlockingQueue<Snapshot>(queueSize);
+		}
+
+		public void run() {
+			while (true) {
+				Snapshot snapshot;
+				try {
+					snapshot = queue.take();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				if (snapshot.serverDataArr == END)
+					return;
+				long startNanos = System.nanoTime();
+				try {
+					sink.write(snapshot.serverDataArr, snapshot.publishMillis);
+				} catch (Exception ex) {
+					CollectorStats.STATS.error(ex);
+					System.out.println("Error in output '" + sinkName + "': "
+							+ ex);
+				}
+				CollectorStats.STATS.recordOutput(sinkName, startNanos);
+				written++;
+				lastLagMillis = System.currentTimeMillis()
+						- snapshot.publishMillis;
+				maxLagMillis = Math.max(maxLagMillis, lastLagMillis);
+			}
+		}
+
+		void publish(Snapshot snapshot) {
+			if (block) {
+				try {
+					queue.put(snapshot);
+				} catch (InterruptedException ex) {
+					dropped++;
+				}
+			} else if (!queue.offer(snapshot)) {
+				dropped++;
+			}
+		}
+	}
+
+	/***
+	 * Add a sink and start its thread
+	 * @param sinkName
+	 * @param sink
+	 * @param block
+	 *            wait if the queue of the sink is full (otherwise drop the
+	 *            snapshot)
+	 */
+	void addSink(String sinkName, OutputSink sink, boolean block) {
+		SinkWorker worker = new SinkWorker(sinkName, sink, block, queueSize);
+		workers.add(worker);
+		worker.start();
+	}
+
+	/***
+	 * Hand over a snapshot to all sinks
+	 * @param serverDataArr
+	 */
+	void publish(ServerData[] serverDataArr) {
+		Snapshot snapshot = new Snapshot(serverDataArr,
+				System.currentTimeMillis());
+		for (SinkWorker worker : workers)
+			worker.publish(snapshot);
+	}
+
+	/***
+	 * Write all queued snapshots (waiting at most timeoutMillis) and stop the
+	 * threads
+	 * @param timeoutMillis
+	 */
+	void close(long timeoutMillis) {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		for (SinkWorker worker : workers) {
+			try {
+				worker.queue.offer(new Snapshot(END, 0), Math.max(
+						end - System.currentTimeMillis(), 0),
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {/* ok */
+			}
+		}
+		for (SinkWorker worker : workers) {
+			try {
+				worker.join(Math.max(end - System.currentTimeMillis(), 1));
+			} catch (InterruptedException ex) {/* ok */
+			}
+		}
+	}
+}
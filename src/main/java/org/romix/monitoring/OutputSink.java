@@ -0,0 +1,18 @@
+package org.romix.monitoring;
+
+/***
+ * An output of the collected statistics (console, Nagios-file, CSV-files,
+ * ...). Each sink is fed by its own thread of the OutputPipeline.
+ * @author romix
+ *
+ */
+interface OutputSink {
+	/***
+	 * Write the results of one cycle
+	 * @param serverDataArr
+	 *            snapshot of all servers, not modified any more
+	 * @param cycleMillis
+	 *            time when the snapshot was taken
+	 */
+	void write(ServerData[] serverDataArr, long cycleMillis);
+}
@@ -0,0 +1,108 @@
+package org.romix.monitoring;
+
+/***
+ * Aggregation of the values of all MBeans matching the pattern of an
+ * attribute plan ('abs+sum', 'diff+avg', 'abs+max', 'diff+top5'): instead
+ * of one value per MBean the plan yields one value (or the K largest), so
+ * the number of outputs does not grow with the number of MBeans.
+ *
+ * The K largest values are selected with a min-heap of size K (TopN), the
+ * MBeans which do not make it are not kept.
+ * @author romix
+ *
+ */
+class PatternAggregation {
+	private final AttributePlan plan;
+	private int count;
+	private double sum;
+	private double max = Double.NEGATIVE_INFINITY;
+	/** Only integral values (formatted without decimals)? */
+	private boolean integral = true;
+	private final TopN top;
+	/** Values of the heap by slot, one more for the next candidate */
+	private final AttributeValueAndName[] topAttributes;
+	private int freeSlot;
+
+	PatternAggregation(AttributePlan plan) {
+		this.plan = plan;
+		int k = (plan.aggregation == AttributePlan.AGGREGATE_TOP) ? plan.topK
+				: 0;
+		top = new TopN(k);
+		topAttributes = new AttributeValueAndName[k + 1];
+		freeSlot = k;
+	}
+
+	/***
+	 * Add the value of one MBean
+	 * @param value
+	 * @param attrVal the value as formatted for the MBean (kept for top-K)
+	 */
+	void add(double value, AttributeValueAndName attrVal) {
+		if (Double.isNaN(value))
+			return;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+		integral &= value == Math.rint(value);
+		if (top.slots.length == 0)
+			return;
+		int slot = (top.size < top.slots.length) ? top.size : freeSlot;
+		topAttributes[slot] = attrVal;
+		int dropped = top.offer(slot, value);
+		if (dropped >= 0)
+			freeSlot = dropped;
+	}
+
+	/***
+	 * The aggregated values: one for sum, avg and max (for the pattern as
+	 * MBean), the K largest for top-K (largest first). There are always K
+	 * values for top-K, so that the CSV columns do not move.
+	 * @return error values, if there were not enough MBeans with a numeric
+	 *         value
+	 */
+	AttributeValueAndName[] result() {
+		if (plan.aggregation == AttributePlan.AGGREGATE_TOP) {
+			top.sortDescending();
+			AttributeValueAndName[] result = new AttributeValueAndName[top.slots.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = (i < top.size) ? topAttributes[top.slots[i]]
+						: newValue();
+				// By rank, the MBean changes
+				result[i].instance = "top" + (i + 1);
+			}
+			return result;
+		}
+		AttributeValueAndName attrVal = newValue();
+		attrVal.instance = (plan.aggregation == AttributePlan.AGGREGATE_SUM) ? "sum"
+				: (plan.aggregation == AttributePlan.AGGREGATE_MAX) ? "max"
+						: "avg";
+		if (count > 0) {
+			double value = (plan.aggregation == AttributePlan.AGGREGATE_SUM) ? sum
+					: (plan.aggregation == AttributePlan.AGGREGATE_MAX) ? max
+							: sum / count;
+			if (plan.definition.diff)
+				attrVal.value = JmxServerMonitoring.formatDecimal(
+						JmxServerMonitoring.DECIMAL_FORMAT1, value);
+			else if (integral
+					&& plan.aggregation != AttributePlan.AGGREGATE_AVG)
+				attrVal.value = "" + (long) value;
+			else
+				attrVal.value = JmxServerMonitoring.formatDecimal(
+						JmxServerMonitoring.DECIMAL_FORMAT2, value);
+		}
+		return new AttributeValueAndName[] { attrVal };
+	}
+
+	/***
+	 * Value for the pattern as MBean (an error value until it is set)
+	 * @return
+	 */
+	private AttributeValueAndName newValue() {
+		AttributeValueAndName attrVal = new AttributeValueAndName();
+		attrVal.diff = plan.definition.diff;
+		attrVal.title = plan.definition.title;
+		attrVal.attributeName = plan.definition.attributeName;
+		attrVal.objectName = plan.definition.objectName;
+		return attrVal;
+	}
+}
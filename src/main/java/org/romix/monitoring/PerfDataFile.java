@@ -0,0 +1,304 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * Performance counters of a local HotSpot JVM, read from its memory mapped
+ * hsperfdata file (/tmp/hsperfdata_<user>/<pid>) without any call into the
+ * JVM.
+ *
+ * The entry table is parsed once (and again only for counters created
+ * later); reading a counter is a load from the mapped file. The JVM
+ * updates most counters in place, sampled ones (e.g. sun.os.hrt.ticks)
+ * every 50 ms.
+ * @author romix
+ *
+ */
+class PerfDataFile {
+	static final String PERFDATA_DIR_PREFIX = "hsperfdata_";
+	private static final int MAGIC = 0xcafec0c0;
+	private static final int BYTE_ORDER_OFFSET = 4;
+	private static final int ACCESSIBLE_OFFSET = 7;
+	private static final int ENTRY_OFFSET_OFFSET = 24;
+	private static final int NUM_ENTRIES_OFFSET = 28;
+	private static final byte TYPE_LONG = 'J';
+	private static final byte TYPE_BYTE = 'B';
+	/** Clock ticks per second of /proc/<pid>/stat (USER_HZ) */
+	private static final long USER_HZ = 100;
+	private static final boolean PROC = new File("/proc/self/stat").exists();
+
+	final File file;
+	final String pid;
+	private final MappedByteBuffer buffer;
+	/** Index of the counters by name */
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+	private int[] dataOffsets = new int[256];
+	private byte[] types = new byte[256];
+	private int[] vectorLengths = new int[256];
+	private int entries;
+	/** Offset of the next entry to parse */
+	private int nextEntryOffset;
+	/** /proc/<pid>/stat, read into a reused buffer */
+	private final File statFile;
+	private final byte[] statBuffer = new byte[1024];
+	private final int hrtTicks;
+	private final long hrtFrequency;
+	/** Garbage collectors (sun.gc.collector.<n>) and their counters */
+	final String[] gcNames;
+	final int[] gcInvocations;
+	final int[] gcTimes;
+
+	private PerfDataFile(File file, String pid, MappedByteBuffer buffer)
+			throws IOException {
+		this.file = file;
+		this.pid = pid;
+		this.buffer = buffer;
+		statFile = new File("/proc/" + pid + "/stat");
+		if (buffer.order(ByteOrder.BIG_ENDIAN).getInt(0) != MAGIC)
+			throw new IOException("No hsperfdata file: " + file);
+		buffer.order((buffer.get(BYTE_ORDER_OFFSET) == 0) ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN);
+		nextEntryOffset = buffer.getInt(ENTRY_OFFSET_OFFSET);
+		hrtTicks = counter("sun.os.hrt.ticks");
+		int frequency = counter("sun.os.hrt.frequency");
+		if (hrtTicks < 0 || frequency < 0)
+			throw new IOException("No high resolution timer in " + file);
+		hrtFrequency = getLong(frequency);
+		int collectors = 0;
+		while (counter("sun.gc.collector." + collectors + ".name") >= 0)
+			collectors++;
+		gcNames = new String[collectors];
+		gcInvocations = new int[collectors];
+		gcTimes = new int[collectors];
+		for (int i = 0; i < collectors; i++) {
+			String prefix = "sun.gc.collector." + i + ".";
+			gcNames[i] = (String) getValue(prefix + "name");
+			gcInvocations[i] = counter(prefix + "invocations");
+			gcTimes[i] = counter(prefix + "time");
+			if (gcInvocations[i] < 0 || gcTimes[i] < 0)
+				throw new IOException("Incomplete counters of collector "
+						+ gcNames[i] + " in " + file);
+		}
+	}
+
+	/***
+	 * Map the hsperfdata file of a local JVM
+	 * @param pid
+	 * @return null, if the JVM has no (accessible) hsperfdata file, e.g.
+	 *         with -XX:-UsePerfData or while it is starting
+	 * @throws IOException
+	 */
+	static PerfDataFile open(String pid) throws IOException {
+		File file = find(pid);
+		if (file == null)
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() <= NUM_ENTRIES_OFFSET
+					|| buffer.get(ACCESSIBLE_OFFSET) == 0)
+				return null;
+			return new PerfDataFile(file, pid, buffer);
+		} finally {
+			// The mapping stays valid after closing the file
+			raf.close();
+		}
+	}
+
+	/***
+	 * hsperfdata file of a JVM: HotSpot uses /tmp on Unix, java.io.tmpdir is
+	 * tried first (e.g. on Windows). The directory is per user; all users
+	 * are searched, because the JVM may run as another user.
+	 * @param pid
+	 * @return null, if there is none
+	 */
+	static File find(String pid) {
+		String[] tmpDirs = { System.getProperty("java.io.tmpdir"), "/tmp" };
+		String user = System.getProperty("user.name");
+		for (String tmpDir : tmpDirs) {
+			if (tmpDir == null)
+				continue;
+			File file = new File(new File(tmpDir, PERFDATA_DIR_PREFIX + user),
+					pid);
+			if (file.isFile())
+				return file;
+			File[] dirs = new File(tmpDir).listFiles();
+			if (dirs == null)
+				continue;
+			for (File dir : dirs) {
+				if (!dir.getName().startsWith(PERFDATA_DIR_PREFIX))
+					continue;
+				file = new File(dir, pid);
+				if (file.isFile())
+					return file;
+			}
+		}
+		return null;
+	}
+
+	/***
+	 * Index of a counter; the entries added by the JVM since the last call
+	 * are parsed first, if the name is unknown
+	 * @param name
+	 * @return -1, if there is no such counter
+	 */
+	synchronized int counter(String name) {
+		Integer i = index.get(name);
+		if (i == null && parseNewEntries())
+			i = index.get(name);
+		return (i != null) ? i.intValue() : -1;
+	}
+
+	private boolean parseNewEntries() {
+		int numEntries = buffer.getInt(NUM_ENTRIES_OFFSET);
+		if (numEntries <= entries)
+			return false;
+		while (entries < numEntries) {
+			int entry = nextEntryOffset;
+			int entryLength = buffer.getInt(entry);
+			if (entryLength <= 0 || entry + entryLength > buffer.capacity())
+				break;
+			int nameOffset = buffer.getInt(entry + 4);
+			int vectorLength = buffer.getInt(entry + 8);
+			byte type = buffer.get(entry + 12);
+			int dataOffset = buffer.getInt(entry + 16);
+			if (entries == dataOffsets.length) {
+				dataOffsets = Arrays.copyOf(dataOffsets, entries * 2);
+				types = Arrays.copyOf(types, entries * 2);
+				vectorLengths = Arrays.copyOf(vectorLengths,
+						entries * 2);
+			}
+			dataOffsets[entries] = entry + dataOffset;
+			types[entries] = type;
+			vectorLengths[entries] = vectorLength;
+			index.put(readString(entry + nameOffset, entryLength - nameOffset),
+					entries);
+			entries++;
+			nextEntryOffset = entry + entryLength;
+		}
+		return true;
+	}
+
+	/***
+	 * Value of a numeric counter
+	 * @param counter index (see counter())
+	 * @return
+	 */
+	long getLong(int counter) {
+		return buffer.getLong(dataOffsets[counter]);
+	}
+
+	/***
+	 * Value of a counter: Long for numeric counters, String for text
+	 * @param name
+	 * @return null, if there is no such counter
+	 */
+	Object getValue(String name) {
+		int counter = counter(name);
+		if (counter < 0)
+			return null;
+		if (types[counter] == TYPE_LONG && vectorLengths[counter] == 0)
+			return Long.valueOf(getLong(counter));
+		if (types[counter] == TYPE_BYTE)
+			return readString(dataOffsets[counter], vectorLengths[counter]);
+		return null;
+	}
+
+	/***
+	 * Numeric value of a counter
+	 * @param name
+	 * @return -1, if there is no such counter
+	 */
+	long getLong(String name) {
+		int counter = counter(name);
+		return (counter >= 0 && types[counter] == TYPE_LONG) ? getLong(counter)
+				: -1;
+	}
+
+	/***
+	 * Time since the start of the JVM
+	 * @return
+	 */
+	long uptimeMillis() {
+		return ticksToMillis(getLong(hrtTicks));
+	}
+
+	long ticksToMillis(long ticks) {
+		// ticks * 1000 would overflow after 106 days with 1 GHz ticks
+		return ticks / hrtFrequency * 1000 + ticks % hrtFrequency * 1000
+				/ hrtFrequency;
+	}
+
+	/***
+	 * The JVM removes its file when it terminates; the mapping itself would
+	 * keep the last values forever. A killed JVM leaves its file, so the
+	 * process is checked too (where there is /proc).
+	 * @return
+	 */
+	boolean isAlive() {
+		return file.exists() && (!PROC || statFile.exists());
+	}
+
+	private String readString(int offset, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < maxLength; i++) {
+			byte b = buffer.get(offset + i);
+			if (b == 0)
+				break;
+			sb.append((char) (b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/***
+	 * CPU time of the process from /proc/<pid>/stat (not part of the
+	 * hsperfdata, but also readable without a call into the JVM)
+	 * @return -1, if not available (not on Linux)
+	 */
+	synchronized long processCpuTimeNanos() {
+		if (statFile == null || !statFile.isFile())
+			return -1;
+		try {
+			FileInputStream in = new FileInputStream(statFile);
+			int length = 0;
+			try {
+				int n;
+				while (length < statBuffer.length
+						&& (n = in.read(statBuffer, length, statBuffer.length
+								- length)) > 0)
+					length += n;
+			} finally {
+				in.close();
+			}
+			// The command name may contain spaces: fields after the last ')'
+			int pos = length;
+			while (pos > 0 && statBuffer[pos - 1] != ')')
+				pos--;
+			// utime and stime are fields 14 and 15, the state after ')' is 3
+			long ticks = 0;
+			for (int field = 3; field <= 15 && pos < length; field++) {
+				while (pos < length && statBuffer[pos] == ' ')
+					pos++;
+				long value = 0;
+				while (pos < length && statBuffer[pos] != ' ')
+					value = value * 10 + (statBuffer[pos++] - '0');
+				if (field >= 14)
+					ticks += value;
+			}
+			return ticks * (1000000000L / USER_HZ);
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/***
+ * Platform MXBean proxies and static facts (which can not change during the
+ * lifetime of a JVM) of a single connection.
+ * Proxies are created once per connection instead of once per cycle; static
+ * facts are read from the remote JVM only once.
+ * @author romix
+ *
+ */
+class RemoteMXBeans {
+	final MBeanServerConnection mBeanServerConn;
+	private RuntimeMXBean runtime;
+	private OperatingSystemMXBean operatingSystem;
+	private com.sun.management.ThreadMXBean threads;
+	private final Map<ObjectName, GarbageCollectorMXBean> gcMXBeans = new HashMap<ObjectName, GarbageCollectorMXBean>();
+	private final Map<GarbageCollectorMXBean, String> gcNames = new HashMap<GarbageCollectorMXBean, String>();
+	private int availableProcessors;
+
+	RemoteMXBeans(MBeanServerConnection mBeanServerConn) {
+		this.mBeanServerConn = mBeanServerConn;
+	}
+
+	synchronized RuntimeMXBean runtime() throws IOException {
+		if (runtime == null)
+			runtime = JmxServerMonitoring
+					.getRuntimeMXBeanFromRemote(mBeanServerConn);
+		return runtime;
+	}
+
+	synchronized OperatingSystemMXBean operatingSystem() throws IOException {
+		if (operatingSystem == null)
+			operatingSystem = JmxServerMonitoring
+					.getOperatingSystemMXBeanFromRemote(mBeanServerConn);
+		return operatingSystem;
+	}
+
+	/***
+	 * Thread-MXBean with the bulk methods of HotSpot (CPU time and
+	 * allocated bytes of many threads with one call)
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized com.sun.management.ThreadMXBean threads() throws IOException {
+		if (threads == null)
+			threads = ManagementFactory.newPlatformMXBeanProxy(
+					mBeanServerConn, ManagementFactory.THREAD_MXBEAN_NAME,
+					com.sun.management.ThreadMXBean.class);
+		return threads;
+	}
+
+	synchronized GarbageCollectorMXBean garbageCollector(ObjectName on)
+			throws IOException {
+		GarbageCollectorMXBean gc = gcMXBeans.get(on);
+		if (gc == null) {
+			gc = ManagementFactory.newPlatformMXBeanProxy(mBeanServerConn,
+					on.getCanonicalName(), GarbageCollectorMXBean.class);
+			gcMXBeans.put(on, gc);
+			String name = on.getKeyProperty("name");
+			gcNames.put(gc, (name != null) ? name : gc.getName());
+		}
+		return gc;
+	}
+
+	/***
+	 * Name of a garbage collector (taken from its ObjectName)
+	 * @param gc
+	 * @return
+	 */
+	synchronized String garbageCollectorName(GarbageCollectorMXBean gc) {
+		String name = gcNames.get(gc);
+		return (name != null) ? name : gc.getName();
+	}
+
+	/***
+	 * Number of processors of the remote JVM (read only once)
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized int availableProcessors() throws IOException {
+		if (availableProcessors <= 0)
+			availableProcessors = Math.max(1,
+					operatingSystem().getAvailableProcessors());
+		return availableProcessors;
+	}
+}
@@ -0,0 +1,222 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+/***
+ * Long-lived JMX connection to a single server.
+ *
+ * The connector is opened lazily on first use and kept open over all
+ * measurement cycles. JMX connection notifications (closed/failed) mark it as
+ * broken, so that the next access reconnects instead of reusing a dead
+ * connection. Each connection has its own cache of resolved ObjectName
+ * patterns and (optionally) its own GC notification listener. Connection
+ * failures open the circuit breaker of the server. Local JVMs ('pid:') can
+ * be read from their hsperfdata file instead.
+ * @author romix
+ *
+ */
+class ServerConnection implements NotificationListener {
+	final ServerData serverData;
+	private JMXConnector jmxConnector;
+	private MBeanServerConnection mBeanServerConn;
+	private volatile boolean broken;
+	/** Number of newly established connections */
+	volatile long connectCount;
+	/** Number of cycles which could reuse an already open connection */
+	volatile long reuseCount;
+	/** Resolved ObjectName patterns, null if not supported by the server */
+	volatile ObjectNameCache nameCache;
+	/** MXBean proxies of the current connection */
+	volatile RemoteMXBeans mxBeans;
+	/** Interval for a full resync of the ObjectName cache */
+	long nameCacheResyncMillis = 300000;
+	/** Subscribe to GC notifications? */
+	boolean gcNotifications;
+	/** GC notifications of the current connection (null, if off) */
+	volatile GcNotificationListener gcListener;
+	/** Read timeout of the RMI sockets (0 = none) */
+	long readTimeoutMillis;
+	/** Open after connection failures: the server is only probed */
+	final CircuitBreaker breaker = new CircuitBreaker();
+	/** Read local JVMs from their hsperfdata file? */
+	boolean perfData;
+	private PerfDataFile perfDataFile;
+	/** No hsperfdata file: next lookup */
+	private long nextPerfDataLookup;
+
+	ServerConnection(ServerData serverData) {
+		this.serverData = serverData;
+	}
+
+	/***
+	 * Returns the open connection or (re-)connects if there is none or if the
+	 * last one was reported as closed or failed
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized MBeanServerConnection getMBeanServerConnection()
+			throws IOException {
+		if (mBeanServerConn != null && !broken) {
+			reuseCount++;
+			return mBeanServerConn;
+		}
+		close();
+		long startNanos = System.nanoTime();
+		JMXConnector connector;
+		try {
+			connector = JmxServerMonitoring.getJMXConnector(serverData.url,
+					serverData.usr, serverData.pwd, readTimeoutMillis);
+		} finally {
+			CollectorStats.STATS.record(CollectorStats.CONNECT, startNanos);
+		}
+		// The fields are only set when all steps succeeded; a half set up
+		// connection would be reused as if it was open
+		MBeanServerConnection conn;
+		ObjectNameCache cache;
+		RemoteMXBeans beans;
+		GcNotificationListener listener = null;
+		try {
+			connector.addConnectionNotificationListener(this, null, null);
+			conn = connector.getMBeanServerConnection();
+			cache = ObjectNameCache.create(conn, nameCacheResyncMillis);
+			beans = new RemoteMXBeans(conn);
+			if (gcNotifications)
+				listener = GcNotificationListener.create(conn, beans
+						.runtime().getStartTime());
+			MemoryPoolActivity memoryActivity = serverData.memoryActivity;
+			if (memoryActivity != null)
+				memoryActivity.connected(conn);
+		} catch (IOException ex) {
+			closeFailed(connector);
+			throw ex;
+		} catch (RuntimeException ex) {
+			closeFailed(connector);
+			throw ex;
+		}
+		mBeanServerConn = conn;
+		nameCache = cache;
+		mxBeans = beans;
+		gcListener = listener;
+		jmxConnector = connector;
+		broken = false;
+		connectCount++;
+		return mBeanServerConn;
+	}
+
+	/***
+	 * The hsperfdata file of a local JVM. If there is none (e.g. with
+	 * -XX:-UsePerfData) or if it was removed, the server is read via JMX; the
+	 * file is looked up again after the resync interval.
+	 * @return null, if not available
+	 */
+	synchronized PerfDataFile getPerfDataFile() {
+		if (!perfData || !serverData.url.startsWith(LocalAttach.PID_PREFIX))
+			return null;
+		PerfDataFile file = perfDataFile;
+		if (file != null && file.isAlive())
+			return file;
+		perfDataFile = null;
+		long now = System.currentTimeMillis();
+		if (now < nextPerfDataLookup)
+			return null;
+		try {
+			file = PerfDataFile.open(serverData.url.substring(
+					LocalAttach.PID_PREFIX.length()).trim());
+		} catch (IOException ex) {
+			file = null;
+		}
+		if (file == null)
+			nextPerfDataLookup = now + nameCacheResyncMillis;
+		perfDataFile = file;
+		return file;
+	}
+
+	/***
+	 * JMX connection notifications: a closed or failed connection is not
+	 * reused any more
+	 */
+	public void handleNotification(Notification notification, Object handback) {
+		String type = notification.getType();
+		if (JMXConnectionNotification.CLOSED.equals(type)
+				|| JMXConnectionNotification.FAILED.equals(type)) {
+			broken = true;
+		}
+		ObjectNameCache cache = nameCache;
+		if (JMXConnectionNotification.NOTIFS_LOST.equals(type)
+				&& cache != null) {
+			cache.clear();
+		}
+		GcNotificationListener listener = gcListener;
+		if (JMXConnectionNotification.NOTIFS_LOST.equals(type)
+				&& listener != null
+				&& notification.getUserData() instanceof Long) {
+			listener.notificationsLost((Long) notification.getUserData());
+		}
+	}
+
+	/***
+	 * Drop the connection after a communication error; the next access
+	 * reconnects
+	 */
+	void invalidate() {
+		broken = true;
+	}
+
+	/***
+	 * Close the connection (if open)
+	 */
+	synchronized void close() {
+		JMXConnector connector = jmxConnector;
+		jmxConnector = null;
+		mBeanServerConn = null;
+		nameCache = null;
+		mxBeans = null;
+		gcListener = null;
+		if (connector != null) {
+			try {
+				connector.removeConnectionNotificationListener(this);
+			} catch (Exception ex) {/* ok */
+			}
+			closeQuietly(connector);
+		}
+	}
+
+	private void closeFailed(JMXConnector connector) {
+		try {
+			connector.removeConnectionNotificationListener(this);
+		} catch (Exception ex) {/* ok */
+		}
+		closeQuietly(connector);
+	}
+
+	private static void closeQuietly(JMXConnector connector) {
+		try {
+			connector.close();
+		} catch (Exception ex) {/* ok */
+		}
+	}
+
+	/***
+	 * Does an exception signal a broken connection? MXBean proxies wrap
+	 * IOExceptions into UndeclaredThrowableExceptions.
+	 * @param ex
+	 * @return
+	 */
+	static boolean isConnectionFailure(Throwable ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof IOException)
+				return true;
+			if (t instanceof UndeclaredThrowableException
+					&& ((UndeclaredThrowableException) t)
+							.getUndeclaredThrowable() instanceof IOException)
+				return true;
+		}
+		return false;
+	}
+}
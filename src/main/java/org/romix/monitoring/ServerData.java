@@ -1,7 +1,6 @@
 package org.romix.monitoring;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Future;
 
 /***
  * Access parameters and collected statistics for a single server
@@ -14,7 +13,71 @@ class ServerData {
 	String url;
 	String usr;
 	String pwd;
-	Map<String, Long[]> lastMeasurement = new HashMap<String, Long[]>();
+	/** Created for the compiled attribute plans when the loop starts */
+	MeasurementState lastMeasurement;
 	GarbageCollectionGroup gcGroup = null;
 	AttributeValueAndName[] attributes = null;
+	ServerConnection connection;
+	/** No result within the deadline of the last cycle */
+	boolean stale;
+	/** Collection still running (possibly started in an earlier cycle) */
+	Future<ServerMeasurement> pending;
+	/** Default read interval of the GC statistics and attributes (0 = periodseconds) */
+	int intervalSeconds;
+	/** Reads due in the current cycle (set by the loop) */
+	boolean due;
+	boolean gcDue;
+	boolean[] duePlans;
+	/** The due reads of the current cycle were collected and published */
+	boolean duePublished;
+	/** Scheduled reads of the current cycle (to schedule them again) */
+	TimingWheel.Entry dueEntries;
+	/** Thread CPU times and allocations (null, if 'topthreads' is off) */
+	ThreadActivity threadActivity;
+	/** Heap pool usage for the memory rates (null, if 'memorypools' is off) */
+	MemoryPoolActivity memoryActivity;
+	/** Last values per attribute plan (for the plans which are not due) */
+	AttributeValueAndName[][] planValues;
+
+	/***
+	 * Copy of the identification and of the results of the last cycle for
+	 * the outputs (the results themselves are never modified once
+	 * published)
+	 * @return
+	 */
+	ServerData snapshot() {
+		ServerData snapshot = new ServerData();
+		snapshot.serverNameUndUrl = serverNameUndUrl;
+		snapshot.serverName = serverName;
+		snapshot.url = url;
+		snapshot.connection = connection;
+		snapshot.stale = stale;
+		snapshot.gcGroup = gcGroup;
+		snapshot.attributes = attributes;
+		return snapshot;
+	}
+
+	/***
+	 * Copy of the reads due in the current cycle for a collection, which may
+	 * still run while the loop marks the reads of the next cycles or
+	 * publishes results (the state of the measurement and of the connection
+	 * is shared)
+	 * @return
+	 */
+	ServerData dueReads() {
+		ServerData reads = new ServerData();
+		reads.serverNameUndUrl = serverNameUndUrl;
+		reads.serverName = serverName;
+		reads.url = url;
+		reads.connection = connection;
+		reads.lastMeasurement = lastMeasurement;
+		reads.threadActivity = threadActivity;
+		reads.memoryActivity = memoryActivity;
+		reads.gcGroup = gcGroup;
+		reads.due = due;
+		reads.gcDue = gcDue;
+		reads.duePlans = (duePlans != null) ? duePlans.clone() : null;
+		reads.planValues = planValues;
+		return reads;
+	}
 }
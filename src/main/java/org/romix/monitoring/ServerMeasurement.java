@@ -0,0 +1,14 @@
+package org.romix.monitoring;
+
+/***
+ * Result of collecting the statistics of a single server within one cycle.
+ * It is handed over to the ServerData only when the cycle is complete, so
+ * that all outputs see a consistent state of all servers.
+ * @author romix
+ *
+ */
+class ServerMeasurement {
+	GarbageCollectionGroup gcGroup;
+	AttributeValueAndName[] attributes;
+	Exception error;
+}
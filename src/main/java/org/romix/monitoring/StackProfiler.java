@@ -0,0 +1,258 @@
+package org.romix.monitoring;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Stack sampling of servers whose values cross a threshold (e.g. 'cpu>80'):
+ * the stacks of the threads are read repeatedly over the existing
+ * connection, merged into a StackTrie and written as collapsed stacks
+ * (<server>-<time>.collapsed, the input of flamegraph.pl and similar tools).
+ *
+ * The thresholds are checked as an output (on the snapshots of the cycles);
+ * the samples are taken by a separate scheduler, so that neither the
+ * collection nor the other outputs wait for them.
+ * @author romix
+ *
+ */
+class StackProfiler implements OutputSink {
+	/** Top frame of the thread of the server which takes the samples */
+	static final String SAMPLING_CLASS_NAME = "sun.management.ThreadImpl";
+
+	/***
+	 * A threshold of a metric: 'cpu', 'gc' or the title of an attribute
+	 */
+	static final class Trigger {
+		String metric;
+		boolean greater;
+		double threshold;
+
+		/***
+		 * Value of the metric, if it crosses the threshold
+		 * @param serverData
+		 * @return NaN, if not
+		 */
+		double crossed(ServerData serverData) {
+			double value = Double.NaN;
+			if (serverData.gcGroup != null && metric.equals("cpu"))
+				value = serverData.gcGroup.cpuTimePercent;
+			else if (serverData.gcGroup != null && metric.equals("gc"))
+				value = serverData.gcGroup.gcTimePercentSum;
+			else if (serverData.attributes != null)
+				for (AttributeValueAndName attr : serverData.attributes)
+					if (metric.equalsIgnoreCase(attr.title)
+							&& isCrossed(attr.numericValue()))
+						return attr.numericValue();
+			return isCrossed(value) ? value : Double.NaN;
+		}
+
+		private boolean isCrossed(double value) {
+			return greater ? value > threshold : value < threshold;
+		}
+
+		public String toString() {
+			return metric + (greater ? ">" : "<") + threshold;
+		}
+	}
+
+	private final Trigger[] triggers;
+	private final MonitoringOptions options;
+	private final ScheduledExecutorService scheduler;
+	/** Running profiles by server URL */
+	private final Map<String, Profile> profiles = new HashMap<String, Profile>();
+	/** End of the last profile by server URL */
+	private final Map<String, Long> lastEnds = new HashMap<String, Long>();
+
+	StackProfiler(Trigger[] triggers, MonitoringOptions options) {
+		this.triggers = triggers;
+		this.options = options;
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JmxServerMonitoring-profiler-"
+						+ (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/***
+	 * Thresholds like 'cpu>80,gc>10,Used JVM Mem>1000000000'
+	 * @param s
+	 * @return
+	 */
+	static Trigger[] parseTriggers(String s) {
+		List<Trigger> triggers = new ArrayList<Trigger>();
+		for (String entry : s.split(",|;")) {
+			int n = Math.max(entry.indexOf('>'), entry.indexOf('<'));
+			if (n <= 0)
+				continue;
+			Trigger trigger = new Trigger();
+			trigger.metric = entry.substring(0, n).trim();
+			trigger.greater = entry.charAt(n) == '>';
+			trigger.threshold = Double.parseDouble(entry.substring(n + 1)
+					.trim());
+			triggers.add(trigger);
+		}
+		return triggers.toArray(new Trigger[triggers.size()]);
+	}
+
+	/***
+	 * Check the thresholds of all servers without a running profile
+	 */
+	public synchronized void write(ServerData[] serverDataArr,
+			long cycleMillis) {
+		for (ServerData serverData : serverDataArr) {
+			if (profiles.containsKey(serverData.url))
+				continue;
+			Long lastEnd = lastEnds.get(serverData.url);
+			if (lastEnd != null
+					&& cycleMillis - lastEnd.longValue() < options.profileCooldownSeconds * 1000L)
+				continue;
+			for (Trigger trigger : triggers) {
+				double value = trigger.crossed(serverData);
+				if (Double.isNaN(value))
+					continue;
+				start(serverData, trigger + " (" + value + ")");
+				break;
+			}
+		}
+	}
+
+	private void start(ServerData serverData, String reason) {
+		Profile profile = new Profile(serverData);
+		profiles.put(serverData.url, profile);
+		System.out.println(JmxServerMonitoring.formatDate(
+				JmxServerMonitoring.YYYYMMDD_HHMMSS_STD, new Date())
+				+ ", Url=" + serverData.url + ": profiling for "
+				+ options.profileSeconds + " s, " + reason);
+		long periodMillis = Math.max(1000 / Math.max(options.profileHz, 1), 1);
+		profile.future = scheduler.scheduleWithFixedDelay(profile, 0,
+				periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void finished(Profile profile, String error) {
+		profiles.remove(profile.serverData.url);
+		lastEnds.put(profile.serverData.url, System.currentTimeMillis());
+		String s = JmxServerMonitoring.formatDate(
+				JmxServerMonitoring.YYYYMMDD_HHMMSS_STD, new Date())
+				+ ", Url=" + profile.serverData.url + ": profile ";
+		if (error != null)
+			s += "stopped (" + error + "), ";
+		if (profile.trie.samples == 0) {
+			System.out.println(s + "without samples");
+			return;
+		}
+		File file = new File(options.profileDir,
+				profile.serverData.serverName.replaceAll("[:/\\\\]", ".")
+						+ "-"
+						+ JmxServerMonitoring.formatDate(
+								JmxServerMonitoring.YYYYMMDD_HHMMSS_NAG,
+								new Date(profile.startMillis)) + ".collapsed");
+		BufferedWriter out = null;
+		try {
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file), "UTF-8"));
+			profile.trie.writeCollapsed(out);
+			System.out.println(s + profile.dumps + " dumps, "
+					+ profile.trie.samples + " stacks sampled, "
+					+ profile.trie.stacks() + " distinct: " + file);
+		} catch (IOException ex) {
+			System.out.println(s + "not written to '" + file + "': " + ex);
+			JmxServerMonitoring.writeErrorFile(s, ex, options.errorFile);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {/* ok */
+				}
+			}
+		}
+	}
+
+	/***
+	 * Sampling of a single server
+	 */
+	private final class Profile implements Runnable {
+		final ServerData serverData;
+		final StackTrie trie = new StackTrie();
+		final long startMillis = System.currentTimeMillis();
+		volatile ScheduledFuture<?> future;
+		int dumps;
+		/** Thread ids, read again once per second */
+		long[] threadIds;
+		long threadIdsMillis;
+
+		Profile(ServerData serverData) {
+			this.serverData = serverData;
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			if (now - startMillis >= options.profileSeconds * 1000L) {
+				stop(null);
+				return;
+			}
+			ServerConnection connection = serverData.connection;
+			if (!connection.breaker.isClosed())
+				return; // unreachable: no samples, but no reconnects either
+			try {
+				connection.getMBeanServerConnection();
+				RemoteMXBeans mxBeans = connection.mxBeans;
+				if (mxBeans == null)
+					return;
+				if (threadIds == null || now - threadIdsMillis >= 1000) {
+					threadIds = mxBeans.threads().getAllThreadIds();
+					threadIdsMillis = now;
+				}
+				// The stacks are cut off by the server
+				ThreadInfo[] infos = mxBeans.threads().getThreadInfo(
+						threadIds, options.profileDepth);
+				dumps++;
+				for (ThreadInfo info : infos) {
+					if (info == null
+							|| (!options.profileAllThreads && info
+									.getThreadState() != Thread.State.RUNNABLE))
+						continue;
+					StackTraceElement[] stack = info.getStackTrace();
+					// Not the thread which answers this call
+					if (stack.length > 0
+							&& stack[0].getClassName().equals(
+									SAMPLING_CLASS_NAME))
+						continue;
+					trie.add(stack, options.profileDepth);
+				}
+			} catch (Exception ex) {
+				stop(ex.toString());
+			}
+		}
+
+		private void stop(String error) {
+			ScheduledFuture<?> f = future;
+			if (f != null)
+				f.cancel(false);
+			else
+				// Not yet set by start(): the next run stops again
+				return;
+			finished(this, error);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Sampled stacks, merged into a trie: each distinct frame (class and method)
+ * is stored once, each distinct stack prefix is one node with the number of
+ * samples which ended there. Nodes are kept in primitive arrays; the children
+ * of all nodes are found in one open addressing table keyed by (parent
+ * node, frame).
+ * @author romix
+ *
+ */
+class StackTrie {
+	private final Map<String, Integer> frameIds = new HashMap<String, Integer>();
+	private final List<String> frames = new ArrayList<String>();
+	/** Node 0 is the root (no frame) */
+	private int[] parents = new int[256];
+	private int[] nodeFrames = new int[256];
+	private int[] selfCounts = new int[256];
+	private int nodeCount = 1;
+	/** (parent << 32 | frame) + 1 of the children, 0 = empty */
+	private long[] childKeys = new long[512];
+	private int[] childNodes = new int[512];
+	/** Number of stacks added */
+	int samples;
+
+	/***
+	 * Add a stack
+	 * @param stack frames, the most recent first
+	 * @param depth number of frames to use (from the most recent one)
+	 */
+	void add(StackTraceElement[] stack, int depth) {
+		int n = Math.min(depth, stack.length);
+		if (n <= 0)
+			return;
+		int node = 0;
+		for (int i = n - 1; i >= 0; i--)
+			node = child(node, frameId(stack[i]));
+		selfCounts[node]++;
+		samples++;
+	}
+
+	private int frameId(StackTraceElement element) {
+		String frame = element.getClassName() + "." + element.getMethodName();
+		Integer id = frameIds.get(frame);
+		if (id == null) {
+			id = frames.size();
+			frames.add(frame);
+			frameIds.put(frame, id);
+		}
+		return id.intValue();
+	}
+
+	private int child(int parent, int frame) {
+		long key = (((long) parent << 32) | frame) + 1;
+		int mask = childKeys.length - 1;
+		int i = (int) (key ^ (key >>> 29)) * 0x9E3779B9 & mask;
+		while (childKeys[i] != 0) {
+			if (childKeys[i] == key)
+				return childNodes[i];
+			i = (i + 1) & mask;
+		}
+		if (nodeCount == parents.length) {
+			parents = Arrays.copyOf(parents, nodeCount * 2);
+			nodeFrames = Arrays.copyOf(nodeFrames, nodeCount * 2);
+			selfCounts = Arrays.copyOf(selfCounts, nodeCount * 2);
+		}
+		int node = nodeCount++;
+		parents[node] = parent;
+		nodeFrames[node] = frame;
+		childKeys[i] = key;
+		childNodes[i] = node;
+		if (nodeCount * 2 > childKeys.length)
+			rehash();
+		return node;
+	}
+
+	private void rehash() {
+		long[] oldKeys = childKeys;
+		int[] oldNodes = childNodes;
+		childKeys = new long[oldKeys.length * 2];
+		childNodes = new int[oldKeys.length * 2];
+		int mask = childKeys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			long key = oldKeys[j];
+			if (key == 0)
+				continue;
+			int i = (int) (key ^ (key >>> 29)) * 0x9E3779B9 & mask;
+			while (childKeys[i] != 0)
+				i = (i + 1) & mask;
+			childKeys[i] = key;
+			childNodes[i] = oldNodes[j];
+		}
+	}
+
+	/***
+	 * Number of distinct stacks (nodes where samples ended)
+	 * @return
+	 */
+	int stacks() {
+		int stacks = 0;
+		for (int node = 1; node < nodeCount; node++)
+			if (selfCounts[node] > 0)
+				stacks++;
+		return stacks;
+	}
+
+	/***
+	 * Collapsed stacks for flame graphs: one line per distinct stack, the
+	 * frames from the root separated by ';', followed by the number of
+	 * samples
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCollapsed(Writer out) throws IOException {
+		int[] path = new int[64];
+		StringBuilder line = new StringBuilder(256);
+		for (int node = 1; node < nodeCount; node++) {
+			if (selfCounts[node] == 0)
+				continue;
+			int length = 0;
+			for (int n = node; n != 0; n = parents[n]) {
+				if (length == path.length)
+					path = Arrays.copyOf(path, length * 2);
+				path[length++] = nodeFrames[n];
+			}
+			line.setLength(0);
+			for (int i = length - 1; i >= 0; i--) {
+				line.append(frames.get(path[i]));
+				if (i > 0)
+					line.append(';');
+			}
+			line.append(' ').append(selfCounts[node]).append('\n');
+			out.write(line.toString());
+		}
+	}
+}
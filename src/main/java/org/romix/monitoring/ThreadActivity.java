@@ -0,0 +1,188 @@
+package org.romix.monitoring;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+/***
+ * CPU time and allocated bytes of all threads of a server, for the top-N
+ * threads per period.
+ *
+ * All threads are read with one remote call per metric (the bulk methods of
+ * com.sun.management.ThreadMXBean); names are only read for the reported
+ * threads, once per thread. The last values are kept in primitive arrays
+ * (an open addressing table by thread id), the top-N are selected with a
+ * bounded min-heap per metric instead of sorting all threads.
+ * @author romix
+ *
+ */
+class ThreadActivity {
+	/** Number of reported threads per metric */
+	final int topN;
+	/** Thread ids of the table (0 = empty, thread ids are positive) */
+	private long[] ids = new long[64];
+	private long[] cpuTimes = new long[64];
+	private long[] allocatedBytes = new long[64];
+	private String[] names = new String[64];
+	/** Read in which cycle? */
+	private long[] cycles = new long[64];
+	private int used;
+	private long cycle;
+	private long lastUptimeMs = -1;
+	private boolean allocationSupported = true;
+	private final TopN topCpu;
+	private final TopN topAllocation;
+
+	ThreadActivity(int topN) {
+		this.topN = topN;
+		topCpu = new TopN(topN);
+		topAllocation = new TopN(topN);
+	}
+
+	/***
+	 * Read all threads and select the top-N of the period
+	 * @param threads
+	 * @param uptimeMs uptime of the JVM read in this cycle
+	 * @return null for the first read (no period yet)
+	 */
+	synchronized HotThreads read(com.sun.management.ThreadMXBean threads,
+			long uptimeMs) {
+		long[] threadIds = threads.getAllThreadIds();
+		long[] cpu;
+		try {
+			cpu = threads.getThreadCpuTime(threadIds);
+		} catch (UnsupportedOperationException ex) {
+			cpu = new long[threadIds.length];
+			Arrays.fill(cpu, -1);
+		}
+		long[] allocated = null;
+		if (allocationSupported) {
+			try {
+				allocated = threads.getThreadAllocatedBytes(threadIds);
+			} catch (UnsupportedOperationException ex) {
+				allocationSupported = false;
+			}
+		}
+		long elapsedMs = uptimeMs - lastUptimeMs;
+		boolean period = lastUptimeMs >= 0 && elapsedMs > 0;
+		lastUptimeMs = uptimeMs;
+		cycle++;
+		if ((used + threadIds.length) * 2 > ids.length)
+			rehash(threadIds.length);
+		topCpu.clear();
+		topAllocation.clear();
+		for (int i = 0; i < threadIds.length; i++) {
+			int slot = slot(threadIds[i]);
+			boolean last = period && cycles[slot] == cycle - 1;
+			long allocatedNow = (allocated != null) ? allocated[i] : -1;
+			if (last && cpu[i] >= 0 && cpuTimes[slot] >= 0
+					&& cpu[i] > cpuTimes[slot])
+				topCpu.offer(slot, cpu[i] - cpuTimes[slot]);
+			if (last && allocatedNow >= 0 && allocatedBytes[slot] >= 0
+					&& allocatedNow > allocatedBytes[slot])
+				topAllocation.offer(slot, allocatedNow - allocatedBytes[slot]);
+			cpuTimes[slot] = cpu[i];
+			allocatedBytes[slot] = allocatedNow;
+			cycles[slot] = cycle;
+		}
+		if (!period)
+			return null;
+		readNames(threads);
+		HotThreads hotThreads = new HotThreads();
+		hotThreads.byCpu = hotThreads(topCpu, elapsedMs, true);
+		hotThreads.byAllocation = (allocated != null) ? hotThreads(
+				topAllocation, elapsedMs, false) : null;
+		return hotThreads;
+	}
+
+	/***
+	 * Slot of a thread id (a new one, if the id is not in the table)
+	 */
+	private int slot(long id) {
+		int mask = ids.length - 1;
+		int slot = (int) (id ^ (id >>> 32)) * 0x9E3779B9 & mask;
+		while (ids[slot] != 0 && ids[slot] != id)
+			slot = (slot + 1) & mask;
+		if (ids[slot] == 0) {
+			ids[slot] = id;
+			cpuTimes[slot] = -1;
+			allocatedBytes[slot] = -1;
+			names[slot] = null;
+			cycles[slot] = 0;
+			used++;
+		}
+		return slot;
+	}
+
+	/***
+	 * New table with the threads of the last read only (terminated threads
+	 * are dropped)
+	 * @param threadCount
+	 */
+	private void rehash(int threadCount) {
+		long[] oldIds = ids;
+		long[] oldCpuTimes = cpuTimes;
+		long[] oldAllocatedBytes = allocatedBytes;
+		String[] oldNames = names;
+		long[] oldCycles = cycles;
+		int capacity = 64;
+		while (capacity < threadCount * 4)
+			capacity *= 2;
+		ids = new long[capacity];
+		cpuTimes = new long[capacity];
+		allocatedBytes = new long[capacity];
+		names = new String[capacity];
+		cycles = new long[capacity];
+		used = 0;
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] == 0 || oldCycles[i] != cycle - 1)
+				continue;
+			int slot = slot(oldIds[i]);
+			cpuTimes[slot] = oldCpuTimes[i];
+			allocatedBytes[slot] = oldAllocatedBytes[i];
+			names[slot] = oldNames[i];
+			cycles[slot] = oldCycles[i];
+		}
+	}
+
+	/***
+	 * Read the names of the selected threads which are not known yet (one
+	 * remote call)
+	 */
+	private void readNames(com.sun.management.ThreadMXBean threads) {
+		int count = 0;
+		long[] unnamed = new long[topCpu.size + topAllocation.size];
+		for (TopN top : new TopN[] { topCpu, topAllocation })
+			for (int i = 0; i < top.size; i++)
+				if (names[top.slots[i]] == null)
+					unnamed[count++] = ids[top.slots[i]];
+		if (count == 0)
+			return;
+		ThreadInfo[] infos = threads.getThreadInfo(Arrays.copyOf(unnamed,
+				count));
+		for (int i = 0; i < count; i++) {
+			int slot = slot(unnamed[i]);
+			if (names[slot] == null)
+				names[slot] = (infos[i] != null) ? infos[i].getThreadName()
+						: "#" + unnamed[i];
+		}
+	}
+
+	private HotThread[] hotThreads(TopN top, long elapsedMs, boolean cpu) {
+		top.sortDescending();
+		HotThread[] hotThreads = new HotThread[top.size];
+		for (int i = 0; i < top.size; i++) {
+			int slot = top.slots[i];
+			HotThread hotThread = new HotThread();
+			hotThread.threadId = ids[slot];
+			hotThread.threadName = names[slot];
+			if (cpu)
+				hotThread.cpuPercent = Math.round(top.values[i] / 1000.
+						/ elapsedMs) / 10.;
+			else
+				hotThread.allocatedBytesPerSecond = (long) (top.values[i]
+						* 1000 / elapsedMs);
+			hotThreads[i] = hotThread;
+		}
+		return hotThreads;
+	}
+}
@@ -0,0 +1,362 @@
+package org.romix.monitoring;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/***
+ * A fixed-size block of a time series file with Gorilla-style compression
+ * (delta-of-delta encoded timestamps, XOR encoded double values).
+ *
+ * Layout of a block:
+ * <pre>
+ *  0 int    magic
+ *  4 int    number of samples
+ *  8 long   first timestamp (ms)
+ * 16 long   last timestamp (ms)
+ * 24 double minimum value
+ * 32 double maximum value
+ * 40 double sum of values
+ * 48 int    number of used payload bits
+ * 52 int    CRC32 of bytes 4..51 and of the used payload bytes
+ * 56 ...    payload (bit stream)
+ * </pre>
+ * The header doubles as a sparse index: time range and min/max/sum of a
+ * block can be used without decoding it.
+ * @author romix
+ *
+ */
+class TimeSeriesBlock {
+	static final int SIZE = 4096;
+	static final int MAGIC = 0x54534231; // "TSB1"
+	static final int HEADER = 56;
+	static final int PAYLOAD_BITS = (SIZE - HEADER) * 8;
+	/** Upper bound of the bits of one encoded sample */
+	static final int MAX_SAMPLE_BITS = 4 + 64 + 2 + 5 + 6 + 64;
+
+	private final ByteBuffer buf;
+	private final int offset;
+	private final ByteBuffer crcView;
+	private final CRC32 crc = new CRC32();
+
+	// Encoder/decoder state
+	int count;
+	int bitPos;
+	long prevTime;
+	long prevDelta;
+	long prevValueBits;
+	int prevLeading = Integer.MAX_VALUE;
+	int prevTrailing;
+	double min;
+	double max;
+	double sum;
+	long firstTime;
+
+	/***
+	 * @param buf
+	 *            buffer (e.g. a mapped file) containing the block
+	 * @param offset
+	 *            position of the block within the buffer
+	 */
+	TimeSeriesBlock(ByteBuffer buf, int offset) {
+		this.buf = buf;
+		this.offset = offset;
+		this.crcView = buf.duplicate();
+	}
+
+	static int count(ByteBuffer buf, int offset) {
+		return buf.getInt(offset + 4);
+	}
+
+	static long firstTime(ByteBuffer buf, int offset) {
+		return buf.getLong(offset + 8);
+	}
+
+	static long lastTime(ByteBuffer buf, int offset) {
+		return buf.getLong(offset + 16);
+	}
+
+	static double min(ByteBuffer buf, int offset) {
+		return buf.getDouble(offset + 24);
+	}
+
+	static double max(ByteBuffer buf, int offset) {
+		return buf.getDouble(offset + 32);
+	}
+
+	static double sum(ByteBuffer buf, int offset) {
+		return buf.getDouble(offset + 40);
+	}
+
+	/***
+	 * Is there a complete, undamaged block at the offset?
+	 * @return
+	 */
+	boolean isValid() {
+		if (buf.getInt(offset) != MAGIC)
+			return false;
+		int bits = buf.getInt(offset + 48);
+		if (bits < 0 || bits > PAYLOAD_BITS || buf.getInt(offset + 4) <= 0)
+			return false;
+		return buf.getInt(offset + 52) == computeCrc(bits);
+	}
+
+	private int computeCrc(int bits) {
+		crc.reset();
+		crcView.limit(offset + 52).position(offset + 4);
+		crc.update(crcView);
+		crcView.limit(offset + HEADER + (bits + 7) / 8).position(
+				offset + HEADER);
+		crc.update(crcView);
+		return (int) crc.getValue();
+	}
+
+	/***
+	 * Start an empty block (the payload area is cleared)
+	 */
+	void init() {
+		for (int i = offset; i < offset + SIZE; i += 8)
+			buf.putLong(i, 0L);
+		count = 0;
+		bitPos = 0;
+		prevLeading = Integer.MAX_VALUE;
+	}
+
+	boolean hasRoom() {
+		return bitPos + MAX_SAMPLE_BITS <= PAYLOAD_BITS;
+	}
+
+	/***
+	 * Append a sample and update the header. Timestamps must not decrease.
+	 * @param time
+	 * @param value
+	 */
+	void append(long time, double value) {
+		long valueBits = Double.doubleToRawLongBits(value);
+		if (count == 0) {
+			writeBits(time, 64);
+			writeBits(valueBits, 64);
+			firstTime = time;
+			prevDelta = 0;
+			min = value;
+			max = value;
+			sum = 0;
+		} else {
+			long delta = time - prevTime;
+			writeDeltaOfDelta(delta - prevDelta);
+			prevDelta = delta;
+			writeXor(valueBits ^ prevValueBits);
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		prevTime = time;
+		prevValueBits = valueBits;
+		sum += value;
+		count++;
+		// The bits before the count: a count is never ahead of its samples
+		buf.putInt(offset + 48, bitPos);
+		buf.putInt(offset + 4, count);
+		buf.putLong(offset + 8, firstTime);
+		buf.putLong(offset + 16, time);
+		buf.putDouble(offset + 24, min);
+		buf.putDouble(offset + 32, max);
+		buf.putDouble(offset + 40, sum);
+		buf.putInt(offset + 52, computeCrc(bitPos));
+		buf.putInt(offset, MAGIC);
+	}
+
+	private void writeDeltaOfDelta(long dod) {
+		if (dod == 0) {
+			writeBits(0, 1);
+		} else if (dod >= -63 && dod <= 64) {
+			writeBits(0x2, 2);
+			writeBits(dod, 7);
+		} else if (dod >= -255 && dod <= 256) {
+			writeBits(0x6, 3);
+			writeBits(dod, 9);
+		} else if (dod >= -2047 && dod <= 2048) {
+			writeBits(0xE, 4);
+			writeBits(dod, 12);
+		} else {
+			writeBits(0xF, 4);
+			writeBits(dod, 64);
+		}
+	}
+
+	private void writeXor(long xor) {
+		if (xor == 0) {
+			writeBits(0, 1);
+			return;
+		}
+		int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+		int trailing = Long.numberOfTrailingZeros(xor);
+		if (prevLeading != Integer.MAX_VALUE && leading >= prevLeading
+				&& trailing >= prevTrailing) {
+			// Meaningful bits fit into the previous window
+			writeBits(0x2, 2);
+			writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+		} else {
+			int length = 64 - leading - trailing;
+			writeBits(0x3, 2);
+			writeBits(leading, 5);
+			writeBits(length - 1, 6);
+			writeBits(xor >>> trailing, length);
+			prevLeading = leading;
+			prevTrailing = trailing;
+		}
+	}
+
+	private void writeBits(long value, int nbits) {
+		while (nbits > 0) {
+			int index = offset + HEADER + (bitPos >>> 3);
+			int free = 8 - (bitPos & 7);
+			int take = Math.min(free, nbits);
+			int bits = (int) ((value >>> (nbits - take)) & ((1 << take) - 1));
+			buf.put(index, (byte) (buf.get(index) | (bits << (free - take))));
+			bitPos += take;
+			nbits -= take;
+		}
+	}
+
+	// Decoding
+
+	private int readPos;
+	private int readCount;
+	long time;
+	double value;
+
+	/***
+	 * Start reading the samples of the block from the beginning
+	 */
+	void rewind() {
+		readPos = 0;
+		readCount = 0;
+		prevLeading = Integer.MAX_VALUE;
+		count = buf.getInt(offset + 4);
+		bitPos = buf.getInt(offset + 48);
+	}
+
+	/***
+	 * Read the next sample into time/value
+	 * @return false, if there are no more samples
+	 */
+	boolean next() {
+		if (readCount >= count)
+			return false;
+		if (readCount == 0) {
+			time = readBits(64);
+			prevValueBits = readBits(64);
+			prevDelta = 0;
+			firstTime = time;
+		} else {
+			prevDelta += readDeltaOfDelta();
+			time += prevDelta;
+			prevValueBits ^= readXor();
+		}
+		value = Double.longBitsToDouble(prevValueBits);
+		prevTime = time;
+		readCount++;
+		return true;
+	}
+
+	/***
+	 * Decode the complete block, so that further samples can be appended
+	 * (used when an existing file is opened again). Bits behind the last
+	 * sample (of a sample which was only partly written at a crash) are
+	 * cleared, as appending ORs into the payload.
+	 */
+	void resume() {
+		rewind();
+		while (next()) {
+			// nothing to do
+		}
+		min = min(buf, offset);
+		max = max(buf, offset);
+		sum = sum(buf, offset);
+		int index = offset + HEADER + (bitPos >>> 3);
+		if ((bitPos & 7) != 0) {
+			buf.put(index, (byte) (buf.get(index) & (0xFF00 >>> (bitPos & 7))));
+			index++;
+		}
+		for (; index < offset + SIZE; index++)
+			buf.put(index, (byte) 0);
+	}
+
+	/***
+	 * Rewrite a damaged block with the samples which can still be decoded:
+	 * at most as many as the header counts and within the bits it counts,
+	 * as long as the timestamps do not decrease. An append writes the
+	 * samples, then the number of bits, then the count, so after a crash
+	 * during an append all earlier samples are intact.
+	 * @param minTime timestamp of the last sample before the block
+	 * @return the number of samples kept (0: the block is empty)
+	 */
+	int recoverPrefix(long minTime) {
+		int n = Math.min(buf.getInt(offset + 4), PAYLOAD_BITS / 2 + 1);
+		if (n <= 0) {
+			init();
+			return 0;
+		}
+		rewind();
+		count = n;
+		int bits = Math.min(bitPos, PAYLOAD_BITS);
+		long[] times = new long[n];
+		double[] values = new double[n];
+		int kept = 0;
+		long last = minTime;
+		while (readPos + MAX_SAMPLE_BITS <= PAYLOAD_BITS && next()
+				&& readPos <= bits && time >= last) {
+			times[kept] = time;
+			values[kept] = value;
+			last = time;
+			kept++;
+		}
+		init();
+		for (int i = 0; i < kept; i++)
+			append(times[i], values[i]);
+		return kept;
+	}
+
+	private long readDeltaOfDelta() {
+		if (readBits(1) == 0)
+			return 0;
+		if (readBits(1) == 0)
+			return signed(readBits(7), 7);
+		if (readBits(1) == 0)
+			return signed(readBits(9), 9);
+		if (readBits(1) == 0)
+			return signed(readBits(12), 12);
+		return readBits(64);
+	}
+
+	private static long signed(long v, int nbits) {
+		return (v > (1L << (nbits - 1))) ? v - (1L << nbits) : v;
+	}
+
+	private long readXor() {
+		if (readBits(1) == 0)
+			return 0;
+		if (readBits(1) == 0)
+			return readBits(64 - prevLeading - prevTrailing) << prevTrailing;
+		int leading = (int) readBits(5);
+		int length = (int) readBits(6) + 1;
+		int trailing = 64 - leading - length;
+		prevLeading = leading;
+		prevTrailing = trailing;
+		return readBits(length) << trailing;
+	}
+
+	private long readBits(int nbits) {
+		long result = 0;
+		while (nbits > 0) {
+			int index = offset + HEADER + (readPos >>> 3);
+			int avail = 8 - (readPos & 7);
+			int take = Math.min(avail, nbits);
+			int bits = ((buf.get(index) & 0xFF) >>> (avail - take))
+					& ((1 << take) - 1);
+			result = (result << take) | bits;
+			readPos += take;
+			nbits -= take;
+		}
+		return result;
+	}
+}
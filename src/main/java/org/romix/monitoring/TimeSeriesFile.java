@@ -0,0 +1,380 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/***
+ * Append-only, memory-mapped file of one time series.
+ *
+ * The file starts with a header (magic, version, series name) followed by
+ * fixed-size {@link TimeSeriesBlock}s. Only the last block is open for
+ * appending, all others are sealed. The mapping is extended in steps, unused
+ * blocks at the end of the file are zero. The file itself is only open
+ * while the mapping is created or extended (a mapping stays valid without
+ * it), so hundreds of series do not hold hundreds of file descriptors.
+ *
+ * When an existing file is opened, the blocks are validated by their CRC.
+ * A damaged block is dropped and the later blocks are moved up, so that the
+ * written blocks stay a prefix of the file. Of the last block (the one open
+ * at the time of a crash) the samples which can still be decoded are kept.
+ * @author romix
+ *
+ */
+class TimeSeriesFile {
+	static final int MAGIC = 0x4A534D54; // "JSMT"
+	static final int VERSION = 1;
+	static final int HEADER = 512;
+	static final String SUFFIX = ".tsd";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Longest file name without the suffix (most file systems allow 255) */
+	static final int MAX_FILE_NAME = 200;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final int MIN_MAPPED_BLOCKS = 16;
+	private static final int MAX_GROWTH_BLOCKS = 1024;
+
+	final File file;
+	final String seriesName;
+	private final boolean readOnly;
+	private MappedByteBuffer buf;
+	private int mappedBlocks;
+	/** Number of valid blocks, the last one is the open block */
+	private int blockCount;
+	private TimeSeriesBlock openBlock;
+	private long lastTime = Long.MIN_VALUE;
+	/** Blocks dropped during recovery */
+	int droppedBlocks;
+	/** Samples kept of a damaged last block during recovery */
+	int recoveredSamples;
+	/** Bytes of block headers and samples appended since the file was opened */
+	long bytesWritten;
+
+	/***
+	 * A series which cannot be stored (invalid name, or its file belongs to
+	 * another series); trying again does not help
+	 */
+	static class SeriesNameException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		SeriesNameException(String message) {
+			super(message);
+		}
+	}
+
+	private TimeSeriesFile(File file, String seriesName, boolean readOnly)
+			throws IOException {
+		this.file = file;
+		this.readOnly = readOnly;
+		if (readOnly && !file.isFile())
+			throw new IOException("No time series file: " + file);
+		if (!readOnly)
+			checkName(seriesName);
+		long size = file.length();
+		if (size == 0 && !readOnly) {
+			map(MIN_MAPPED_BLOCKS);
+			writeHeader(seriesName);
+			this.seriesName = seriesName;
+		} else {
+			if (size < HEADER)
+				throw new IOException("Not a time series file: " + file);
+			map((int) ((size - HEADER) / TimeSeriesBlock.SIZE));
+			this.seriesName = readHeader();
+			if (!readOnly && !this.seriesName.equals(seriesName))
+				throw new SeriesNameException("File " + file
+						+ " belongs to the series " + this.seriesName);
+			recover();
+		}
+	}
+
+	/***
+	 * Can the name be stored in the header? Checked before a file is created.
+	 * @param seriesName
+	 * @throws SeriesNameException
+	 */
+	static void checkName(String seriesName) throws SeriesNameException {
+		if (seriesName == null || seriesName.length() == 0)
+			throw new SeriesNameException("Empty series name");
+		if (seriesName.getBytes(UTF8).length > HEADER - 16)
+			throw new SeriesNameException("Series name too long (more than "
+					+ (HEADER - 16) + " bytes): " + seriesName);
+	}
+
+	/***
+	 * Open (or create) the file for appending
+	 * @param file
+	 * @param seriesName
+	 *            stored in the header of a new file
+	 * @return
+	 * @throws IOException
+	 */
+	static TimeSeriesFile open(File file, String seriesName) throws IOException {
+		return new TimeSeriesFile(file, seriesName, false);
+	}
+
+	/***
+	 * Open an existing file for queries
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static TimeSeriesFile openReadOnly(File file) throws IOException {
+		return new TimeSeriesFile(file, null, true);
+	}
+
+	private void map(int blocks) throws IOException {
+		long size = HEADER + (long) blocks * TimeSeriesBlock.SIZE;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Time series file too large: " + file);
+		RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r"
+				: "rw");
+		try {
+			buf = raf.getChannel().map(
+					readOnly ? FileChannel.MapMode.READ_ONLY
+							: FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+		mappedBlocks = blocks;
+	}
+
+	private void writeHeader(String name) throws IOException {
+		byte[] nameBytes = name.getBytes(UTF8);
+		if (nameBytes.length > HEADER - 16)
+			throw new IOException("Series name too long: " + name);
+		buf.putInt(0, MAGIC);
+		buf.putInt(4, VERSION);
+		buf.putInt(8, TimeSeriesBlock.SIZE);
+		buf.putInt(12, nameBytes.length);
+		for (int i = 0; i < nameBytes.length; i++)
+			buf.put(16 + i, nameBytes[i]);
+	}
+
+	private String readHeader() throws IOException {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+				|| buf.getInt(8) != TimeSeriesBlock.SIZE)
+			throw new IOException("Not a time series file: " + file);
+		int len = buf.getInt(12);
+		if (len < 0 || len > HEADER - 16)
+			throw new IOException("Corrupt time series header: " + file);
+		byte[] nameBytes = new byte[len];
+		for (int i = 0; i < len; i++)
+			nameBytes[i] = buf.get(16 + i);
+		return new String(nameBytes, UTF8);
+	}
+
+	/***
+	 * Find the valid blocks and resume the last one
+	 */
+	private void recover() {
+		if (readOnly) {
+			findWrittenBlocks();
+			return;
+		}
+		int last = mappedBlocks - 1;
+		while (last >= 0 && buf.getInt(offset(last)) == 0
+				&& buf.getInt(offset(last) + 4) == 0)
+			last--;
+		blockCount = 0;
+		long prevTime = Long.MIN_VALUE;
+		for (int i = 0; i <= last; i++) {
+			TimeSeriesBlock block = new TimeSeriesBlock(buf, offset(i));
+			boolean keep = block.isValid()
+					&& TimeSeriesBlock.firstTime(buf, offset(i)) >= prevTime;
+			if (!keep && i == last) {
+				recoveredSamples = block.recoverPrefix(prevTime);
+				keep = recoveredSamples > 0;
+			}
+			if (!keep) {
+				droppedBlocks++;
+				continue;
+			}
+			if (i != blockCount)
+				copyBlock(i, blockCount);
+			prevTime = TimeSeriesBlock.lastTime(buf, offset(blockCount));
+			blockCount++;
+		}
+		for (int i = blockCount; i <= last; i++)
+			new TimeSeriesBlock(buf, offset(i)).init();
+		if (blockCount > 0) {
+			openBlock = new TimeSeriesBlock(buf, offset(blockCount - 1));
+			openBlock.resume();
+			lastTime = openBlock.prevTime;
+		}
+	}
+
+	private void copyBlock(int from, int to) {
+		for (int i = 0; i < TimeSeriesBlock.SIZE; i += 8)
+			buf.putLong(offset(to) + i, buf.getLong(offset(from) + i));
+	}
+
+	/***
+	 * Queries must not read the whole file: the written blocks are a prefix
+	 * of the file (the writer clears everything behind the last valid
+	 * block), so they are found by a binary search. Only the last block is
+	 * validated, as it may be just being written.
+	 */
+	private void findWrittenBlocks() {
+		int lo = 0;
+		int hi = mappedBlocks;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (buf.getInt(offset(mid)) == TimeSeriesBlock.MAGIC)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		blockCount = lo;
+		while (blockCount > 0
+				&& !new TimeSeriesBlock(buf, offset(blockCount - 1)).isValid())
+			blockCount--;
+	}
+
+	static int offset(int block) {
+		return HEADER + block * TimeSeriesBlock.SIZE;
+	}
+
+	/***
+	 * Append a sample. A timestamp before the last one is moved to the last
+	 * one, so that the blocks stay ordered by time.
+	 * @param time
+	 *            milliseconds
+	 * @param value
+	 * @throws IOException
+	 */
+	void append(long time, double value) throws IOException {
+		if (time < lastTime)
+			time = lastTime;
+		if (openBlock == null || !openBlock.hasRoom()) {
+			// The open block is always in the current mapping, older
+			// mappings stay valid for the sealed blocks
+			if (blockCount == mappedBlocks)
+				map(mappedBlocks + Math.min(
+						Math.max(mappedBlocks, MIN_MAPPED_BLOCKS),
+						MAX_GROWTH_BLOCKS));
+			openBlock = new TimeSeriesBlock(buf, offset(blockCount));
+			openBlock.init();
+			blockCount++;
+			bytesWritten += TimeSeriesBlock.HEADER;
+		}
+		int bytes = (openBlock.bitPos + 7) >>> 3;
+		openBlock.append(time, value);
+		bytesWritten += ((openBlock.bitPos + 7) >>> 3) - bytes;
+		lastTime = time;
+	}
+
+	/***
+	 * Time of the last sample (Long.MIN_VALUE, if there is none)
+	 * @return
+	 */
+	long lastTime() {
+		return lastTime;
+	}
+
+	int blockCount() {
+		return blockCount;
+	}
+
+	ByteBuffer buffer() {
+		return buf;
+	}
+
+	/***
+	 * A reader for one of the blocks
+	 * @param block
+	 * @return
+	 */
+	TimeSeriesBlock block(int block) {
+		TimeSeriesBlock b = new TimeSeriesBlock(buf, offset(block));
+		b.rewind();
+		return b;
+	}
+
+	/***
+	 * Index of the first block which may contain samples at or after the
+	 * time (binary search over the block headers)
+	 * @param time
+	 * @return
+	 */
+	int findBlock(long time) {
+		int lo = 0;
+		int hi = blockCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (TimeSeriesBlock.lastTime(buf, offset(mid)) < time)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	void force() {
+		if (!readOnly)
+			buf.force();
+	}
+
+	/***
+	 * Write the mapping back (the mapping itself is released by the GC)
+	 */
+	void close() {
+		force();
+	}
+
+	/***
+	 * File name of a series, different for different series: letters,
+	 * digits, '.' and '-' are kept, all other characters are escaped as '_'
+	 * and the hex digits of their UTF-8 bytes ("Heap Used" becomes
+	 * "Heap_20Used"). A name longer than MAX_FILE_NAME is cut and gets '~'
+	 * and the SHA-1 of the series name (escaping never yields a '~').
+	 * @param seriesName
+	 * @return
+	 */
+	static String fileName(String seriesName) {
+		byte[] bytes = seriesName.getBytes(UTF8);
+		StringBuilder sb = new StringBuilder(bytes.length + 8);
+		for (byte b : bytes) {
+			char c = (char) (b & 0xFF);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-')
+				sb.append(c);
+			else
+				sb.append('_').append(HEX[(b >> 4) & 0xF])
+						.append(HEX[b & 0xF]);
+		}
+		if (sb.length() > MAX_FILE_NAME) {
+			sb.setLength(MAX_FILE_NAME - 41);
+			sb.append('~');
+			try {
+				for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes))
+					sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+		return sb.append(SUFFIX).toString();
+	}
+
+	/***
+	 * File name of a series before the names were escaped (all other
+	 * characters were replaced by '_'); such files are renamed when they
+	 * are opened again
+	 * @param seriesName
+	 * @return
+	 */
+	static String legacyFileName(String seriesName) {
+		StringBuilder sb = new StringBuilder(seriesName.length() + 4);
+		for (int i = 0; i < seriesName.length(); i++) {
+			char c = seriesName.charAt(i);
+			sb.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-'
+					|| c == '_' ? c : '_');
+		}
+		return sb.append(SUFFIX).toString();
+	}
+}
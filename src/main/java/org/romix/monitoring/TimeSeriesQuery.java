@@ -0,0 +1,317 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/***
+ * Command-line queries on the time series files written with 'tsdir=...'.
+ *
+ * The block headers of a series file are used as a sparse index: the first
+ * block of a time range is found by a binary search, and for blocks which
+ * lie completely within a window, min/max/sum/count are taken from the
+ * header without decoding the samples. So even queries on long histories
+ * only touch a few blocks.
+ * @author romix
+ *
+ */
+public class TimeSeriesQuery {
+	static final String HELP_TEXT =
+		"TimeSeriesQuery:\n" +
+		"  Reads values of the time series files written with 'tsdir=...'.\n" +
+		"  'tsdir=timeseries':\n" +
+		"     Directory of the time series files.\n" +
+		"  'series=srv1.GarbageCollectionPercent':\n" +
+		"     Name of the series (<servername>.<value>); without a series\n" +
+		"     the names of all series are listed.\n" +
+		"  'query=latest':\n" +
+		"     Latest value (default).\n" +
+		"  'query=range from=2011-05-01T10:00:00 to=2011-05-01T11:00:00':\n" +
+		"     All values of the time range (one line per value).\n" +
+		"  'query=min|max|avg|count|stats window=300':\n" +
+		"     Aggregate over the last 300 seconds (or 5m, 2h, 1d) or over\n" +
+		"     from/to; 'stats' prints min;max;avg;count.\n" +
+		"  Times: 'yyyy-MM-dd HH:mm:ss', 'yyyy-MM-ddTHH:mm:ss' or milliseconds\n" +
+		"  since 1970. Exit code 1, if there is no value.\n" +
+		"Example:\n" +
+		"  java -cp JmxServerMonitoring.jar org.romix.monitoring.TimeSeriesQuery tsdir=ts series=srv1.CpuTimePercent query=avg window=5m\n";
+	static final String KEY_TSDIR = "tsdir";
+	static final String KEY_SERIES = "series";
+	static final String KEY_QUERY = "query";
+	static final String KEY_FROM = "from";
+	static final String KEY_TO = "to";
+	static final String KEY_WINDOW = "window";
+
+	private static final DecimalFormat VALUE_FORMAT = new DecimalFormat(
+			"0.######", new DecimalFormatSymbols(Locale.US));
+	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss");
+
+	/***
+	 * Aggregated values of a time range
+	 */
+	static class Stats {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum;
+		long count;
+
+		void add(double value) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			count++;
+		}
+	}
+
+	public static void main(String[] args) {
+		String tsDir = null;
+		String series = null;
+		String query = "latest";
+		String from = null;
+		String to = null;
+		String window = null;
+		for (String arg : args) {
+			int n = arg.indexOf('=');
+			String key = (n > 0) ? arg.substring(0, n).trim().toLowerCase()
+					: "";
+			String value = arg.substring(n + 1).trim();
+			if (key.equals(KEY_TSDIR))
+				tsDir = value;
+			else if (key.equals(KEY_SERIES))
+				series = value;
+			else if (key.equals(KEY_QUERY))
+				query = value.toLowerCase();
+			else if (key.equals(KEY_FROM))
+				from = value;
+			else if (key.equals(KEY_TO))
+				to = value;
+			else if (key.equals(KEY_WINDOW))
+				window = value;
+			else {
+				System.out.println(HELP_TEXT);
+				System.exit(2);
+			}
+		}
+		if (tsDir == null) {
+			System.out.println(HELP_TEXT);
+			System.exit(2);
+		}
+		try {
+			if (series == null) {
+				listSeries(new File(tsDir));
+				return;
+			}
+			TimeSeriesFile file = openSeries(new File(tsDir), series);
+			if (file == null) {
+				System.err.println("Unknown series: " + series);
+				System.exit(1);
+			}
+			boolean found;
+			try {
+				found = query(file, query, from, to, window);
+			} finally {
+				file.close();
+			}
+			if (!found)
+				System.exit(1);
+		} catch (Exception ex) {
+			System.err.println(ex);
+			System.exit(2);
+		}
+	}
+
+	/***
+	 * Run a query and print the result
+	 * @return false, if there was no value
+	 * @throws ParseException
+	 */
+	static boolean query(TimeSeriesFile file, String query, String from,
+			String to, String window) throws ParseException {
+		long now = System.currentTimeMillis();
+		long toMillis = (to != null) ? parseTime(to) : Long.MAX_VALUE;
+		long fromMillis;
+		if (window != null)
+			fromMillis = ((to != null) ? toMillis : now)
+					- parseSeconds(window) * 1000L;
+		else
+			fromMillis = (from != null) ? parseTime(from) : Long.MIN_VALUE;
+		if (query.equals("latest")) {
+			TimeSeriesBlock block = latest(file);
+			if (block == null)
+				return false;
+			System.out.println(formatValue(block.value));
+			return true;
+		}
+		if (query.equals("range")) {
+			return printRange(file, fromMillis, toMillis);
+		}
+		Stats stats = aggregate(file, fromMillis, toMillis);
+		if (stats.count == 0 && !query.equals("count"))
+			return false;
+		if (query.equals("min"))
+			System.out.println(formatValue(stats.min));
+		else if (query.equals("max"))
+			System.out.println(formatValue(stats.max));
+		else if (query.equals("avg"))
+			System.out.println(formatValue(stats.sum / stats.count));
+		else if (query.equals("count"))
+			System.out.println(stats.count);
+		else if (query.equals("stats"))
+			System.out.println(formatValue(stats.min) + ";"
+					+ formatValue(stats.max) + ";"
+					+ formatValue(stats.sum / stats.count) + ";" + stats.count);
+		else
+			throw new IllegalArgumentException("Unknown query: " + query);
+		return true;
+	}
+
+	/***
+	 * The last block, positioned on its last sample
+	 * @param file
+	 * @return null, if there are no samples
+	 */
+	static TimeSeriesBlock latest(TimeSeriesFile file) {
+		if (file.blockCount() == 0)
+			return null;
+		TimeSeriesBlock block = file.block(file.blockCount() - 1);
+		while (block.next()) {
+			// up to the last sample
+		}
+		return block;
+	}
+
+	static boolean printRange(TimeSeriesFile file, long from, long to) {
+		boolean found = false;
+		for (int i = file.findBlock(from); i < file.blockCount(); i++) {
+			TimeSeriesBlock block = file.block(i);
+			while (block.next()) {
+				if (block.time > to)
+					return found;
+				if (block.time >= from) {
+					System.out.println(DATE_FORMAT.format(new Date(block.time))
+							+ ";" + formatValue(block.value));
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
+
+	/***
+	 * Min/max/sum/count of the samples within [from, to]. Blocks which are
+	 * completely inside the range are aggregated from their header, only
+	 * the blocks at the borders are decoded.
+	 * @param file
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	static Stats aggregate(TimeSeriesFile file, long from, long to) {
+		Stats stats = new Stats();
+		ByteBuffer buf = file.buffer();
+		for (int i = file.findBlock(from); i < file.blockCount(); i++) {
+			int offset = TimeSeriesFile.offset(i);
+			long first = TimeSeriesBlock.firstTime(buf, offset);
+			long last = TimeSeriesBlock.lastTime(buf, offset);
+			if (first > to)
+				break;
+			if (first >= from && last <= to) {
+				stats.min = Math.min(stats.min, TimeSeriesBlock.min(buf, offset));
+				stats.max = Math.max(stats.max, TimeSeriesBlock.max(buf, offset));
+				stats.sum += TimeSeriesBlock.sum(buf, offset);
+				stats.count += TimeSeriesBlock.count(buf, offset);
+				continue;
+			}
+			TimeSeriesBlock block = file.block(i);
+			while (block.next()) {
+				if (block.time > to)
+					break;
+				if (block.time >= from)
+					stats.add(block.value);
+			}
+		}
+		return stats;
+	}
+
+	/***
+	 * Open the file of a series. The file name is derived from the series
+	 * name; if the name in its header differs (ambiguous file name), all
+	 * files are searched.
+	 * @param dir
+	 * @param series
+	 * @return null, if there is no such series
+	 * @throws IOException
+	 */
+	static TimeSeriesFile openSeries(File dir, String series)
+			throws IOException {
+		File f = new File(dir, TimeSeriesFile.fileName(series));
+		if (f.isFile()) {
+			TimeSeriesFile file = TimeSeriesFile.openReadOnly(f);
+			if (series.equals(file.seriesName))
+				return file;
+			file.close();
+		}
+		File[] files = dir.listFiles();
+		if (files == null)
+			return null;
+		for (File other : files) {
+			if (!other.getName().endsWith(TimeSeriesFile.SUFFIX)
+					|| other.equals(f))
+				continue;
+			TimeSeriesFile file = TimeSeriesFile.openReadOnly(other);
+			if (series.equals(file.seriesName))
+				return file;
+			file.close();
+		}
+		return null;
+	}
+
+	static void listSeries(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Not a directory: " + dir);
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!f.getName().endsWith(TimeSeriesFile.SUFFIX))
+				continue;
+			TimeSeriesFile file = TimeSeriesFile.openReadOnly(f);
+			System.out.println(file.seriesName);
+			file.close();
+		}
+	}
+
+	static long parseTime(String s) throws ParseException {
+		if (s.matches("-?\\d+"))
+			return Long.parseLong(s);
+		return DATE_FORMAT.parse(s.replace('T', ' ')).getTime();
+	}
+
+	/***
+	 * Seconds, optionally with unit s, m, h or d
+	 * @param s
+	 * @return
+	 */
+	static long parseSeconds(String s) {
+		s = s.trim().toLowerCase();
+		long factor = 1;
+		char unit = s.charAt(s.length() - 1);
+		if (unit == 's' || unit == 'm' || unit == 'h' || unit == 'd') {
+			factor = (unit == 'm') ? 60 : (unit == 'h') ? 3600
+					: (unit == 'd') ? 86400 : 1;
+			s = s.substring(0, s.length() - 1).trim();
+		}
+		return Long.parseLong(s) * factor;
+	}
+
+	static String formatValue(double value) {
+		return VALUE_FORMAT.format(value);
+	}
+}
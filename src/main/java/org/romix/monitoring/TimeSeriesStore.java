@@ -0,0 +1,189 @@
+package org.romix.monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/***
+ * Output into a directory of compact binary time series files (one file per
+ * series, see TimeSeriesFile). Series are named
+ * "&lt;server&gt;.&lt;metric&gt;", e.g. "srv1.GarbageCollectionPercent" or
+ * "srv1.HeapMemoryUsage". Values of an ObjectName pattern carry the MBean
+ * ("srv1.ThreadCount{java.lang:type=Threading}"), aggregated values the
+ * aggregate or rank ("srv1.Requests{sum}", "srv1.Requests{top1}"). With GC notifications, every single collection
+ * is a sample of "&lt;server&gt;.&lt;collector&gt;.PauseMillis" at the time of
+ * the collection. Samples have the time of their measurement; values which
+ * were not read again in a cycle (longer read interval) are not repeated.
+ * Servers without a result in a cycle get no sample (a gap in the series);
+ * non-numeric attribute values are skipped.
+ * @author romix
+ *
+ */
+class TimeSeriesStore {
+	private final File dir;
+	private final String errorFile;
+	/** Open files by server URL and series name */
+	private final Map<String, Map<String, TimeSeriesFile>> servers = new HashMap<String, Map<String, TimeSeriesFile>>();
+	/** Names of single MBean values in the current cycle (duplicate titles) */
+	private final Set<String> cycleNames = new HashSet<String>();
+	/** Series which cannot be stored (reported once) */
+	private final Set<String> rejected = new HashSet<String>();
+	/** Bytes appended to all files (block headers and encoded samples) */
+	volatile long bytesWritten;
+
+	TimeSeriesStore(String dir, String errorFile) {
+		this.dir = new File(dir);
+		this.errorFile = errorFile;
+	}
+
+	/***
+	 * Write the results of one cycle
+	 * @param serverDataArr
+	 * @param cycleMillis
+	 */
+	synchronized void write(ServerData[] serverDataArr, long cycleMillis) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.out.println("Cannot create directory " + dir);
+			return;
+		}
+		closeDepartedServers(serverDataArr);
+		for (ServerData serverData : serverDataArr) {
+			if (serverData == null || serverData.gcGroup == null)
+				continue;
+			Map<String, TimeSeriesFile> files = servers.get(serverData.url);
+			if (files == null) {
+				files = new HashMap<String, TimeSeriesFile>();
+				servers.put(serverData.url, files);
+			}
+			String prefix = serverData.serverName + ".";
+			GarbageCollectionGroup gcGroup = serverData.gcGroup;
+			long gcMillis = gcGroup.dateTime.getTime();
+			append(files, prefix + "GarbageCollectionPercent", gcMillis,
+					gcGroup.gcTimePercentSum);
+			append(files, prefix + "CpuTimePercent", gcMillis,
+					gcGroup.cpuTimePercent);
+			for (GarbageCollectionSingle gc : gcGroup.gcSingles) {
+				append(files, prefix + gc.gcName + ".CountPerPeriod",
+						gcMillis, gc.gcCountPerPeriod);
+				append(files, prefix + gc.gcName + ".TimePercent", gcMillis,
+						gc.gcTimePercent);
+			}
+			if (gcGroup.gcPauses != null) {
+				// Each collection at its own time
+				for (GcPause pause : gcGroup.gcPauses)
+					append(files, prefix + pause.gcName + ".PauseMillis",
+							pause.startMillis, pause.durationMillis);
+				append(files, prefix + "GcMaxPauseMillis", gcMillis,
+						gcGroup.maxPauseMillis);
+			}
+			if (serverData.attributes == null)
+				continue;
+			cycleNames.clear();
+			for (AttributeValueAndName attr : serverData.attributes) {
+				String name = prefix + attr.title;
+				if (attr.instance != null)
+					name += "{" + attr.instance + "}";
+				else if (!cycleNames.add(name))
+					// same title in several definitions
+					name += "{" + attr.objectName + "}";
+				double value = attr.numericValue();
+				if (Double.isNaN(value))
+					continue;
+				append(files, name, attr.dateTime.getTime(), value);
+			}
+		}
+	}
+
+	/***
+	 * Close the files of the servers which are gone (discovered JVMs)
+	 * @param serverDataArr
+	 */
+	private void closeDepartedServers(ServerData[] serverDataArr) {
+		Set<String> urls = new HashSet<String>();
+		for (ServerData serverData : serverDataArr)
+			if (serverData != null)
+				urls.add(serverData.url);
+		for (Iterator<Map.Entry<String, Map<String, TimeSeriesFile>>> it = servers
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Map<String, TimeSeriesFile>> server = it.next();
+			if (urls.contains(server.getKey()))
+				continue;
+			for (TimeSeriesFile file : server.getValue().values())
+				file.close();
+			it.remove();
+		}
+	}
+
+	private void append(Map<String, TimeSeriesFile> files, String seriesName,
+			long time, double value) {
+		TimeSeriesFile file = files.get(seriesName);
+		if (file == null && rejected.contains(seriesName))
+			return;
+		try {
+			if (file == null) {
+				file = TimeSeriesFile.open(seriesFile(seriesName), seriesName);
+				if (file.droppedBlocks > 0)
+					System.out.println("Time series " + seriesName + ": "
+							+ file.droppedBlocks
+							+ " incomplete block(s) dropped");
+				if (file.recoveredSamples > 0)
+					System.out.println("Time series " + seriesName + ": "
+							+ file.recoveredSamples
+							+ " sample(s) of a damaged block kept");
+				files.put(seriesName, file);
+			}
+			if (time > file.lastTime()) {
+				long bytes = file.bytesWritten;
+				file.append(time, value);
+				bytesWritten += file.bytesWritten - bytes;
+			}
+		} catch (IOException ex) {
+			if (ex instanceof TimeSeriesFile.SeriesNameException)
+				rejected.add(seriesName);
+			String s = JmxServerMonitoring.formatDate(
+					JmxServerMonitoring.YYYYMMDD_HHMMSS_STD, new Date())
+					+ ", Time series " + seriesName + ": ";
+			System.out.println(s + ex);
+			JmxServerMonitoring.writeErrorFile(s, ex, errorFile);
+			if (file != null) {
+				file.close();
+				files.remove(seriesName);
+			}
+		}
+	}
+
+	/***
+	 * File of a series; a file of the series with the name used before the
+	 * names were escaped is renamed
+	 * @param seriesName
+	 * @return
+	 */
+	private File seriesFile(String seriesName) {
+		File file = new File(dir, TimeSeriesFile.fileName(seriesName));
+		File legacy = new File(dir, TimeSeriesFile.legacyFileName(seriesName));
+		if (file.exists() || legacy.equals(file) || !legacy.isFile())
+			return file;
+		try {
+			TimeSeriesFile old = TimeSeriesFile.openReadOnly(legacy);
+			old.close();
+			if (seriesName.equals(old.seriesName) && legacy.renameTo(file))
+				System.out.println("Time series " + seriesName
+						+ ": renamed " + legacy + " to " + file);
+		} catch (IOException ex) {
+			// not a file of this series
+		}
+		return file;
+	}
+
+	synchronized void close() {
+		for (Map<String, TimeSeriesFile> files : servers.values())
+			for (TimeSeriesFile file : files.values())
+				file.close();
+		servers.clear();
+	}
+}
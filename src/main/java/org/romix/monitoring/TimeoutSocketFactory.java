@@ -0,0 +1,92 @@
+package org.romix.monitoring;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/***
+ * RMI socket factory with a connect timeout and a read timeout (SO_TIMEOUT)
+ * for the client sockets.
+ *
+ * Installed as the global RMI socket factory, so that it is used for the
+ * registry lookup and for all calls of the JMX connectors, whose stubs use
+ * the default factory. Without it, a firewalled or hanging server blocks a
+ * connect for the TCP timeouts of the operating system. Server sockets are
+ * created as usual.
+ *
+ * RMI replaces SO_TIMEOUT by its own timeouts for the handshake and the
+ * responses of a connection, so these are set, too (system properties which
+ * are read once, before the first RMI connection).
+ * @author romix
+ *
+ */
+class TimeoutSocketFactory extends RMISocketFactory {
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+
+	/***
+	 * @param connectTimeoutMillis
+	 *            0 = no timeout
+	 * @param readTimeoutMillis
+	 *            0 = no timeout
+	 */
+	TimeoutSocketFactory(int connectTimeoutMillis, int readTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port),
+					connectTimeoutMillis);
+			socket.setSoTimeout(readTimeoutMillis);
+			socket.setTcpNoDelay(true);
+		} catch (IOException ex) {
+			try {
+				socket.close();
+			} catch (IOException exClose) {/* ok */
+			}
+			throw ex;
+		}
+		return socket;
+	}
+
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return new ServerSocket(port);
+	}
+
+	/***
+	 * Install as the RMI socket factory of this JVM (possible only once;
+	 * errors are only reported)
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis
+	 */
+	static void install(int connectTimeoutMillis, int readTimeoutMillis) {
+		if (connectTimeoutMillis <= 0 && readTimeoutMillis <= 0)
+			return;
+		int handshakeTimeoutMillis = (readTimeoutMillis > 0) ? readTimeoutMillis
+				: connectTimeoutMillis;
+		setIfUndefined("sun.rmi.transport.tcp.handshakeTimeout",
+				handshakeTimeoutMillis);
+		if (readTimeoutMillis > 0)
+			setIfUndefined("sun.rmi.transport.tcp.responseTimeout",
+					readTimeoutMillis);
+		try {
+			RMISocketFactory.setSocketFactory(new TimeoutSocketFactory(
+					connectTimeoutMillis, readTimeoutMillis));
+		} catch (IOException ex) {
+			System.out.println("Error: RMI socket timeouts not set: " + ex);
+		}
+	}
+
+	/***
+	 * Properties given on the command line (-D...) have priority
+	 */
+	private static void setIfUndefined(String key, int millis) {
+		if (System.getProperty(key) == null)
+			System.setProperty(key, Integer.toString(millis));
+	}
+}
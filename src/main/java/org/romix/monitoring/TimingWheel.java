@@ -0,0 +1,97 @@
+package org.romix.monitoring;
+
+/***
+ * Hashed timing wheel for the reads of the collection loop.
+ *
+ * Time is counted in ticks (one tick per cycle of the loop). An entry is
+ * kept in the slot (deadline modulo wheel size); advancing the wheel only
+ * looks at the slot of the current tick, so the cost per cycle does not
+ * depend on the number of scheduled reads with later deadlines. Entries
+ * are linked lists of their own, scheduling does not allocate.
+ *
+ * Not thread-safe (only used by the loop thread).
+ * @author romix
+ *
+ */
+class TimingWheel {
+	/***
+	 * A periodic read: the GC group of a server or an attribute plan
+	 */
+	static final class Entry {
+		/** Index of the server */
+		final int server;
+		/** Index of the attribute plan, GC_GROUP for the GC group */
+		final int plan;
+		final int intervalTicks;
+		long deadline;
+		Entry next;
+
+		Entry(int server, int plan, int intervalTicks) {
+			this.server = server;
+			this.plan = plan;
+			this.intervalTicks = Math.max(intervalTicks, 1);
+		}
+	}
+
+	/** Plan index of the GC statistics (and CPU time) of a server */
+	static final int GC_GROUP = -1;
+
+	private final Entry[] slots;
+	private final int mask;
+	/** The next tick to advance to */
+	private long tick;
+
+	/***
+	 * @param size
+	 *            number of slots (rounded up to a power of two)
+	 */
+	TimingWheel(int size) {
+		int n = 1;
+		while (n < size)
+			n <<= 1;
+		slots = new Entry[n];
+		mask = n - 1;
+	}
+
+	long tick() {
+		return tick;
+	}
+
+	/***
+	 * Schedule an entry (deadlines in the past are due at the next tick)
+	 * @param entry
+	 * @param deadlineTick
+	 */
+	void schedule(Entry entry, long deadlineTick) {
+		entry.deadline = Math.max(deadlineTick, tick);
+		int index = (int) (entry.deadline & mask);
+		entry.next = slots[index];
+		slots[index] = entry;
+	}
+
+	/***
+	 * Remove the entries which are due at the current tick and move to the
+	 * next tick
+	 * @return linked list of the due entries (via Entry.next), or null
+	 */
+	Entry advance() {
+		int index = (int) (tick & mask);
+		Entry due = null;
+		Entry keep = null;
+		Entry e = slots[index];
+		while (e != null) {
+			Entry next = e.next;
+			if (e.deadline <= tick) {
+				e.next = due;
+				due = e;
+			} else {
+				e.next = keep;
+				keep = e;
+			}
+			e = next;
+		}
+		slots[index] = keep;
+		tick++;
+		return due;
+	}
+}
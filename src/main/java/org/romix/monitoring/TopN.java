@@ -0,0 +1,86 @@
+package org.romix.monitoring;
+
+/***
+ * The n largest values seen (a min-heap of fixed size). The values are
+ * kept with the slot of their owner (e.g. an index into the caller's
+ * arrays); offer() returns the slot which dropped out, so that the caller
+ * can reuse it.
+ * @author romix
+ *
+ */
+final class TopN {
+	final int[] slots;
+	final double[] values;
+	int size;
+
+	TopN(int n) {
+		slots = new int[n];
+		values = new double[n];
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/***
+	 * Offer a value
+	 * @param slot
+	 * @param value
+	 * @return the slot which is not in the heap any more (the given one, if
+	 *         the value is too small), -1 while the heap is not full
+	 */
+	int offer(int slot, double value) {
+		if (slots.length == 0)
+			return slot;
+		if (size < slots.length) {
+			// Sift up
+			int i = size++;
+			while (i > 0 && values[(i - 1) / 2] > value) {
+				slots[i] = slots[(i - 1) / 2];
+				values[i] = values[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			slots[i] = slot;
+			values[i] = value;
+			return -1;
+		}
+		if (value <= values[0])
+			return slot;
+		// Replace the smallest and sift down
+		int dropped = slots[0];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && values[child + 1] < values[child])
+				child++;
+			if (values[child] >= value)
+				break;
+			slots[i] = slots[child];
+			values[i] = values[child];
+			i = child;
+		}
+		slots[i] = slot;
+		values[i] = value;
+		return dropped;
+	}
+
+	/***
+	 * Order the heap by value, largest first (destroys the heap)
+	 */
+	void sortDescending() {
+		for (int i = 1; i < size; i++) {
+			int slot = slots[i];
+			double value = values[i];
+			int j = i;
+			while (j > 0 && values[j - 1] < value) {
+				slots[j] = slots[j - 1];
+				values[j] = values[j - 1];
+				j--;
+			}
+			slots[j] = slot;
+			values[j] = value;
+		}
+	}
+}